@@ -0,0 +1,65 @@
+package com.telecom.dns;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding whole responses from the corpus. index only walks the records
+ * into the reused view, parse is what NioResolver does per response, and
+ * decodeRecords also materializes the typed records.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AnswerParseBenchmark {
+
+	@Param({ "CNAME_CHAIN", "MX", "NS", "MANY_A", "NXDOMAIN" })
+	public String response;
+
+	private ByteBuffer message;
+	private final DnsMessageView view = new DnsMessageView();
+	private final DnsPacketHeader header = new DnsPacketHeader();
+
+	@Setup
+	public void setUp() {
+		message = ByteBuffer.wrap(ResponseCorpus.get(response));
+	}
+
+	@Benchmark
+	public int index() {
+		return view.wrap(message).getRecordCount();
+	}
+
+	@Benchmark
+	public DnsAnswer parse() {
+		try {
+			header.parse(message);
+		} catch (Exception e) {
+			// NXDOMAIN is part of the corpus
+		}
+		DnsAnswer answer = new DnsAnswer(0);
+		answer.parse(message, header);
+		return answer;
+	}
+
+	@Benchmark
+	public List<DnsRecord> decodeRecords() {
+		return parse().getRecords();
+	}
+}
@@ -0,0 +1,97 @@
+package com.telecom.dns;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cache hits from a growing number of threads sharing one cache, with the
+ * lookups following a Zipf distribution so that threads keep hitting the
+ * same hot names. Compares the cache as it is with locked, the same cache
+ * behind a single lock, to show how reads scale with the threads. Only
+ * meaningful on a machine with several cores.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CacheReadBenchmark {
+
+	private static final int NAMES = 100000;
+	private static final int TRACE_LENGTH = 1 << 20;
+
+	@Param({ "concurrent", "locked" })
+	public String cache;
+
+	private DnsCache shared;
+	private boolean locked;
+	private CacheKey[] trace;
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		int next;
+
+		@Setup
+		public void setUp() {
+			// Threads start apart so they do not walk the trace in step
+			next = (int) (Thread.currentThread().getId() * 7919);
+		}
+	}
+
+	@Setup
+	public void setUp() {
+		ZipfKeys keys = new ZipfKeys(NAMES, 0.9);
+		shared = new DnsCache(NAMES);
+		DnsAnswer answer = ZipfKeys.answer();
+		for (int i = 0; i < NAMES; i++)
+			shared.put(keys.get(i), answer);
+		locked = cache.equals("locked");
+		trace = keys.trace(TRACE_LENGTH, 42);
+	}
+
+	private DnsAnswer read(Cursor cursor) {
+		CacheKey key = trace[cursor.next++ & (TRACE_LENGTH - 1)];
+		if (!locked)
+			return shared.get(key);
+		synchronized (shared) {
+			return shared.get(key);
+		}
+	}
+
+	@Benchmark
+	@Threads(1)
+	public DnsAnswer readOneThread(Cursor cursor) {
+		return read(cursor);
+	}
+
+	@Benchmark
+	@Threads(2)
+	public DnsAnswer readTwoThreads(Cursor cursor) {
+		return read(cursor);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public DnsAnswer readFourThreads(Cursor cursor) {
+		return read(cursor);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public DnsAnswer readEightThreads(Cursor cursor) {
+		return read(cursor);
+	}
+}
@@ -0,0 +1,51 @@
+package com.telecom.dns;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Encoding and parsing of the 12 byte message header.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HeaderCodecBenchmark {
+
+	private final byte[] header = ResponseCorpus.MX;
+	private final ByteBuffer message = ByteBuffer.wrap(ResponseCorpus.MX);
+	private final DnsPacketHeader parsed = new DnsPacketHeader();
+	private short id;
+
+	@Benchmark
+	public byte[] encode() {
+		return new DnsPacketHeader(id++, (byte) 0, (byte) 0, (byte) 0,
+				(byte) 0, (byte) 1, (byte) 0, (byte) 0, (byte) 0, (short) 1,
+				(short) 0, (short) 0, (short) 0).getDnsHeader();
+	}
+
+	@Benchmark
+	public void parseBytes(Blackhole blackhole) throws Exception {
+		parsed.parse(header);
+		blackhole.consume(parsed.getANCOUNT());
+	}
+
+	@Benchmark
+	public void parseInPlace(Blackhole blackhole) throws Exception {
+		parsed.parse(message);
+		blackhole.consume(parsed.getANCOUNT());
+	}
+}
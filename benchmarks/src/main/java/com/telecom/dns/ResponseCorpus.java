@@ -0,0 +1,95 @@
+package com.telecom.dns;
+
+/**
+ * Realistic responses laid out the way public resolvers send them, kept as
+ * hex so the benchmarks decode real wire bytes. Names are compressed against
+ * earlier occurrences just as a server compresses them.
+ */
+public final class ResponseCorpus {
+
+	// www.microsoft.com A, a three hop CNAME chain into a CDN
+	public static final byte[] CNAME_CHAIN = fromHex(
+			"1a2b8180000100040000000003777777096d6963726f736f66740363"
+			+ "6f6d0000010001c00c0005000100000e10002303777777096d696372"
+			+ "6f736f667407636f6d2d632d3307656467656b6579036e657400c02f"
+			+ "0005000100000384003703777777096d6963726f736f667407636f6d"
+			+ "2d632d3307656467656b6579036e65740b676c6f62616c7265646972"
+			+ "06616b61646e73c04dc05e0005000100000384001906653133363738"
+			+ "04647363620a616b616d616965646765c04dc0a10001000100000014"
+			+ "000417367fb4");
+
+	// The five MX records of gmail.com with glue for two of the exchanges
+	public static final byte[] MX = fromHex(
+			"3c4d8180000100050000000205676d61696c03636f6d00000f0001c0"
+			+ "0c000f000100000e10001b00050d676d61696c2d736d74702d696e01"
+			+ "6c06676f6f676c65c012c00c000f000100000e100009000a04616c74"
+			+ "31c029c00c000f000100000e100009001404616c7432c029c00c000f"
+			+ "000100000e100009001e04616c7433c029c00c000f000100000e1000"
+			+ "09002804616c7434c029c029000100010000012c00048efa641bc050"
+			+ "000100010000012c00048efa651b");
+
+	// The four NS records of google.com with glue for each
+	public static final byte[] NS = fromHex(
+			"5e6f8180000100040000000406676f6f676c6503636f6d0000020001"
+			+ "c00c00020001000546000006036e7331c00cc00c0002000100054600"
+			+ "0006036e7332c00cc00c00020001000546000006036e7333c00cc00c"
+			+ "00020001000546000006036e7334c00cc02800010001000546000004"
+			+ "d8ef200ac03a00010001000546000004d8ef220ac04c000100010005"
+			+ "46000004d8ef240ac05e00010001000546000004d8ef260a");
+
+	// 24 A records for pool.ntp.org
+	public static final byte[] MANY_A = fromHex(
+			"70818180000100180000000004706f6f6c036e7470036f7267000001"
+			+ "0001c00c000100010000009600042d4f0146c00c0001000100000096"
+			+ "00042e520847c00c000100010000009600042f550f48c00c00010001"
+			+ "00000096000430581649c00c00010001000000960004315b1d4ac00c"
+			+ "00010001000000960004325e244bc00c000100010000009600043361"
+			+ "2b4cc00c000100010000009600043464324dc00c0001000100000096"
+			+ "00043567394ec00c00010001000000960004366a404fc00c00010001"
+			+ "000000960004376d4750c00c0001000100000096000438704e51c00c"
+			+ "0001000100000096000439735552c00c000100010000009600043a76"
+			+ "5c53c00c000100010000009600043b796354c00c0001000100000096"
+			+ "00043c7c6a55c00c000100010000009600043d7f7156c00c00010001"
+			+ "0000009600043e507857c00c000100010000009600043f537f58c00c"
+			+ "0001000100000096000440568659c00c000100010000009600044159"
+			+ "8d5ac00c00010001000000960004425c945bc00c0001000100000096"
+			+ "0004435f9b5cc00c000100010000009600044462a25d");
+
+	// NXDOMAIN for doesnotexist.mcgill.ca with the zone SOA in the authority section
+	public static final byte[] NXDOMAIN = fromHex(
+			"9293818300010000000100000c646f65736e6f746578697374066d63"
+			+ "67696c6c0263610000010001c0190006000100000e100027036e7331"
+			+ "c0190a686f73746d6173746572c01978a3f17500001c2000000e1000"
+			+ "1275000000012c");
+
+	private ResponseCorpus() {
+	}
+
+	/**
+	 * @param name
+	 *            one of the corpus field names
+	 * @return the response bytes
+	 */
+	public static byte[] get(String name) {
+		switch (name) {
+		case "CNAME_CHAIN":
+			return CNAME_CHAIN;
+		case "MX":
+			return MX;
+		case "NS":
+			return NS;
+		case "MANY_A":
+			return MANY_A;
+		case "NXDOMAIN":
+			return NXDOMAIN;
+		}
+		throw new IllegalArgumentException("No captured response named " + name);
+	}
+
+	private static byte[] fromHex(String hex) {
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		return bytes;
+	}
+}
@@ -0,0 +1,100 @@
+package com.telecom.dns;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Hit rates of a cache much smaller than the set of names looked up, over a
+ * Zipf distributed stream where each miss is filled as a resolver would.
+ * The hits and misses counters give the hit rate, hits / (hits + misses),
+ * of the cache's frequency-aware eviction next to plain LRU at the same
+ * size.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ZipfHitRateBenchmark {
+
+	private static final int NAMES = 1000000;
+	private static final int TRACE_LENGTH = 1 << 22;
+
+	@Param({ "tinylfu", "lru" })
+	public String policy;
+
+	@Param({ "10000", "100000" })
+	public int size;
+
+	@Param({ "0.8", "1.0" })
+	public double skew;
+
+	private DnsCache cache;
+	private Map<CacheKey, DnsAnswer> lru;
+	private DnsAnswer answer;
+	private CacheKey[] trace;
+	private int next;
+
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class Counters {
+		public long hits;
+		public long misses;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			hits = 0;
+			misses = 0;
+		}
+	}
+
+	@Setup
+	public void setUp() {
+		answer = ZipfKeys.answer();
+		trace = new ZipfKeys(NAMES, skew).trace(TRACE_LENGTH, 42);
+		if (policy.equals("lru")) {
+			final int capacity = size;
+			lru = new LinkedHashMap<CacheKey, DnsAnswer>(capacity, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(
+						Map.Entry<CacheKey, DnsAnswer> eldest) {
+					return size() > capacity;
+				}
+			};
+		} else {
+			cache = new DnsCache(size);
+		}
+	}
+
+	@Benchmark
+	public void lookup(Counters counters) {
+		CacheKey key = trace[next++ & (TRACE_LENGTH - 1)];
+		if ((lru != null ? lru.get(key) : cache.get(key)) != null) {
+			counters.hits++;
+			return;
+		}
+		counters.misses++;
+		if (lru != null)
+			lru.put(key, answer);
+		else
+			cache.put(key, answer);
+	}
+}
@@ -0,0 +1,73 @@
+package com.telecom.dns;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Cache keys for distinct names, and traces of lookups over them that follow
+ * a Zipf distribution, the way real query streams favour a few names. The
+ * traces are drawn up front so the benchmarks only measure the cache.
+ */
+public final class ZipfKeys {
+
+	private final CacheKey[] keys;
+	private final double[] cumulative;
+
+	/**
+	 * @param names
+	 *            how many distinct names there are
+	 * @param skew
+	 *            the Zipf exponent, around 0.8 to 1 for DNS traffic
+	 */
+	public ZipfKeys(int names, double skew) {
+		keys = new CacheKey[names];
+		cumulative = new double[names];
+		double sum = 0;
+		for (int i = 0; i < names; i++) {
+			keys[i] = CacheKey.of("host" + i + ".example.com",
+					DnsRecord.A_TYPE, DnsQueryEncoder.IN_CLASS);
+			sum += 1 / Math.pow(i + 1, skew);
+			cumulative[i] = sum;
+		}
+	}
+
+	public CacheKey get(int name) {
+		return keys[name];
+	}
+
+	public int size() {
+		return keys.length;
+	}
+
+	/**
+	 * @return the keys of this many lookups, in order
+	 */
+	public CacheKey[] trace(int length, long seed) {
+		Random random = new Random(seed);
+		double total = cumulative[cumulative.length - 1];
+		CacheKey[] trace = new CacheKey[length];
+		for (int i = 0; i < length; i++) {
+			int name = Arrays.binarySearch(cumulative, random.nextDouble()
+					* total);
+			trace[i] = keys[name < 0 ? -name - 1 : name];
+		}
+		return trace;
+	}
+
+	/**
+	 * @return a positive answer with a TTL of five minutes
+	 */
+	public static DnsAnswer answer() {
+		DnsPacketHeader header = new DnsPacketHeader();
+		ByteBuffer message = ByteBuffer.wrap(ResponseCorpus.MX);
+		try {
+			header.parse(message);
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+		DnsAnswer answer = new DnsAnswer(0);
+		answer.parse(message, header);
+		return answer;
+	}
+}
@@ -0,0 +1,54 @@
+package com.telecom.dns;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Free list of fixed size ByteBuffers so messages can be encoded and sent
+ * without allocating a buffer each time. Owned by a single thread.
+ */
+public class BufferPool {
+
+	private final int bufferSize;
+	private final int maxPooled;
+	private final boolean direct;
+	private final ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+
+	/**
+	 * @param bufferSize
+	 *            the capacity of every buffer
+	 * @param maxPooled
+	 *            how many released buffers to keep, the rest are dropped
+	 * @param direct
+	 *            whether to allocate direct buffers
+	 */
+	public BufferPool(int bufferSize, int maxPooled, boolean direct) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+		this.direct = direct;
+	}
+
+	/**
+	 * @return a cleared buffer, reused when one is free
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = free.pollFirst();
+		if (buffer == null)
+			return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer
+					.allocate(bufferSize);
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer to the pool. It must not be used afterwards.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer.capacity() == bufferSize && free.size() < maxPooled)
+			free.addFirst(buffer);
+	}
+
+	public int size() {
+		return free.size();
+	}
+}
@@ -0,0 +1,107 @@
+package com.telecom.dns;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+/**
+ * Resolves a stream of names through one resolver. Up to a fixed window
+ * of queries are kept in flight at once and the records are printed as the
+ * responses arrive.
+ */
+public class BulkResolver {
+
+	private final BiFunction<String, String, CompletableFuture<DnsAnswer>> resolver;
+	private final String serverType;
+	private final int windowSize;
+	private final Semaphore window;
+
+	private final AtomicInteger answered = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+
+	public BulkResolver(NioResolver resolver, String serverType, int windowSize) {
+		this(resolver::lookup, serverType, windowSize);
+	}
+
+	public BulkResolver(IterativeResolver resolver, String serverType,
+			int windowSize) {
+		this(resolver::lookup, serverType, windowSize);
+	}
+
+	public BulkResolver(Resolver resolver, String serverType, int windowSize) {
+		this(resolver::lookup, serverType, windowSize);
+	}
+
+	private BulkResolver(
+			BiFunction<String, String, CompletableFuture<DnsAnswer>> resolver,
+			String serverType, int windowSize) {
+		this.resolver = resolver;
+		this.serverType = serverType;
+		this.windowSize = windowSize;
+		this.window = new Semaphore(windowSize);
+	}
+
+	/**
+	 * Reads one name per line and resolves them all, printing a line per
+	 * record as the responses arrive. Blank lines and lines starting with #
+	 * are skipped. Returns once every query is answered or has timed out.
+	 * 
+	 * @param names
+	 * @param out
+	 * @throws IOException
+	 */
+	public void run(BufferedReader names, PrintStream out) throws IOException {
+		long start = System.currentTimeMillis();
+		int sent = 0;
+
+		String line;
+		while ((line = names.readLine()) != null) {
+			String name = line.trim();
+			if (name.isEmpty() || name.charAt(0) == '#')
+				continue;
+
+			window.acquireUninterruptibly();
+			resolver.apply(name, serverType).whenComplete(
+					(answer, error) -> {
+						print(out, name, answer, error);
+						window.release();
+					});
+			sent++;
+		}
+
+		// Every permit is back once the last query has completed
+		window.acquireUninterruptibly(windowSize);
+
+		System.err.println("Resolved " + sent + " names in "
+				+ (System.currentTimeMillis() - start) + " milliseconds ("
+				+ answered.get() + " answered, " + failed.get() + " failed)");
+	}
+
+	private void print(PrintStream out, String name, DnsAnswer dnsAnswer,
+			Throwable error) {
+		if (error != null) {
+			synchronized (out) {
+				out.println(name + "	" + "ERROR" + "	" + error.getMessage());
+			}
+			failed.incrementAndGet();
+			return;
+		}
+
+		DnsPacketHeader header = dnsAnswer.getHeader();
+		String auth = header.getAA() == 1 ? "AUTH" : "NONAUTH";
+		synchronized (out) {
+			for (DnsRecord answer : dnsAnswer.getRecords()) {
+				String record = DnsClient.formatAnswer(answer, auth);
+				if (record != null)
+					out.println(name + "	" + record);
+			}
+			if (header.getANCOUNT() == 0)
+				out.println(name + "	" + "NOTFOUND");
+		}
+		answered.incrementAndGet();
+	}
+}
@@ -0,0 +1,241 @@
+package com.telecom.dns;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A saved answer cache, memory-mapped both to write and to read. The file is a hash table
+ * of offsets followed by the answers themselves, each the response message
+ * in wire format with its absolute expiry time, so a lookup probes the
+ * mapping directly and nothing is read or parsed until it is asked for.
+ *
+ * Layout, big-endian: magic, version, slot count and record count as ints,
+ * then a slot per power-of-two bucket holding the key hash and the record
+ * offset (0 when empty), then the records. A record is the expiry in epoch
+ * milliseconds, the original TTL in seconds, the QNAME length and QNAME,
+ * QTYPE, QCLASS, and the message length and message.
+ */
+final class CacheFile {
+
+	private static final int MAGIC = 0x444e5343; // "DNSC"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	private static final int SLOT_SIZE = 8;
+	// Expiry, TTL and QNAME length before the QNAME
+	private static final int RECORD_HEADER = 14;
+
+	private final MappedByteBuffer map;
+	private final int mask;
+	private final int recordCount;
+
+	private CacheFile(MappedByteBuffer map, int slots, int recordCount) {
+		this.map = map;
+		this.mask = slots - 1;
+		this.recordCount = recordCount;
+	}
+
+	/**
+	 * A saved answer.
+	 */
+	static final class Record {
+		final CacheKey key;
+		final ByteBuffer message;
+		final long expiresAtMillis;
+		final int ttlSeconds;
+
+		Record(CacheKey key, ByteBuffer message, long expiresAtMillis,
+				int ttlSeconds) {
+			this.key = key;
+			this.message = message;
+			this.expiresAtMillis = expiresAtMillis;
+			this.ttlSeconds = ttlSeconds;
+		}
+	}
+
+	/**
+	 * Maps a file written by {@link #write(Path, List)}. Only the header is
+	 * checked here, so that no more of the file is paged in than lookups
+	 * touch. Each record is checked against the size of the file when it is
+	 * reached, and a damaged one is left out.
+	 *
+	 * @param path
+	 * @return the mapped file
+	 * @throws IOException
+	 *             if it cannot be read or is not a cache file
+	 */
+	static CacheFile open(Path path) throws IOException {
+		MappedByteBuffer map;
+		try (FileChannel channel = FileChannel.open(path,
+				StandardOpenOption.READ)) {
+			if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE)
+				throw new IOException(path + " is not a DNS cache file");
+			map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		int slots = map.getInt(8);
+		if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION
+				|| Integer.bitCount(slots) != 1
+				|| HEADER_SIZE + (long) slots * SLOT_SIZE > map.limit())
+			throw new IOException(path + " is not a DNS cache file");
+		return new CacheFile(map, slots,
+				Math.max(0, Math.min(map.getInt(12), slots)));
+	}
+
+	int size() {
+		return recordCount;
+	}
+
+	/**
+	 * @param key
+	 * @return the saved answer for the key, its message a view of the
+	 *         mapping, or null if there is none or it is damaged
+	 */
+	Record find(CacheKey key) {
+		int hash = key.hashCode();
+		// A damaged file may have no empty slot to end the probe on
+		int slot = spread(hash) & mask;
+		for (int probes = 0; probes <= mask; probes++, slot = (slot + 1) & mask) {
+			int at = HEADER_SIZE + slot * SLOT_SIZE;
+			int offset = map.getInt(at + 4);
+			if (offset == 0)
+				return null;
+			if (map.getInt(at) == hash && isIntact(offset)
+					&& keyEquals(offset, key))
+				return read(offset, key);
+		}
+		return null;
+	}
+
+	/**
+	 * @return every saved answer that is intact, expired or not
+	 */
+	List<Record> records() {
+		List<Record> records = new ArrayList<Record>(recordCount);
+		for (int slot = 0; slot <= mask; slot++) {
+			int offset = map.getInt(HEADER_SIZE + slot * SLOT_SIZE + 4);
+			if (offset != 0 && isIntact(offset))
+				records.add(read(offset, null));
+		}
+		return records;
+	}
+
+	/**
+	 * Checks that a record lies within the record area of the file, so that
+	 * it can be read without checking bounds any further.
+	 */
+	private boolean isIntact(int offset) {
+		if (offset < HEADER_SIZE + (mask + 1) * SLOT_SIZE
+				|| (long) offset + RECORD_HEADER > map.limit())
+			return false;
+		int qnameLength = map.getShort(offset + 12) & 0xffff;
+		long at = (long) offset + RECORD_HEADER + qnameLength + 4;
+		if (qnameLength == 0 || qnameLength > DnsWireParser.MAX_NAME_LENGTH
+				|| at + 4 > map.limit())
+			return false;
+		int length = map.getInt((int) at);
+		return length >= DnsWireParser.SIZE_OF_HEADER
+				&& at + 4 + length <= map.limit();
+	}
+
+	private boolean keyEquals(int offset, CacheKey key) {
+		byte[] qname = key.getQNAME();
+		int at = offset + RECORD_HEADER - 2;
+		if ((map.getShort(at) & 0xffff) != qname.length)
+			return false;
+		at += 2;
+		for (int i = 0; i < qname.length; i++) {
+			if (map.get(at + i) != qname[i])
+				return false;
+		}
+		at += qname.length;
+		return map.getShort(at) == key.getQTYPE()
+				&& map.getShort(at + 2) == key.getQCLASS();
+	}
+
+	private Record read(int offset, CacheKey key) {
+		long expiresAtMillis = map.getLong(offset);
+		int ttlSeconds = map.getInt(offset + 8);
+		int qnameLength = map.getShort(offset + 12) & 0xffff;
+		int at = offset + RECORD_HEADER;
+		if (key == null) {
+			byte[] qname = new byte[qnameLength];
+			for (int i = 0; i < qnameLength; i++)
+				qname[i] = map.get(at + i);
+			key = new CacheKey(qname, map.getShort(at + qnameLength),
+					map.getShort(at + qnameLength + 2));
+		}
+		at += qnameLength + 4;
+		int length = map.getInt(at);
+		ByteBuffer message = map.duplicate();
+		message.position(at + 4).limit(at + 4 + length);
+		return new Record(key, message.slice(), expiresAtMillis, ttlSeconds);
+	}
+
+	/**
+	 * Writes the answers through a mapping of a new file that then replaces
+	 * the one at the path, so a process that has the old file mapped keeps
+	 * a consistent view of it.
+	 *
+	 * @param path
+	 * @param records
+	 * @throws IOException
+	 */
+	static void write(Path path, List<Record> records) throws IOException {
+		int slots = Integer.highestOneBit(Math.max(records.size(), 1) * 2 - 1) << 1;
+		long size = HEADER_SIZE + (long) slots * SLOT_SIZE;
+		for (Record record : records)
+			size += RECORD_HEADER + record.key.getQNAME().length + 8
+					+ record.message.remaining();
+		if (size > Integer.MAX_VALUE)
+			throw new IOException("The cache is too large to save");
+
+		Path temp = Files.createTempFile(path.toAbsolutePath().getParent(),
+				path.getFileName().toString(), ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(temp,
+					StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				MappedByteBuffer out = channel.map(
+						FileChannel.MapMode.READ_WRITE, 0, size);
+				write(out, slots, records);
+				out.force();
+			}
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	private static void write(ByteBuffer out, int slots, List<Record> records) {
+		out.putInt(MAGIC).putInt(VERSION).putInt(slots).putInt(records.size());
+		int offset = HEADER_SIZE + slots * SLOT_SIZE;
+		out.position(offset);
+		for (Record record : records) {
+			int hash = record.key.hashCode();
+			int slot = spread(hash) & (slots - 1);
+			while (out.getInt(HEADER_SIZE + slot * SLOT_SIZE + 4) != 0)
+				slot = (slot + 1) & (slots - 1);
+			out.putInt(HEADER_SIZE + slot * SLOT_SIZE, hash);
+			out.putInt(HEADER_SIZE + slot * SLOT_SIZE + 4, out.position());
+
+			byte[] qname = record.key.getQNAME();
+			out.putLong(record.expiresAtMillis).putInt(record.ttlSeconds)
+					.putShort((short) qname.length).put(qname)
+					.putShort(record.key.getQTYPE())
+					.putShort(record.key.getQCLASS())
+					.putInt(record.message.remaining())
+					.put(record.message.duplicate());
+		}
+	}
+
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+}
@@ -0,0 +1,76 @@
+package com.telecom.dns;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Identifies a cached record set by the QNAME in wire format together with
+ * the QTYPE and QCLASS. Names are lowercased so lookups ignore ASCII case.
+ */
+public final class CacheKey {
+
+	private final byte[] qname;
+	private final short qtype;
+	private final short qclass;
+	private final int hash;
+
+	public CacheKey(byte[] qname, short qtype, short qclass) {
+		this.qname = new byte[qname.length];
+		for (int i = 0; i < qname.length; i++) {
+			byte b = qname[i];
+			this.qname[i] = b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+		}
+		this.qtype = qtype;
+		this.qclass = qclass;
+		this.hash = 31 * (31 * Arrays.hashCode(this.qname) + qtype) + qclass;
+	}
+
+	/**
+	 * Builds the key straight from a dotted name without going through a
+	 * DnsQuestion.
+	 */
+	public static CacheKey of(String name, short qtype, short qclass) {
+		byte[] qname = new byte[DnsQueryEncoder.nameLength(name)];
+		DnsQueryEncoder.writeName(ByteBuffer.wrap(qname), 0, name);
+		return new CacheKey(qname, qtype, qclass);
+	}
+
+	public static CacheKey of(DnsQuestion question) {
+		return new CacheKey(question.getQNAME(), question.getQTYPE(),
+				question.getQCLASS());
+	}
+
+	public byte[] getQNAME() {
+		return qname;
+	}
+
+	public short getQTYPE() {
+		return qtype;
+	}
+
+	public short getQCLASS() {
+		return qclass;
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof CacheKey))
+			return false;
+		CacheKey other = (CacheKey) obj;
+		return hash == other.hash && qtype == other.qtype
+				&& qclass == other.qclass && Arrays.equals(qname, other.qname);
+	}
+
+	@Override
+	public String toString() {
+		return "CacheKey [QNAME=" + Arrays.toString(qname) + ", QTYPE="
+				+ qtype + ", QCLASS=" + qclass + "]";
+	}
+}
@@ -0,0 +1,114 @@
+package com.telecom.dns;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Zone cuts learned from referrals, each with the addresses of the zone's
+ * name servers, kept for the TTL of the NS records. An iterative lookup
+ * starts from the deepest known zone enclosing the name instead of from the
+ * root. Safe to use from any thread.
+ */
+public class DelegationCache {
+
+	// Kept no longer than a day whatever the NS TTL says
+	public static final long MAX_TTL = 24 * 60 * 60;
+
+	private final ConcurrentHashMap<String, Delegation> zones = new ConcurrentHashMap<String, Delegation>();
+
+	/**
+	 * A zone and the addresses of its name servers.
+	 */
+	public static final class Delegation {
+		private final String zone;
+		private final List<InetSocketAddress> servers;
+		private final long expiresAt;
+
+		Delegation(String zone, List<InetSocketAddress> servers, long expiresAt) {
+			this.zone = zone;
+			this.servers = servers;
+			this.expiresAt = expiresAt;
+		}
+
+		/**
+		 * @return the zone name, lowercased and without the trailing dot
+		 */
+		public String getZone() {
+			return zone;
+		}
+
+		public List<InetSocketAddress> getServers() {
+			return servers;
+		}
+
+		@Override
+		public String toString() {
+			return "Delegation [zone=" + zone + ", servers=" + servers + "]";
+		}
+	}
+
+	/**
+	 * @param name
+	 * @return the deepest unexpired delegation at or above the name, or null
+	 *         if only the root is known
+	 */
+	public Delegation closest(String name) {
+		String current = normalize(name);
+		long now = System.nanoTime();
+		while (!current.isEmpty()) {
+			Delegation delegation = zones.get(current);
+			if (delegation != null) {
+				if (delegation.expiresAt - now > 0)
+					return delegation;
+				zones.remove(current, delegation);
+			}
+			int dot = current.indexOf('.');
+			current = dot < 0 ? "" : current.substring(dot + 1);
+		}
+		return null;
+	}
+
+	/**
+	 * Remembers a zone cut.
+	 *
+	 * @param zone
+	 * @param servers
+	 *            the addresses of the zone's name servers
+	 * @param ttl
+	 *            in seconds, the smallest TTL of the NS records
+	 */
+	public void put(String zone, List<InetSocketAddress> servers, long ttl) {
+		ttl = Math.min(ttl, MAX_TTL);
+		if (ttl <= 0 || servers.isEmpty())
+			return;
+		String key = normalize(zone);
+		zones.put(key, new Delegation(key, Collections.unmodifiableList(servers),
+				System.nanoTime() + TimeUnit.SECONDS.toNanos(ttl)));
+	}
+
+	public int size() {
+		return zones.size();
+	}
+
+	public void clear() {
+		zones.clear();
+	}
+
+	/**
+	 * @return whether the name is the zone or below it
+	 */
+	static boolean isWithin(String name, String zone) {
+		return zone.isEmpty() || name.equals(zone)
+				|| name.endsWith("." + zone);
+	}
+
+	static String normalize(String name) {
+		String lower = name.toLowerCase(Locale.ROOT);
+		return lower.endsWith(".") ? lower.substring(0, lower.length() - 1)
+				: lower;
+	}
+}
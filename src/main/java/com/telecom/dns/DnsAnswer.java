@@ -0,0 +1,205 @@
+package com.telecom.dns;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class DnsAnswer {
+
+	private static final String A_TYPE = "a";
+	private static final String NS_TYPE = "ns";
+	private static final String MX_TYPE = "mx";
+
+	public static final int ANSWER_SECTION = DnsMessageView.ANSWER_SECTION;
+	public static final int AUTHORITY_SECTION = DnsMessageView.AUTHORITY_SECTION;
+	public static final int ADDITIONAL_SECTION = DnsMessageView.ADDITIONAL_SECTION;
+
+	// Indexes the whole received message the records are read from
+	private final DnsMessageView view = new DnsMessageView();
+
+	private volatile List<DnsRecord> records;
+
+	private byte[] dnsAnswer;
+
+	private DnsPacketHeader header;
+	private long responseTimeNanos;
+	private int retries;
+
+	/**
+	 * Constructor for sending empty answer of certain size
+	 *
+	 * @param size
+	 */
+	public DnsAnswer(int size) {
+		dnsAnswer = new byte[size];
+	}
+
+	/**
+	 * Indexes every resource record of the message. The walk follows the
+	 * header counts and RR boundaries, so only the per-record offsets and
+	 * fixed fields are stored. Names and RDATA are decoded when asked for.
+	 * The message is read in place and must not change afterwards.
+	 *
+	 * @param message
+	 *            the whole response, from the header to its limit
+	 * @param dnsHeader
+	 *            the header already parsed from the message
+	 */
+	public void parse(ByteBuffer message, DnsPacketHeader dnsHeader) {
+		this.header = dnsHeader;
+		this.records = null;
+		// Index eagerly so the answer is read-only once it is shared
+		view.wrap(message).getRecordCount();
+	}
+
+	/**
+	 * @return the view indexing the records of the message
+	 */
+	public DnsMessageView getMessageView() {
+		return view;
+	}
+
+	/**
+	 * Decodes one record into a typed object.
+	 *
+	 * @param record
+	 *            the index of the record across all sections
+	 * @return the decoded record
+	 * @throws IllegalArgumentException
+	 *             if the record is malformed
+	 */
+	public DnsRecord getRecord(int record) {
+		return DnsRecord.read(view, record);
+	}
+
+	/**
+	 * @return the answer section decoded into typed records, less any whose
+	 *         RDATA is malformed
+	 */
+	public List<DnsRecord> getRecords() {
+		if (records == null) {
+			int start = view.getSectionStart(ANSWER_SECTION);
+			int count = view.getSectionCount(ANSWER_SECTION);
+			List<DnsRecord> answers = new ArrayList<DnsRecord>(count);
+			for (int i = start; i < start + count; i++)
+				addRecord(answers, i);
+			records = Collections.unmodifiableList(answers);
+		}
+		return records;
+	}
+
+	/**
+	 * Decodes one section. The OPT pseudo-record is left out of the
+	 * additional section, and so are records whose RDATA is malformed.
+	 *
+	 * @param section
+	 *            ANSWER_SECTION, AUTHORITY_SECTION or ADDITIONAL_SECTION
+	 * @return the records of the section
+	 */
+	public List<DnsRecord> getRecords(int section) {
+		if (section == ANSWER_SECTION)
+			return getRecords();
+		int start = view.getSectionStart(section);
+		int count = view.getSectionCount(section);
+		List<DnsRecord> list = new ArrayList<DnsRecord>(count);
+		for (int i = start; i < start + count; i++) {
+			if (view.getType(i) != DnsRecord.OPT_TYPE)
+				addRecord(list, i);
+		}
+		return list;
+	}
+
+	private void addRecord(List<DnsRecord> list, int record) {
+		try {
+			list.add(getRecord(record));
+		} catch (IllegalArgumentException e) {
+			// A bogus record is dropped, the rest of the section still counts
+		}
+	}
+
+	/**
+	 * @return the smallest TTL in seconds among the answer records, or 0 if
+	 *         there are none
+	 */
+	public long getMinimumTTL() {
+		return Math.max(view.getMinimumTTL(ANSWER_SECTION), 0);
+	}
+
+	/**
+	 * @return how long a negative answer may be cached in seconds, taken from
+	 *         the authority section SOA (RFC 2308), or -1 if the response had
+	 *         none
+	 */
+	public long getNegativeTTL() {
+		return view.getNegativeTTL();
+	}
+
+	/**
+	 * @return true if this is an NXDOMAIN response or a NOERROR response
+	 *         without any answer records (NODATA)
+	 */
+	public boolean isNegative() {
+		if (header == null)
+			return false;
+		return header.getRCODE() == 3
+				|| (header.getRCODE() == 0 && view
+						.getSectionCount(ANSWER_SECTION) == 0);
+	}
+
+	/**
+	 * Copies the answer with the TTL of every record lowered to at most the
+	 * one given, for handing out an answer some time after it was received.
+	 *
+	 * @param ttlSeconds
+	 * @return the copy, carrying the same header
+	 */
+	public DnsAnswer withMaximumTTL(int ttlSeconds) {
+		ByteBuffer original = view.getMessage().duplicate();
+		original.position(0);
+		ByteBuffer message = ByteBuffer.allocate(original.limit());
+		message.put(original).flip();
+		for (int i = 0; i < view.getRecordCount(); i++) {
+			// The OPT record keeps the extended RCODE and flags there instead
+			if (view.getType(i) != DnsRecord.OPT_TYPE
+					&& (view.getTTL(i) & 0xffffffffL) > ttlSeconds)
+				message.putInt(view.getTTLOffset(i), ttlSeconds);
+		}
+		DnsAnswer copy = new DnsAnswer(0);
+		copy.parse(message, header);
+		return copy;
+	}
+
+	public static String getaType() {
+		return A_TYPE;
+	}
+
+	public static String getNsType() {
+		return NS_TYPE;
+	}
+
+	public static String getMxType() {
+		return MX_TYPE;
+	}
+
+	public byte[] getDnsAnswer() {
+		return dnsAnswer;
+	}
+
+	public DnsPacketHeader getHeader() {
+		return header;
+	}
+
+	public long getResponseTimeNanos() {
+		return responseTimeNanos;
+	}
+
+	public int getRetries() {
+		return retries;
+	}
+
+	void setResponseStats(long responseTimeNanos, int retries) {
+		this.responseTimeNanos = responseTimeNanos;
+		this.retries = retries;
+	}
+}
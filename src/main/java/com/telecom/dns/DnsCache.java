@@ -0,0 +1,646 @@
+package com.telecom.dns;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToIntFunction;
+
+/**
+ * Answer cache placed in front of the query path. Each parsed answer is kept
+ * until the smallest TTL among its records runs out, so repeated lookups for
+ * the same name are served without sending a packet. NXDOMAIN and NODATA
+ * answers are cached as well, for the SOA negative TTL (RFC 2308). Safe to
+ * use from any thread, and lookups never take a lock.
+ *
+ * The cache is bounded by a number of entries or, made by
+ * {@link #withMaxBytes(long)}, by the bytes of its answers. Once full it
+ * keeps the answers that are looked up most often, new answers have to be
+ * more popular than those they would push out ({@link TinyLfuPolicy}).
+ *
+ * With refresh-ahead turned on, a hit on an entry that is into the last part
+ * of its TTL hands the entry to a {@link Prefetcher} once, so that popular
+ * names are fetched again before they expire instead of after.
+ *
+ * With a stale window set, expired entries are kept that much longer so they
+ * can still be handed out through {@link #getStale(CacheKey)} while the
+ * servers cannot be reached (RFC 8767).
+ *
+ * Addresses that come in the additional section for the MX and NS targets
+ * of an answer are cached as answers of their own, so looking the targets
+ * up afterwards costs no round trip.
+ *
+ * The cache can be saved to a file and loaded back by a later process. The
+ * file is memory-mapped and answers are only read from it when a lookup
+ * misses in memory, so loading is immediate however large the file is.
+ *
+ * A cache made by {@link #offHeap(long)} keeps its answers in wire format
+ * outside the Java heap instead, bounded in bytes rather than entries and
+ * evicting the oldest answers when full. Each hit then parses its answer
+ * from a copy, in exchange for millions of entries costing the garbage
+ * collector nothing.
+ */
+public class DnsCache {
+
+	public static final int DEFAULT_MAX_ENTRIES = 1 << 20;
+	// RFC 2308 suggests capping negative TTLs at one to three hours
+	public static final long MAX_NEGATIVE_TTL = 3 * 60 * 60;
+	public static final long MIN_OFF_HEAP_CAPACITY = OffHeapRecordStore.MIN_CAPACITY;
+
+	// A record with an uncompressed name of the longest length
+	private static final int MAX_UNCOMPRESSED_RECORD = 255 + 10 + 16;
+	// Roughly what an entry takes on the heap besides its message: the map
+	// node, key, entry, parsed answer and its record index
+	private static final int ENTRY_OVERHEAD = 320;
+
+	private final ConcurrentHashMap<CacheKey, Entry> entries = new ConcurrentHashMap<CacheKey, Entry>();
+	// Every change to the entries goes through the policy, null when the
+	// store holds the answers instead
+	private final TinyLfuPolicy<Entry> policy;
+	private final OffHeapRecordStore store;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder negativeHits = new LongAdder();
+
+	private volatile Prefetcher prefetcher;
+	private volatile double prefetchFraction;
+	private volatile long staleWindowNanos;
+	private volatile CacheFile file;
+
+	/**
+	 * Fetches an entry again ahead of its expiry.
+	 */
+	public interface Prefetcher {
+		/**
+		 * Called from the thread of the hit that found the entry due.
+		 *
+		 * @param key
+		 * @param answer
+		 *            the answer that is running out
+		 * @return false to have a later hit offer the entry again, when the
+		 *         refresh could not be started now
+		 */
+		boolean prefetch(CacheKey key, DnsAnswer answer);
+	}
+
+	public DnsCache() {
+		this(DEFAULT_MAX_ENTRIES);
+	}
+
+	/**
+	 * Makes a cache bounded by a number of entries, each weighing the same
+	 * however large its answer.
+	 *
+	 * @param maxEntries
+	 * @see #withMaxBytes(long)
+	 */
+	public DnsCache(int maxEntries) {
+		this(maxEntries, entry -> 1, 1);
+	}
+
+	private DnsCache(long maximum, ToIntFunction<Entry> weigher,
+			int minimumWeight) {
+		this.policy = new TinyLfuPolicy<Entry>(entries, maximum, weigher,
+				minimumWeight);
+		this.store = null;
+	}
+
+	private DnsCache(OffHeapRecordStore store) {
+		this.policy = null;
+		this.store = store;
+	}
+
+	/**
+	 * Makes a cache bounded by the heap its answers take, counting each as
+	 * its message plus a fixed estimate for the objects around it.
+	 *
+	 * @param maxBytes
+	 * @return the cache
+	 */
+	public static DnsCache withMaxBytes(long maxBytes) {
+		return new DnsCache(maxBytes, entry -> ENTRY_OVERHEAD
+				+ entry.answer.getMessageView().getMessage().limit(),
+				ENTRY_OVERHEAD + DnsWireParser.SIZE_OF_HEADER);
+	}
+
+	/**
+	 * Makes a cache that keeps its answers off the Java heap. The memory
+	 * counts against -XX:MaxDirectMemorySize and is allocated as it fills.
+	 *
+	 * @param capacityBytes
+	 *            how much memory the answers may take, at least
+	 *            {@link #MIN_OFF_HEAP_CAPACITY}
+	 * @return the cache
+	 */
+	public static DnsCache offHeap(long capacityBytes) {
+		return new DnsCache(new OffHeapRecordStore(capacityBytes));
+	}
+
+	/**
+	 * Turns on refresh-ahead.
+	 *
+	 * @param fraction
+	 *            entries hit with less than this fraction of their TTL left
+	 *            are refreshed, 0.1 for the last tenth for instance
+	 * @param prefetcher
+	 *            starts the refreshes, or null to turn refresh-ahead off
+	 */
+	public void setPrefetch(double fraction, Prefetcher prefetcher) {
+		if (fraction < 0 || fraction >= 1)
+			throw new IllegalArgumentException(
+					"The prefetch fraction must be at least 0 and below 1");
+		this.prefetchFraction = fraction;
+		this.prefetcher = prefetcher;
+	}
+
+	/**
+	 * Keeps expired entries for a while for {@link #getStale(CacheKey)}.
+	 *
+	 * @param seconds
+	 *            how long past their expiry entries are kept, 0 to drop them
+	 *            as soon as they expire
+	 */
+	public void setStaleWindow(long seconds) {
+		if (seconds < 0)
+			throw new IllegalArgumentException(
+					"The stale window cannot be negative");
+		this.staleWindowNanos = TimeUnit.SECONDS.toNanos(seconds);
+	}
+
+	/**
+	 * @param key
+	 * @return a copy of the cached answer with its TTLs counted down to what
+	 *         is left of the entry's, or null if there is none or it has
+	 *         expired
+	 */
+	public DnsAnswer get(CacheKey key) {
+		Entry entry = find(key);
+		if (entry != null) {
+			long remaining = entry.expiresAt - System.nanoTime();
+			if (remaining > 0) {
+				if (policy != null)
+					policy.recordRead(key);
+				hits.increment();
+				if (entry.answer.isNegative())
+					negativeHits.increment();
+				Prefetcher prefetcher = this.prefetcher;
+				if (prefetcher != null
+						&& remaining < entry.ttlNanos * prefetchFraction
+						&& setRefreshing(key, entry, true)
+						&& !prefetcher.prefetch(key, entry.answer))
+					setRefreshing(key, entry, false);
+				return entry.answer.withMaximumTTL((int) Math.min(
+						Integer.MAX_VALUE,
+						TimeUnit.NANOSECONDS.toSeconds(remaining)));
+			}
+			if (remaining + staleWindowNanos <= 0) {
+				if (store != null)
+					store.remove(key, entry.expiresAt);
+				else
+					policy.remove(key, entry);
+			}
+		}
+		misses.increment();
+		return null;
+	}
+
+	/**
+	 * @param key
+	 * @return how many seconds the cached answer has left, or -1 if there is
+	 *         none or it has expired
+	 */
+	public long getRemainingTTL(CacheKey key) {
+		Entry entry = find(key);
+		if (entry == null)
+			return -1;
+		long remaining = entry.expiresAt - System.nanoTime();
+		return remaining > 0 ? TimeUnit.NANOSECONDS.toSeconds(remaining) : -1;
+	}
+
+	/**
+	 * Looks for an answer that has expired but is still within the stale
+	 * window. Its TTLs are as they were received, callers should lower them
+	 * before handing it out. Hits and misses are not counted.
+	 *
+	 * @param key
+	 * @return the answer, fresh or stale, or null if there is none
+	 */
+	public DnsAnswer getStale(CacheKey key) {
+		Entry entry = find(key);
+		if (entry == null
+				|| entry.expiresAt + staleWindowNanos - System.nanoTime() <= 0)
+			return null;
+		return entry.answer;
+	}
+
+	/**
+	 * Lets a later hit hand the entry to the prefetcher again, after the
+	 * refresh it started failed. A refresh that succeeds replaces the entry
+	 * instead.
+	 *
+	 * @param key
+	 */
+	public void refreshFailed(CacheKey key) {
+		if (store != null) {
+			OffHeapRecordStore.Record record = store.get(key);
+			if (record != null)
+				store.setRefreshing(key, record.expiresAt, false);
+			return;
+		}
+		Entry entry = entries.get(key);
+		if (entry != null)
+			entry.refreshing = 0;
+	}
+
+	private boolean setRefreshing(CacheKey key, Entry entry, boolean refreshing) {
+		if (store != null)
+			return store.setRefreshing(key, entry.expiresAt, refreshing);
+		if (refreshing)
+			return Entry.REFRESHING.compareAndSet(entry, 0, 1);
+		entry.refreshing = 0;
+		return true;
+	}
+
+	private Entry find(CacheKey key) {
+		Entry entry = null;
+		if (store != null) {
+			OffHeapRecordStore.Record record = store.get(key);
+			if (record != null)
+				entry = toEntry(record.message, record.ttlNanos,
+						record.expiresAt);
+		} else {
+			entry = entries.get(key);
+		}
+		CacheFile file = this.file;
+		if (entry != null || file == null)
+			return entry;
+
+		CacheFile.Record record = file.find(key);
+		if (record == null)
+			return null;
+		long expiresAt = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(record.expiresAtMillis
+						- System.currentTimeMillis());
+		if (expiresAt + staleWindowNanos - System.nanoTime() <= 0)
+			return null;
+		long ttlNanos = TimeUnit.SECONDS.toNanos(record.ttlSeconds);
+		try {
+			entry = toEntry(record.message, ttlNanos, expiresAt);
+		} catch (RuntimeException e) {
+			// A damaged message in the file is a miss, not a failed lookup
+			return null;
+		}
+		if (store != null) {
+			store.put(key, record.message.duplicate(), ttlNanos, expiresAt);
+			return entry;
+		}
+		Entry raced = policy.putIfAbsent(key, entry);
+		return raced != null ? raced : entry;
+	}
+
+	private static Entry toEntry(ByteBuffer message, long ttlNanos,
+			long expiresAt) {
+		DnsPacketHeader header = new DnsPacketHeader();
+		try {
+			header.parse(message);
+		} catch (Exception e) {
+			// NXDOMAIN answers are cached too
+		}
+		DnsAnswer answer = new DnsAnswer(0);
+		answer.parse(message, header);
+		return new Entry(answer, ttlNanos, expiresAt);
+	}
+
+	/**
+	 * Maps a file written by {@link #save(Path)}. Its answers are read as
+	 * lookups miss in memory, answers already in memory take precedence.
+	 *
+	 * @param path
+	 * @throws IOException
+	 *             if the file cannot be read or is not a cache file; damaged
+	 *             answers in it are found later and skipped as misses
+	 */
+	public void load(Path path) throws IOException {
+		file = CacheFile.open(path);
+	}
+
+	/**
+	 * Writes every answer still within its TTL or stale window to the file,
+	 * including any not yet read from a loaded file. The file is replaced
+	 * atomically.
+	 *
+	 * @param path
+	 * @throws IOException
+	 */
+	public void save(Path path) throws IOException {
+		long nowNanos = System.nanoTime();
+		long nowMillis = System.currentTimeMillis();
+		List<CacheFile.Record> records = new ArrayList<CacheFile.Record>();
+		if (store != null) {
+			for (OffHeapRecordStore.Record record : store.records()) {
+				if (record.expiresAt + staleWindowNanos - nowNanos <= 0)
+					continue;
+				records.add(new CacheFile.Record(record.key, record.message,
+						nowMillis + TimeUnit.NANOSECONDS.toMillis(record.expiresAt
+								- nowNanos), (int) TimeUnit.NANOSECONDS
+								.toSeconds(record.ttlNanos)));
+			}
+		}
+		for (Map.Entry<CacheKey, Entry> mapping : entries.entrySet()) {
+			Entry entry = mapping.getValue();
+			if (entry.expiresAt + staleWindowNanos - nowNanos <= 0)
+				continue;
+			ByteBuffer message = entry.answer.getMessageView().getMessage()
+					.duplicate();
+			message.position(0);
+			records.add(new CacheFile.Record(mapping.getKey(), message,
+					nowMillis + TimeUnit.NANOSECONDS.toMillis(entry.expiresAt
+							- nowNanos), (int) TimeUnit.NANOSECONDS
+							.toSeconds(entry.ttlNanos)));
+		}
+		CacheFile file = this.file;
+		if (file != null) {
+			long staleWindowMillis = TimeUnit.NANOSECONDS
+					.toMillis(staleWindowNanos);
+			for (CacheFile.Record record : file.records()) {
+				if (!contains(record.key)
+						&& record.expiresAtMillis + staleWindowMillis > nowMillis)
+					records.add(record);
+			}
+		}
+		CacheFile.write(path, records);
+	}
+
+	private boolean contains(CacheKey key) {
+		return store != null ? store.contains(key) : entries.containsKey(key);
+	}
+
+	/**
+	 * Caches the answer for as long as its shortest lived record. Negative
+	 * answers are cached for their SOA negative TTL, and not at all when the
+	 * server sent no SOA. Answers with a zero TTL are not cached.
+	 * 
+	 * @param key
+	 * @param answer
+	 */
+	public void put(CacheKey key, DnsAnswer answer) {
+		long ttl;
+		if (answer.isNegative())
+			ttl = Math.min(answer.getNegativeTTL(), MAX_NEGATIVE_TTL);
+		else
+			ttl = answer.getMinimumTTL();
+		if (ttl <= 0)
+			return;
+
+		long ttlNanos = TimeUnit.SECONDS.toNanos(ttl);
+		if (store != null) {
+			// Full segments make room for themselves
+			ByteBuffer message = answer.getMessageView().getMessage()
+					.duplicate();
+			message.position(0);
+			store.put(key, message, ttlNanos, System.nanoTime() + ttlNanos);
+			return;
+		}
+		policy.put(key, new Entry(answer, ttlNanos, System.nanoTime()
+				+ ttlNanos));
+	}
+
+	/**
+	 * Caches the A and AAAA records of the additional section that belong
+	 * to MX and NS targets in the answer or authority section, one answer
+	 * per name and type, unless those are cached already. Only names in
+	 * bailiwick are taken: at or below the question name, or below a zone
+	 * whose NS records the response carries, that the question name is in
+	 * and that is itself within the zone the response came from. That keeps
+	 * a server from planting addresses for names outside its zone.
+	 *
+	 * A response whose additional records cannot be read is ignored, the
+	 * harvest never fails the lookup that brought it.
+	 *
+	 * @param answer
+	 *            a NOERROR response from a recursive server, taken to come
+	 *            from the zone just above the question name
+	 */
+	public void putAdditional(DnsAnswer answer) {
+		putAdditional(answer, null);
+	}
+
+	/**
+	 * @param answer
+	 *            a NOERROR response
+	 * @param zone
+	 *            the zone the answering server was asked as an authority
+	 *            for, or null if that is not known
+	 * @see #putAdditional(DnsAnswer)
+	 */
+	public void putAdditional(DnsAnswer answer, String zone) {
+		DnsMessageView view = answer.getMessageView();
+		if (view.getRCODE() != 0 || !hasAddresses(view))
+			return;
+		try {
+			harvest(answer, view, zone);
+		} catch (RuntimeException e) {
+			// A malformed additional section only costs the harvest
+		}
+	}
+
+	/**
+	 * @return whether the additional section holds any A or AAAA record,
+	 *         which most responses, with only an OPT record there, do not
+	 */
+	private static boolean hasAddresses(DnsMessageView view) {
+		int start = view.getSectionStart(DnsMessageView.ADDITIONAL_SECTION);
+		int end = start + view.getSectionCount(DnsMessageView.ADDITIONAL_SECTION);
+		for (int i = start; i < end; i++) {
+			short type = view.getType(i);
+			if (type == DnsRecord.A_TYPE || type == DnsRecord.AAAA_TYPE)
+				return true;
+		}
+		return false;
+	}
+
+	private void harvest(DnsAnswer answer, DnsMessageView view, String zone) {
+		String qname = DelegationCache.normalize(DnsWireParser.readName(
+				view.getMessage(), DnsWireParser.SIZE_OF_HEADER));
+		// A recursive server's answer is trusted for the question name's
+		// own zone at most, never for the root or a TLD above it
+		if (zone == null)
+			zone = qname.indexOf('.') < 0 ? "" : qname.substring(qname
+					.indexOf('.') + 1);
+		else
+			zone = DelegationCache.normalize(zone);
+
+		Set<String> targets = new HashSet<String>();
+		Set<String> bailiwicks = new HashSet<String>();
+		bailiwicks.add(qname);
+		int end = view.getSectionStart(DnsMessageView.ADDITIONAL_SECTION);
+		for (int i = 0; i < end; i++) {
+			short type = view.getType(i);
+			if (type != DnsRecord.MX_TYPE && type != DnsRecord.NS_TYPE)
+				continue;
+			DnsRecord record = answer.getRecord(i);
+			targets.add(DelegationCache.normalize(record.getTarget()));
+			String owner = DelegationCache.normalize(record.getName());
+			if (type == DnsRecord.NS_TYPE
+					&& DelegationCache.isWithin(qname, owner)
+					&& DelegationCache.isWithin(owner, zone))
+				bailiwicks.add(owner);
+		}
+
+		// The additional records of each name and type, in message order
+		Map<String, List<Integer>> addresses = new LinkedHashMap<String, List<Integer>>();
+		int start = view.getSectionStart(DnsMessageView.ADDITIONAL_SECTION);
+		for (int i = start; i < start
+				+ view.getSectionCount(DnsMessageView.ADDITIONAL_SECTION); i++) {
+			short type = view.getType(i);
+			if (type != DnsRecord.A_TYPE && type != DnsRecord.AAAA_TYPE)
+				continue;
+			// A bogus address would not fit the message written below
+			if (view.getRdataLength(i) != (type == DnsRecord.A_TYPE ? 4 : 16))
+				continue;
+			String owner = DelegationCache.normalize(DnsWireParser.readName(
+					view.getMessage(), view.getNameOffset(i)));
+			if (!targets.contains(owner) || !inBailiwick(owner, bailiwicks))
+				continue;
+			String group = type + " " + owner;
+			List<Integer> records = addresses.get(group);
+			if (records == null)
+				addresses.put(group, records = new ArrayList<Integer>());
+			records.add(i);
+		}
+
+		for (List<Integer> records : addresses.values()) {
+			int first = records.get(0);
+			String owner = DnsWireParser.readName(view.getMessage(),
+					view.getNameOffset(first));
+			CacheKey key = CacheKey.of(owner, view.getType(first),
+					DnsQueryEncoder.IN_CLASS);
+			if (getRemainingTTL(key) >= 0)
+				continue;
+
+			// Written out as the response a lookup of the name would get
+			ByteBuffer message = ByteBuffer.allocate(DnsWireParser.SIZE_OF_HEADER
+					+ (records.size() + 1) * MAX_UNCOMPRESSED_RECORD);
+			DnsMessageWriter writer = new DnsMessageWriter(message, 0,
+					DnsMessageWriter.QR_FLAG | DnsMessageWriter.RD_FLAG
+							| DnsMessageWriter.RA_FLAG);
+			writer.question(owner, view.getType(first),
+					DnsQueryEncoder.IN_CLASS);
+			for (int record : records)
+				writer.copy(DnsMessageView.ANSWER_SECTION, view, record);
+			message.flip();
+			DnsPacketHeader header = new DnsPacketHeader();
+			try {
+				header.parse(message);
+			} catch (Exception e) {
+				// NOERROR, written above
+			}
+			DnsAnswer harvested = new DnsAnswer(0);
+			harvested.parse(message, header);
+			put(key, harvested);
+		}
+	}
+
+	private static boolean inBailiwick(String name, Set<String> zones) {
+		for (String zone : zones) {
+			if (DelegationCache.isWithin(name, zone))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Drops every entry whose TTL and stale window have run out.
+	 */
+	public void purgeExpired() {
+		long now = System.nanoTime() - staleWindowNanos;
+		if (store != null) {
+			store.removeExpired(now);
+			return;
+		}
+		for (Map.Entry<CacheKey, Entry> mapping : entries.entrySet()) {
+			if (mapping.getValue().expiresAt - now <= 0)
+				policy.remove(mapping.getKey(), mapping.getValue());
+		}
+	}
+
+	/**
+	 * Empties the cache, and forgets any loaded file.
+	 */
+	public void clear() {
+		file = null;
+		if (store != null)
+			store.clear();
+		else
+			policy.clear();
+	}
+
+	public int size() {
+		return store != null ? store.size() : entries.size();
+	}
+
+	/**
+	 * @return the entries, or bytes for a cache made by
+	 *         {@link #withMaxBytes(long)}, that the cache holds, or the
+	 *         memory taken by an off-heap cache
+	 */
+	public long getWeightedSize() {
+		return store != null ? store.getAllocated() : policy.getWeightedSize();
+	}
+
+	/**
+	 * @return how many answers were dropped, or not admitted, to stay within
+	 *         the bound
+	 */
+	public long getEvictions() {
+		return policy != null ? policy.getEvictions() : 0;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return how many of the hits were NXDOMAIN or NODATA answers
+	 */
+	public long getNegativeHits() {
+		return negativeHits.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "DnsCache [size=" + size() + ", hits=" + getHits()
+				+ ", negativeHits=" + getNegativeHits() + ", misses="
+				+ getMisses() + ", evictions=" + getEvictions() + "]";
+	}
+
+	private static final class Entry {
+		static final AtomicIntegerFieldUpdater<Entry> REFRESHING = AtomicIntegerFieldUpdater
+				.newUpdater(Entry.class, "refreshing");
+
+		private final DnsAnswer answer;
+		private final long ttlNanos;
+		private final long expiresAt;
+		// Set once the entry has been handed to the prefetcher
+		private volatile int refreshing;
+
+		Entry(DnsAnswer answer, long ttlNanos, long expiresAt) {
+			this.answer = answer;
+			this.ttlNanos = ttlNanos;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
@@ -0,0 +1,839 @@
+package com.telecom.dns;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import javax.management.JMException;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionGroup;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+public class DnsClient {
+
+	private static final String DEFAULT_TIMEOUT = "5";
+	private static final String DEFAULT_MAX_RETRIES = "3";
+	private static final String DEFAULT_PORT = "53";
+	private static final String DEFAULT_SERVER_TYPE = "a";
+	private static final String DEFAULT_WINDOW = "256";
+	private static final String DEFAULT_DURATION = "30";
+	private static final String DEFAULT_EDNS_PAYLOAD = "1232";
+	private static final String DEFAULT_PREFETCH_RATE = "100";
+	private static final String DEFAULT_CLIENT_TIMEOUT = "1.8";
+	private static final String STDIN_FILE = "-";
+
+	private String timeout;
+	private String max_retries;
+	private String port;
+	private String serverType;
+	private String server;
+	private String name;
+	private String inputFile;
+	private String window;
+	private String qps;
+	private String duration;
+	private String ednsPayload;
+	private String metricsPeriod;
+	private String prefetch;
+	private String prefetchRate;
+	private String staleWindow;
+	private String clientTimeout;
+	private String cacheFile;
+	private String cacheSize;
+	private String offHeap;
+	private boolean iterative;
+	private String listen;
+
+	private double timeTookToReceivePacket;
+	private int numberOfRetries;
+	private ArrayList<String> error;
+
+	public static void main(String[] args) {
+		DnsClient dns = new DnsClient();
+		dns.runDnsClient(args);
+	}
+
+	public DnsClient() {
+		// Set all the default values
+		timeout = DEFAULT_TIMEOUT;
+		max_retries = DEFAULT_MAX_RETRIES;
+		port = DEFAULT_PORT;
+		serverType = DEFAULT_SERVER_TYPE;
+		window = DEFAULT_WINDOW;
+		duration = DEFAULT_DURATION;
+		ednsPayload = DEFAULT_EDNS_PAYLOAD;
+		prefetchRate = DEFAULT_PREFETCH_RATE;
+		clientTimeout = DEFAULT_CLIENT_TIMEOUT;
+		error = new ArrayList<String>();
+	}
+
+	/**
+	 * This method receives the information off the command line and parses it.
+	 * The information parsed will be used to set the class fields.
+	 * 
+	 * @param args
+	 * @throws IOException
+	 */
+	private boolean parseCommandLine(String[] args) throws IOException {
+
+		Option timeout = Option.builder("t")
+			.longOpt("timeout")
+			.valueSeparator(' ')
+			.desc("The longest to wait in seconds before retransmision, "
+					+ "the actual wait adapts to the server's round trip time")
+			.hasArg()
+			.build();
+
+		Option maxRetries = Option.builder("r")
+			.longOpt("maxretries")
+			.valueSeparator(' ')
+			.desc("Maximum number of times to retransmit an unanswered query before giving up")
+			.hasArg()
+			.build();
+
+		Option port = Option.builder("p")
+			.longOpt("port")
+			.valueSeparator(' ')
+			.desc("UDP port number of the DNS server")
+			.hasArg()
+			.build();
+
+		Option mx = new Option("mx", "Send a MX (mail server) query, " + 
+			"if neither mx or ns is given then A (IP address) query sent");
+
+		Option ns = new Option("ns", "Send a NS (name server), " + 
+			"if neither mx or ns is given then a type A (IP address) query sent");
+
+		Option server = Option.builder("ip")
+			.desc("The IPv4 address of the DNS server, in a.b.c.d. format, "
+					+ "or a comma separated list of a.b.c.d[:port] servers")
+			.valueSeparator(' ')
+			.required()
+			.hasArg()
+			.build();
+
+		Option name = Option.builder("n")
+			.longOpt("name")
+			.desc("The domain name to query for")
+			.hasArg()
+			.valueSeparator(' ')
+			.required()
+			.build();
+		
+		Option file = Option.builder("f")
+			.longOpt("file")
+			.valueSeparator(' ')
+			.desc("Resolve every name listed in this file, one per line, "
+					+ "instead of a single name (- reads from stdin)")
+			.hasArg()
+			.build();
+
+		Option window = Option.builder("w")
+			.longOpt("window")
+			.valueSeparator(' ')
+			.desc("Maximum number of queries in flight at once when resolving a file "
+					+ "or generating load")
+			.hasArg()
+			.build();
+
+		Option qps = Option.builder("q")
+			.longOpt("qps")
+			.valueSeparator(' ')
+			.desc("Generate load instead: send the queries in the file, "
+					+ "one \"name [type]\" per line, over and over at this rate")
+			.hasArg()
+			.build();
+
+		Option duration = Option.builder("d")
+			.longOpt("duration")
+			.valueSeparator(' ')
+			.desc("How many seconds to generate load for, " + DEFAULT_DURATION
+					+ " by default")
+			.hasArg()
+			.build();
+
+		Option edns = Option.builder("e")
+			.longOpt("edns")
+			.valueSeparator(' ')
+			.desc("UDP payload size to advertise with EDNS0, " + DEFAULT_EDNS_PAYLOAD
+					+ " by default, 0 sends plain 512 byte DNS")
+			.hasArg()
+			.build();
+
+		Option metrics = Option.builder("m")
+			.longOpt("metrics")
+			.valueSeparator(' ')
+			.desc("Publish the resolver metrics over JMX and print them to "
+					+ "stderr every this many seconds")
+			.hasArg()
+			.build();
+
+		Option prefetch = Option.builder("pf")
+			.longOpt("prefetch")
+			.valueSeparator(' ')
+			.desc("Refresh cached answers that are looked up within this "
+					+ "fraction of their TTL of expiring, 0.1 for the last "
+					+ "tenth; turns the cache on, and load is then served "
+					+ "through it too")
+			.hasArg()
+			.build();
+
+		Option prefetchRate = Option.builder("pr")
+			.longOpt("prefetch-rate")
+			.valueSeparator(' ')
+			.desc("The most prefetches to send per second, "
+					+ DEFAULT_PREFETCH_RATE + " by default")
+			.hasArg()
+			.build();
+
+		Option serveStale = Option.builder("s")
+			.longOpt("serve-stale")
+			.valueSeparator(' ')
+			.desc("Keep expired answers for this many seconds and use them, "
+					+ "with a short TTL, when the servers fail or are slow; "
+					+ "turns the cache on, and load is then served through "
+					+ "it too")
+			.hasArg()
+			.build();
+
+		Option clientTimeout = Option.builder("ct")
+			.longOpt("client-timeout")
+			.valueSeparator(' ')
+			.desc("Seconds to wait for a fresh answer before using a stale "
+					+ "one, " + DEFAULT_CLIENT_TIMEOUT + " by default")
+			.hasArg()
+			.build();
+
+		Option cacheFile = Option.builder("c")
+			.longOpt("cache-file")
+			.valueSeparator(' ')
+			.desc("Start from the answers saved in this file, if it exists, "
+					+ "and save the cache back to it on exit")
+			.hasArg()
+			.build();
+
+		Option cacheSize = Option.builder("cs")
+			.longOpt("cache-size")
+			.valueSeparator(' ')
+			.desc("Bound the cache to this many megabytes of answers, keeping "
+					+ "the most often looked up ones once full")
+			.hasArg()
+			.build();
+
+		Option offHeap = Option.builder("oh")
+			.longOpt("off-heap")
+			.valueSeparator(' ')
+			.desc("Keep the cache outside the Java heap in this many "
+					+ "megabytes, evicting the oldest answers when full; the "
+					+ "JVM must allow that much with -XX:MaxDirectMemorySize")
+			.hasArg()
+			.build();
+
+		Option iterative = new Option("it", "iterative", false,
+				"Resolve from the root down without a recursive server, the "
+						+ "servers given are the root hints and every other "
+						+ "name server is asked on the same port");
+
+		Option listen = Option.builder("l")
+			.longOpt("listen")
+			.valueSeparator(' ')
+			.desc("Run as a caching forwarder for other processes, answering "
+					+ "DNS queries on this [address:]port of the loopback "
+					+ "interface or the address given until killed")
+			.hasArg()
+			.build();
+
+		Option help = new Option("h", "help", false, "Print the help");
+
+		Options helpOptions = new Options();
+		helpOptions.addOption(help);
+
+		Options dnsOptions = new Options();
+		dnsOptions.addOption(timeout);
+		dnsOptions.addOption(maxRetries);
+		dnsOptions.addOption(port);
+		dnsOptions.addOption(mx);
+		dnsOptions.addOption(ns);
+		dnsOptions.addOption(file);
+		dnsOptions.addOption(window);
+		dnsOptions.addOption(qps);
+		dnsOptions.addOption(duration);
+		dnsOptions.addOption(edns);
+		dnsOptions.addOption(metrics);
+		dnsOptions.addOption(prefetch);
+		dnsOptions.addOption(prefetchRate);
+		dnsOptions.addOption(serveStale);
+		dnsOptions.addOption(clientTimeout);
+		dnsOptions.addOption(cacheFile);
+		dnsOptions.addOption(cacheSize);
+		dnsOptions.addOption(offHeap);
+		dnsOptions.addOption(iterative);
+		dnsOptions.addOption(listen);
+		dnsOptions.addOption(help);
+		
+		CommandLineParser cmdLineParser = new DefaultParser();
+		
+		CommandLine cmd = null;
+		HelpFormatter helpFormatter = new HelpFormatter();
+		try {
+			// parse the command line arguments
+			CommandLine helpCmd = new DefaultParser().parse(helpOptions, args, true);
+			
+			if (helpCmd.getOptions().length == 1 && helpCmd.hasOption(help.getOpt()) || helpCmd.hasOption(help.getLongOpt())) {
+				helpFormatter.printHelp("dns-client", dnsOptions);
+				return false;
+			} else {
+				cmd = cmdLineParser.parse(dnsOptions, args, false);
+			}
+		}
+		catch(ParseException exp) {
+			// oops, something went wrong
+			System.err.println( "Parsing failed.  Reason: " + exp.getMessage() );
+			helpFormatter.printHelp("dns-client", dnsOptions);
+		}
+
+		if (cmd.hasOption(timeout.getOpt()))
+			this.timeout = cmd.getOptionValue(timeout.getOpt());
+		if (cmd.hasOption(maxRetries.getOpt()))
+			this.max_retries = cmd.getOptionValue(maxRetries.getOpt());
+		if (cmd.hasOption(port.getOpt()))
+			this.port = cmd.getOptionValue(port.getOpt());
+		if (cmd.hasOption(mx.getOpt()))
+			this.serverType = DnsQuestion.getMxType();
+		else if (cmd.hasOption(ns.getOpt()))
+			this.serverType = DnsQuestion.getNsType();
+		if (cmd.hasOption(file.getOpt()))
+			this.inputFile = cmd.getOptionValue(file.getOpt());
+		if (cmd.hasOption(window.getOpt()))
+			this.window = cmd.getOptionValue(window.getOpt());
+		if (cmd.hasOption(qps.getOpt()))
+			this.qps = cmd.getOptionValue(qps.getOpt());
+		if (cmd.hasOption(duration.getOpt()))
+			this.duration = cmd.getOptionValue(duration.getOpt());
+		if (cmd.hasOption(edns.getOpt()))
+			this.ednsPayload = cmd.getOptionValue(edns.getOpt());
+		if (cmd.hasOption(metrics.getOpt()))
+			this.metricsPeriod = cmd.getOptionValue(metrics.getOpt());
+		if (cmd.hasOption(prefetch.getOpt()))
+			this.prefetch = cmd.getOptionValue(prefetch.getOpt());
+		if (cmd.hasOption(prefetchRate.getOpt()))
+			this.prefetchRate = cmd.getOptionValue(prefetchRate.getOpt());
+		if (cmd.hasOption(serveStale.getOpt()))
+			this.staleWindow = cmd.getOptionValue(serveStale.getOpt());
+		if (cmd.hasOption(clientTimeout.getOpt()))
+			this.clientTimeout = cmd.getOptionValue(clientTimeout.getOpt());
+		if (cmd.hasOption(cacheFile.getOpt()))
+			this.cacheFile = cmd.getOptionValue(cacheFile.getOpt());
+		if (cmd.hasOption(cacheSize.getOpt()))
+			this.cacheSize = cmd.getOptionValue(cacheSize.getOpt());
+		if (cmd.hasOption(offHeap.getOpt()))
+			this.offHeap = cmd.getOptionValue(offHeap.getOpt());
+		this.iterative = cmd.hasOption(iterative.getOpt());
+		if (cmd.hasOption(listen.getOpt()))
+			this.listen = cmd.getOptionValue(listen.getOpt());
+
+		if (this.qps != null && this.inputFile == null)
+			throw new IOException("Generating load needs a query file");
+		if (this.listen != null && this.inputFile != null)
+			throw new IOException("A forwarder does not read a query file");
+
+		List<String> parsedOptions = cmd.getArgList();
+		String ipAddress = "";
+		String serverName = "";
+		for (String option : parsedOptions) {
+			if (option.charAt(0) == '@') {
+				ipAddress = option.replace("@", "");
+			} else {
+				serverName = option;
+			}
+		}
+
+		// // Regular expression to find the required IP and Server Name
+		Pattern ipPattern = Pattern
+				.compile("(\\d{1,3}[.]\\d{1,3}[.]\\d{1,3}[.]\\d{1,3})");
+		Pattern serverNamePattern = Pattern
+				.compile("([a-z0-9]+(-[a-z0-9]+)*\\.)+[a-z]{2,}");
+
+		// // Checks the String for the required arguments
+		// // If not found it throws an exception
+		if (ipPattern.matcher(ipAddress).find())
+			if (this.inputFile != null || this.listen != null) {
+				// The names to resolve come from the file or the clients
+				// instead
+				this.server = ipAddress;
+			} else if (serverNamePattern.matcher(serverName).find()) {
+				this.server = ipAddress;
+				this.name = serverName;
+			} else
+				throw new IOException(
+						"Please enter the required arguments @a.b.c.d serverName");
+
+		return true;
+	}
+
+	/**
+	 * This method converts the IP Address from a string to a byte array of size
+	 * 4
+	 * 
+	 * @param ipAddress
+	 * @return byte[] containing the 4 matching IP address bytes
+	 * @throws NumberFormatException
+	 */
+	private byte[] convertStringIpAddressToByteIpAddress(String ipAddress)
+			throws NumberFormatException {
+		// Split the IP address into an array of size 4 removing the periods
+		String[] ip = ipAddress.split("[.]");
+
+		// Ensure that the IP parts are a byte of information [0, 255]
+		for (String i : ip) {
+			int ipValue = Integer.parseInt(i);
+			if (ipValue < 0 || ipValue > 255)
+				throw new NumberFormatException(
+						"The ipAddress has one or more dotted-decimal entries > 255 or < 0");
+		}
+
+		byte[] byteIpAddress = new byte[4];
+		byteIpAddress[3] = (byte) Integer.parseInt(ip[3]);
+		byteIpAddress[2] = (byte) Integer.parseInt(ip[2]);
+		byteIpAddress[1] = (byte) Integer.parseInt(ip[1]);
+		byteIpAddress[0] = (byte) Integer.parseInt(ip[0]);
+
+		return byteIpAddress;
+	}
+
+	/**
+	 * Formats one answer record as a tab separated line, or returns null if
+	 * the record type is not one that the client prints.
+	 * 
+	 * @param record
+	 * @param auth
+	 * @return the formatted record
+	 */
+	static String formatAnswer(DnsRecord record, String auth) {
+		switch (record.getType()) {
+		case DnsRecord.CNAME_TYPE:
+			return "CNAME	" + record.getTarget() + "	" + record.getTTL() + "	"
+					+ auth;
+		case DnsRecord.A_TYPE:
+		case DnsRecord.AAAA_TYPE:
+			return "IP	" + record.getAddress().getHostAddress() + "	"
+					+ record.getTTL() + "	" + auth;
+		case DnsRecord.MX_TYPE:
+			return "MX	" + record.getTarget() + "	" + record.getPreference()
+					+ "	" + record.getTTL() + "	" + auth;
+		case DnsRecord.NS_TYPE:
+			return "NS	" + record.getTarget() + "	" + record.getTTL() + "	"
+					+ auth;
+		}
+		return null;
+	}
+
+	private void printOutput(DnsPacketHeader header, DnsAnswer answer) {
+		String auth;
+		if (header.getAA() == 1)
+			auth = "AUTH";
+		else 
+			auth = "NONAUTH";
+		
+		System.out.println("DnsClient sending request for " + this.name);
+		System.out.println("Server: " + this.server);
+		System.out.println("Request type: " + this.serverType.toUpperCase());
+		System.out.println();
+
+		System.out.println(String.format(
+				"Response received after %.3f milliseconds (%d retries)",
+				this.timeTookToReceivePacket, numberOfRetries));
+		System.out.println();
+
+		System.out.println("***Answer Section (" + header.getANCOUNT()
+				+ " records)***");
+		Iterator<DnsRecord> iterator = answer.getRecords().iterator();
+		while (iterator.hasNext()) {
+			String record = formatAnswer(iterator.next(), auth);
+			if (record != null)
+				System.out.println(record);
+		}
+
+		// The OPT pseudo-record is not part of the additional data
+		DnsMessageView view = answer.getMessageView();
+		List<DnsRecord> additional = answer
+				.getRecords(DnsAnswer.ADDITIONAL_SECTION);
+		System.out.println("***Additional Section (" + additional.size()
+				+ " records)***");
+		if (additional.isEmpty())
+			System.out.println("NOTFOUND");
+		for (DnsRecord record : additional) {
+			String line = formatAnswer(record, auth);
+			if (line != null)
+				System.out.println(record.getName() + "	" + line);
+		}
+		if (view.getOptRecord() >= 0)
+			System.out.println("EDNS	version " + view.getEdnsVersion()
+					+ "	udp " + view.getUdpPayloadSize());
+
+		System.out.println();
+		if (error != null)
+			for (String i : error)
+				System.out.println("ERROR" + "	" + i);
+	}
+
+	private void runBulk(Resolver resolver, BufferedReader inCommand) {
+		BulkResolver bulkResolver;
+		try {
+			bulkResolver = new BulkResolver(resolver, this.serverType,
+					Integer.parseInt(this.window));
+		} catch (NumberFormatException n) {
+			System.err.println("ERROR" + "	"
+					+ "The window value needs to be a number");
+			return;
+		}
+
+		BufferedReader names = null;
+		try {
+			if (STDIN_FILE.equals(this.inputFile))
+				names = inCommand;
+			else
+				names = new BufferedReader(new FileReader(this.inputFile));
+			bulkResolver.run(names, System.out);
+		} catch (IOException e) {
+			error.add(e.getMessage());
+			System.err.println("ERROR	" + e.getMessage());
+		} finally {
+			try {
+				if (names != null)
+					names.close();
+			} catch (IOException e) {
+				System.err.println("ERROR	" + e.getMessage());
+			}
+		}
+	}
+
+	private void runLoad(Resolver resolver, BufferedReader inCommand) {
+		BufferedReader lines = null;
+		try {
+			if (STDIN_FILE.equals(this.inputFile))
+				lines = inCommand;
+			else
+				lines = new BufferedReader(new FileReader(this.inputFile));
+			List<LoadGenerator.Query> queries = LoadGenerator.readQueries(
+					lines, this.serverType);
+
+			new LoadGenerator(resolver, queries, Double.parseDouble(this.qps),
+					Long.parseLong(this.duration) * 1000L,
+					Integer.parseInt(this.window)).run(System.out);
+		} catch (NumberFormatException n) {
+			System.err.println("ERROR" + "	"
+					+ "The qps, duration and window values need to be numbers");
+		} catch (IllegalArgumentException e) {
+			System.err.println("ERROR	" + e.getMessage());
+		} catch (IOException e) {
+			error.add(e.getMessage());
+			System.err.println("ERROR	" + e.getMessage());
+		} finally {
+			try {
+				if (lines != null)
+					lines.close();
+			} catch (IOException e) {
+				System.err.println("ERROR	" + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Serves other processes' queries until the JVM is told to shut down,
+	 * then returns so the cache is saved on the way out.
+	 */
+	private void runForwarder(Resolver resolver) {
+		InetSocketAddress bindAddress;
+		try {
+			int colon = this.listen.lastIndexOf(':');
+			InetAddress address = colon < 0 ? InetAddress.getLoopbackAddress()
+					: InetAddress.getByName(this.listen.substring(0, colon));
+			bindAddress = new InetSocketAddress(address,
+					Integer.parseInt(this.listen.substring(colon + 1)));
+		} catch (NumberFormatException n) {
+			System.err.println("ERROR" + "	"
+					+ "The listen port needs to be a number");
+			return;
+		} catch (UnknownHostException e) {
+			System.err.println("ERROR" + "	"
+					+ "The listen address cannot be resolved");
+			return;
+		} catch (IllegalArgumentException e) {
+			System.err.println("ERROR	" + e.getMessage());
+			return;
+		}
+
+		DnsForwarder forwarder;
+		try {
+			forwarder = new DnsForwarder(resolver, bindAddress);
+		} catch (IOException e) {
+			System.err.println("ERROR" + "	" + "The forwarder could not listen on "
+					+ bindAddress + ": " + e.getMessage());
+			return;
+		}
+		System.err.println("Forwarding queries on " + forwarder.getAddress());
+
+		// The shutdown hook stops the forwarder and waits for this thread to
+		// finish saving the cache, the JVM exits as soon as the hooks return
+		CountDownLatch stopped = new CountDownLatch(1);
+		Thread main = Thread.currentThread();
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+				forwarder.close();
+			} catch (IOException e) {
+				System.err.println("ERROR	" + e.getMessage());
+			}
+			stopped.countDown();
+			try {
+				main.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}, "dns-forwarder-shutdown"));
+		try {
+			stopped.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		System.err.println("Forwarder: " + forwarder.summary());
+	}
+
+	private void printCacheStats(Resolver resolver) {
+		DnsCache cache = resolver.getCache();
+		System.err.println("Cache: " + cache.getHits() + " hits ("
+				+ cache.getNegativeHits() + " negative), "
+				+ cache.getMisses() + " misses, "
+				+ resolver.getMetrics().getPrefetches() + " prefetched, "
+				+ resolver.getMetrics().getStaleAnswers() + " served stale");
+	}
+
+	private void printServerStats(Resolver resolver) {
+		if (resolver.getServerStats().size() < 2)
+			return;
+		for (ServerStats stats : resolver.getServerStats())
+			System.err.println("Server " + stats.summary());
+	}
+
+	private void runDnsClient(String[] args) {
+		// Create reader to read user input from command line
+		BufferedReader inCommand = new BufferedReader(new InputStreamReader(
+				System.in));
+
+		// Extract the arguments from the command line
+		try {
+			if (!parseCommandLine(args)) {
+				return; // help option chosen
+			}
+		} catch (IOException e) {
+			error.add(e.getMessage());
+			System.err.println("ERROR	" + e.getMessage());
+			return;
+		}
+
+		if (this.iterative
+				&& (this.qps != null || this.prefetch != null || this.staleWindow != null)) {
+			System.err.println("ERROR" + "	"
+					+ "Load, prefetch and serve-stale need a recursive server");
+			return;
+		}
+
+		// Create the InetAddresses by converting the IP arguments into 4 bytes
+		List<InetSocketAddress> servers = new ArrayList<InetSocketAddress>();
+		int nameserverPort;
+		try {
+			nameserverPort = Integer.parseInt(this.port);
+			for (String entry : server.split(",")) {
+				String[] ipAndPort = entry.trim().split(":");
+				InetAddress serverIpAddress = InetAddress
+						.getByAddress(convertStringIpAddressToByteIpAddress(ipAndPort[0]));
+				servers.add(new InetSocketAddress(serverIpAddress, Integer
+						.parseInt(ipAndPort.length > 1 ? ipAndPort[1]
+								: this.port)));
+			}
+		} catch (NumberFormatException n) {
+			error.add(n.getMessage());
+			System.err.println("ERROR" + "	"
+					+ "The server addresses and port need to be numbers");
+			return;
+		} catch (UnknownHostException e) {
+			error.add("The IP address cannot be resolved");
+			System.err.println("ERROR	" + "The IP address cannot be resolved");
+			return;
+		} catch (NullPointerException f) {
+			error.add("The IpAddress is missing dotted-decimal entries");
+			System.err.println("ERROR" + "	"
+					+ "The IpAddress is missing dotted-decimal entries");
+			return;
+		}
+
+		// A single lookup per run gains nothing from caching unless the cache
+		// is kept between runs, a list of names often repeats them. Load has
+		// to reach the server so it is only cached when prefetching or
+		// serving stale, to see how well those work. A forwarder is there to
+		// share its cache. Prefetch and serve-stale work on the cache, so
+		// asking for either turns it on
+		boolean cached = this.cacheFile != null || this.cacheSize != null
+				|| this.offHeap != null
+				|| this.listen != null
+				|| this.prefetch != null || this.staleWindow != null
+				|| this.inputFile != null && this.qps == null;
+
+		Resolver.Builder builder = Resolver.builder().servers(servers);
+		try {
+			builder.timeout((long) (Double.parseDouble(this.timeout) * 1000))
+					.maxRetries(Integer.parseInt(this.max_retries))
+					.edns(Integer.parseInt(this.ednsPayload));
+		} catch (NumberFormatException n) {
+			System.err.println("ERROR" + "	"
+					+ "The timeout, retries, port and edns values need to be numbers");
+			return;
+		}
+		if (this.iterative)
+			builder.iterative(nameserverPort);
+		if (this.offHeap != null) {
+			try {
+				builder.offHeapCache(Long.parseLong(this.offHeap) << 20);
+			} catch (NumberFormatException n) {
+				System.err.println("ERROR" + "	"
+						+ "The off-heap cache size needs to be a number");
+				return;
+			} catch (IllegalArgumentException e) {
+				System.err.println("ERROR	" + e.getMessage());
+				return;
+			}
+		} else if (this.cacheSize != null) {
+			try {
+				builder.cacheBytes(Long.parseLong(this.cacheSize) << 20);
+			} catch (NumberFormatException n) {
+				System.err.println("ERROR" + "	"
+						+ "The cache size needs to be a number");
+				return;
+			} catch (IllegalArgumentException e) {
+				System.err.println("ERROR	" + e.getMessage());
+				return;
+			}
+		} else if (cached) {
+			builder.cache();
+		}
+		if (this.cacheFile != null)
+			builder.cacheFile(Paths.get(this.cacheFile));
+
+		if (this.prefetch != null) {
+			try {
+				builder.prefetch(Double.parseDouble(this.prefetch),
+						Double.parseDouble(this.prefetchRate));
+			} catch (NumberFormatException n) {
+				System.err.println("ERROR" + "	"
+						+ "The prefetch fraction and rate need to be numbers");
+			}
+		}
+
+		if (this.staleWindow != null) {
+			try {
+				builder.serveStale(Long.parseLong(this.staleWindow),
+						(long) (Double.parseDouble(this.clientTimeout) * 1000));
+			} catch (NumberFormatException n) {
+				System.err.println("ERROR" + "	"
+						+ "The stale window and client timeout need to be numbers");
+			}
+		}
+
+		Resolver resolver;
+		try {
+			resolver = builder.build();
+		} catch (IllegalArgumentException e) {
+			System.err.println("ERROR	" + e.getMessage());
+			return;
+		} catch (IOException e) {
+			error.add("ERROR" + "	" + e.getMessage());
+			System.err.println("ERROR" + "	" + e.getMessage());
+			return;
+		}
+
+		if (this.metricsPeriod != null) {
+			try {
+				resolver.getMetrics().register("dns-client");
+				resolver.getMetrics().startDump(System.err,
+						Long.parseLong(this.metricsPeriod));
+			} catch (NumberFormatException n) {
+				System.err.println("ERROR" + "	"
+						+ "The metrics period needs to be a number");
+			} catch (JMException e) {
+				System.err.println("ERROR" + "	"
+						+ "The metrics MBean could not be registered: "
+						+ e.getMessage());
+			}
+		}
+
+		try {
+			if (this.listen != null) {
+				runForwarder(resolver);
+				printCacheStats(resolver);
+				return;
+			}
+
+			if (this.qps != null) {
+				runLoad(resolver, inCommand);
+				if (resolver.getCache() != null)
+					printCacheStats(resolver);
+				printServerStats(resolver);
+				return;
+			}
+
+			// Resolve a whole list of names over one socket
+			if (this.inputFile != null) {
+				runBulk(resolver, inCommand);
+				printCacheStats(resolver);
+				printServerStats(resolver);
+				return;
+			}
+
+			DnsAnswer dnsAnswer;
+			try {
+				dnsAnswer = resolver.lookup(this.name, this.serverType).get();
+			} catch (ExecutionException e) {
+				error.add(e.getCause().getMessage());
+				System.err.println("ERROR" + "	" + e.getCause().getMessage());
+				return;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+
+			this.timeTookToReceivePacket = dnsAnswer.getResponseTimeNanos()
+					/ (double) TimeUnit.MILLISECONDS.toNanos(1);
+			this.numberOfRetries = dnsAnswer.getRetries();
+			if (dnsAnswer.getHeader().getError() != null)
+				error.add(dnsAnswer.getHeader().getError());
+
+			printOutput(dnsAnswer.getHeader(), dnsAnswer);
+		} finally {
+			if (this.metricsPeriod != null)
+				System.err.print(resolver.getMetrics().dump());
+			try {
+				resolver.close();
+			} catch (IOException e) {
+				System.err.println("ERROR	" + e.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,690 @@
+package com.telecom.dns;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A caching DNS forwarder. It listens on a UDP and TCP port for queries
+ * from other processes and answers them through a {@link Resolver}, so
+ * every process on a host shares one warm cache and one set of upstream
+ * sockets.
+ *
+ * One selector thread reads every query and writes every response, over
+ * UDP and over persistent, pipelined TCP connections (RFC 7766), so
+ * thousands of clients cost no thread each. Lookups are handed to the
+ * resolver, which coalesces identical ones, and their responses are
+ * written back with the client's own ID and question, the cached TTLs
+ * counted down, and the client's EDNS0 payload size honoured: a response
+ * too large for it is sent truncated so the client asks again over TCP.
+ *
+ * Only standard queries with one question in class IN are forwarded, other
+ * opcodes get NOTIMP, other classes REFUSED, and lookups that fail without
+ * a response from upstream SERVFAIL.
+ */
+public class DnsForwarder implements Closeable {
+
+	private static final int MAX_MESSAGE_SIZE = 65535;
+	private static final int PLAIN_UDP_PAYLOAD = 512;
+	// Advertised to EDNS clients, the size that avoids IP fragmentation
+	private static final int UDP_PAYLOAD = 1232;
+	private static final int MAX_TCP_QUERY = 4096;
+	private static final int MAX_TCP_CONNECTIONS = 4096;
+	// A connection stops being read while this many of its queries are out
+	private static final int MAX_PIPELINED = 64;
+	// Queries beyond this many in progress are dropped, clients retry
+	private static final int MAX_OUTSTANDING = 1 << 16;
+	private static final long TCP_IDLE_NANOS = TimeUnit.SECONDS.toNanos(10);
+	private static final long SELECT_MILLIS = 1000;
+	// Room for a burst of queries from many clients at once, the kernel
+	// may cap it lower
+	private static final int UDP_RECEIVE_BUFFER = 4 << 20;
+
+	private static final int FORMERR = 1;
+	private static final int SERVFAIL = 2;
+	private static final int NOTIMP = 4;
+	private static final int REFUSED = 5;
+
+	private final Resolver resolver;
+	private final DatagramChannel udp;
+	private final ServerSocketChannel tcp;
+	private final InetSocketAddress address;
+	private final Selector selector;
+	private final Thread ioThread;
+	private final Queue<Reply> replies = new ConcurrentLinkedQueue<Reply>();
+	private final AtomicBoolean wakeupPending = new AtomicBoolean();
+	private final AtomicInteger outstanding = new AtomicInteger();
+	private volatile boolean running = true;
+
+	// Only touched by the I/O thread
+	private final ByteBuffer receiveBuffer = ByteBuffer
+			.allocateDirect(MAX_MESSAGE_SIZE);
+	private final DnsMessageView queryView = new DnsMessageView();
+	private final List<Connection> connections = new ArrayList<Connection>();
+
+	private final LongAdder udpQueries = new LongAdder();
+	private final LongAdder tcpQueries = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+	private final LongAdder truncated = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+
+	/**
+	 * Binds UDP and TCP to the address and starts the I/O thread.
+	 *
+	 * @param resolver
+	 *            answers the queries, best built with a cache
+	 * @param bindAddress
+	 *            where to listen, port 0 picks a port free for UDP
+	 * @throws IOException
+	 *             if either port cannot be bound
+	 */
+	public DnsForwarder(Resolver resolver, InetSocketAddress bindAddress)
+			throws IOException {
+		this.resolver = resolver;
+		this.selector = Selector.open();
+		this.udp = DatagramChannel.open();
+		this.tcp = ServerSocketChannel.open();
+		try {
+			udp.setOption(StandardSocketOptions.SO_RCVBUF, UDP_RECEIVE_BUFFER);
+			udp.bind(bindAddress);
+			// TCP goes on whatever port UDP got
+			tcp.bind(udp.getLocalAddress(), MAX_TCP_CONNECTIONS);
+			udp.configureBlocking(false);
+			tcp.configureBlocking(false);
+			udp.register(selector, SelectionKey.OP_READ);
+			tcp.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			udp.close();
+			tcp.close();
+			selector.close();
+			throw e;
+		}
+		this.address = (InetSocketAddress) udp.getLocalAddress();
+
+		this.ioThread = new Thread(this::ioLoop, "dns-forwarder");
+		this.ioThread.setDaemon(true);
+		this.ioThread.start();
+	}
+
+	/**
+	 * @return the address and port being listened on
+	 */
+	public InetSocketAddress getAddress() {
+		return address;
+	}
+
+	public long getUdpQueries() {
+		return udpQueries.sum();
+	}
+
+	public long getTcpQueries() {
+		return tcpQueries.sum();
+	}
+
+	/**
+	 * @return how many queries were answered SERVFAIL because the lookup got
+	 *         no response
+	 */
+	public long getFailures() {
+		return failures.sum();
+	}
+
+	/**
+	 * @return how many UDP responses were too large for the client
+	 */
+	public long getTruncated() {
+		return truncated.sum();
+	}
+
+	/**
+	 * @return how many queries went unanswered because too many were in
+	 *         progress or the response could not be sent
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * @return a one line summary of the counters
+	 */
+	public String summary() {
+		return "udp queries " + getUdpQueries() + ", tcp queries "
+				+ getTcpQueries() + ", servfail " + getFailures()
+				+ ", truncated " + getTruncated() + ", dropped "
+				+ getDropped();
+	}
+
+	/**
+	 * Stops listening and closes every client connection. Lookups still in
+	 * progress are not answered.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (!running)
+			return;
+		running = false;
+		selector.wakeup();
+		try {
+			ioThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (Connection connection : new ArrayList<Connection>(connections))
+			connection.close();
+		udp.close();
+		tcp.close();
+		selector.close();
+	}
+
+	/**
+	 * A response on its way back to a client, over UDP when the connection
+	 * is null.
+	 */
+	private static final class Reply {
+		final Connection connection;
+		final SocketAddress client;
+		final ByteBuffer message;
+
+		Reply(Connection connection, SocketAddress client, ByteBuffer message) {
+			this.connection = connection;
+			this.client = client;
+			this.message = message;
+		}
+	}
+
+	/**
+	 * What is needed of a query to answer it once its lookup completes.
+	 */
+	private static final class Query {
+		final int id;
+		final boolean recursionDesired;
+		// The QNAME, QTYPE and QCLASS exactly as the client sent them
+		final byte[] question;
+		final String name;
+		final short qtype;
+		// -1 if the client sent no OPT record
+		final int udpPayloadSize;
+
+		Query(int id, boolean recursionDesired, byte[] question, String name,
+				short qtype, int udpPayloadSize) {
+			this.id = id;
+			this.recursionDesired = recursionDesired;
+			this.question = question;
+			this.name = name;
+			this.qtype = qtype;
+			this.udpPayloadSize = udpPayloadSize;
+		}
+	}
+
+	private void ioLoop() {
+		long lastIdleCheck = System.nanoTime();
+		while (running) {
+			try {
+				selector.select(SELECT_MILLIS);
+				wakeupPending.set(false);
+				if (!running)
+					break;
+				for (SelectionKey key : selector.selectedKeys()) {
+					if (!key.isValid())
+						continue;
+					if (key.channel() == udp)
+						receiveUdp();
+					else if (key.channel() == tcp)
+						accept();
+					else
+						((Connection) key.attachment()).handle();
+				}
+				selector.selectedKeys().clear();
+				sendReplies();
+
+				long now = System.nanoTime();
+				if (now - lastIdleCheck >= TimeUnit.MILLISECONDS
+						.toNanos(SELECT_MILLIS)) {
+					closeIdle(now);
+					lastIdleCheck = now;
+				}
+			} catch (IOException e) {
+				if (running)
+					System.err.println("ERROR	Forwarder select failed: "
+							+ e.getMessage());
+			}
+		}
+	}
+
+	private void receiveUdp() throws IOException {
+		SocketAddress client;
+		while ((client = receive()) != null) {
+			udpQueries.increment();
+			SocketAddress from = client;
+			handleQuery(receiveBuffer, message -> reply(new Reply(null, from,
+					message)), true);
+		}
+	}
+
+	private SocketAddress receive() throws IOException {
+		receiveBuffer.clear();
+		SocketAddress client = udp.receive(receiveBuffer);
+		receiveBuffer.flip();
+		return client;
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = tcp.accept()) != null) {
+			if (connections.size() >= MAX_TCP_CONNECTIONS) {
+				channel.close();
+				continue;
+			}
+			try {
+				connections.add(new Connection(channel));
+			} catch (IOException e) {
+				channel.close();
+			}
+		}
+	}
+
+	private void closeIdle(long now) {
+		for (int i = connections.size() - 1; i >= 0; i--) {
+			Connection connection = connections.get(i);
+			if (connection.pending == 0 && connection.writes.isEmpty()
+					&& now - connection.lastActive > TCP_IDLE_NANOS)
+				connection.close();
+		}
+	}
+
+	/**
+	 * Receives the finished responses of one transport.
+	 */
+	private interface Responder {
+		void respond(ByteBuffer message);
+	}
+
+	/**
+	 * Parses a query and starts its lookup. The message is only read before
+	 * this returns, so the buffer can be reused.
+	 *
+	 * @return false if the query is dropped and the responder will never be
+	 *         called
+	 */
+	private boolean handleQuery(ByteBuffer message, Responder responder,
+			boolean overUdp) {
+		DnsMessageView view = queryView.wrap(message);
+		if (!view.hasHeader() || view.isResponse())
+			return false;
+		int id = view.getID();
+		boolean recursionDesired = view.isRecursionDesired();
+
+		Query query;
+		short qclass;
+		try {
+			if (view.getQDCOUNT() != 1) {
+				responder.respond(error(id, recursionDesired, null,
+						view.getOPCODE() != 0 ? NOTIMP : FORMERR, -1));
+				return true;
+			}
+			int typeOffset = view.getQuestionTypeOffset();
+			byte[] question = new byte[typeOffset + 4
+					- DnsWireParser.SIZE_OF_HEADER];
+			for (int i = 0; i < question.length; i++)
+				question[i] = message.get(DnsWireParser.SIZE_OF_HEADER + i);
+			qclass = message.getShort(typeOffset + 2);
+			query = new Query(id, recursionDesired, question,
+					DnsWireParser.readName(message,
+							DnsWireParser.SIZE_OF_HEADER),
+					message.getShort(typeOffset), view.getUdpPayloadSize());
+		} catch (RuntimeException e) {
+			responder.respond(error(id, recursionDesired, null, FORMERR, -1));
+			return true;
+		}
+
+		if (view.getOPCODE() != 0 || qclass != DnsQueryEncoder.IN_CLASS) {
+			responder.respond(error(query, view.getOPCODE() != 0 ? NOTIMP
+					: REFUSED));
+			return true;
+		}
+		if (outstanding.incrementAndGet() > MAX_OUTSTANDING) {
+			outstanding.decrementAndGet();
+			dropped.increment();
+			return false;
+		}
+
+		CompletableFuture<DnsAnswer> lookup;
+		try {
+			lookup = resolver.lookup(query.name, query.qtype);
+		} catch (RuntimeException e) {
+			lookup = new CompletableFuture<DnsAnswer>();
+			lookup.completeExceptionally(e);
+		}
+		lookup.whenComplete((answer, error) -> {
+			outstanding.decrementAndGet();
+			if (error instanceof CompletionException && error.getCause() != null)
+				error = error.getCause();
+			if (error instanceof DnsResponseException
+					&& ((DnsResponseException) error).getAnswer() != null)
+				answer = ((DnsResponseException) error).getAnswer();
+			else if (error != null) {
+				failures.increment();
+				responder.respond(error(query, SERVFAIL));
+				return;
+			}
+			try {
+				responder.respond(forward(query, answer, overUdp));
+			} catch (RuntimeException e) {
+				failures.increment();
+				responder.respond(error(query, SERVFAIL));
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Rewrites the resolver's response for the client: its ID and flags,
+	 * its question, TTLs counted down to what is left in the cache, and an
+	 * OPT record only if the client sent one.
+	 */
+	private ByteBuffer forward(Query query, DnsAnswer answer, boolean overUdp) {
+		DnsMessageView view = answer.getMessageView();
+		ByteBuffer source = view.getMessage().duplicate();
+		source.position(0);
+		int opt = view.getOptRecord();
+		// An answer for the end of a CNAME chain has another question, and
+		// is written out again under the client's
+		if (view.getQDCOUNT() != 1
+				|| view.getQuestionEnd() != DnsWireParser.SIZE_OF_HEADER
+						+ query.question.length
+				|| !query.name.equalsIgnoreCase(DnsWireParser.readName(source,
+						DnsWireParser.SIZE_OF_HEADER))
+				|| opt >= 0 && opt != view.getRecordCount() - 1)
+			return rebuild(query, answer, overUdp);
+
+		// Otherwise the message is copied as it is and patched, less the
+		// resolver's own OPT record
+		int arcount = view.getARCOUNT();
+		if (opt >= 0) {
+			source.limit(view.getNameOffset(opt));
+			arcount--;
+		}
+		ByteBuffer out = ByteBuffer.allocate(source.remaining()
+				+ DnsWireParser.SIZE_OF_RECORD_FIELDS + 1);
+		out.put(source);
+		out.putShort(DnsWireParser.SIZE_OF_HEADER - 2, (short) arcount);
+		for (int i = 0; i < query.question.length; i++)
+			out.put(DnsWireParser.SIZE_OF_HEADER + i, query.question[i]);
+		return finish(query, out, view.getRCODE(), overUdp);
+	}
+
+	private ByteBuffer rebuild(Query query, DnsAnswer answer, boolean overUdp) {
+		DnsMessageView view = answer.getMessageView();
+		// Room for the question and the copies, and the OPT record finish adds
+		int length = DnsWireParser.SIZE_OF_HEADER
+				+ DnsWireParser.MAX_NAME_LENGTH + 4
+				+ DnsWireParser.SIZE_OF_RECORD_FIELDS + 1;
+		for (int i = 0; i < view.getRecordCount(); i++)
+			length += DnsMessageWriter.maxCopyLength(view, i);
+		ByteBuffer out = ByteBuffer.allocate(length);
+		DnsMessageWriter writer = new DnsMessageWriter(out, query.id, 0)
+				.question(query.name, query.qtype, DnsQueryEncoder.IN_CLASS);
+		int authority = view.getSectionStart(DnsMessageView.AUTHORITY_SECTION);
+		int additional = view.getSectionStart(DnsMessageView.ADDITIONAL_SECTION);
+		for (int i = 0; i < view.getRecordCount(); i++) {
+			if (view.getType(i) == DnsRecord.OPT_TYPE)
+				continue;
+			writer.copy(i < authority ? DnsMessageView.ANSWER_SECTION
+					: i < additional ? DnsMessageView.AUTHORITY_SECTION
+							: DnsMessageView.ADDITIONAL_SECTION, view, i);
+		}
+		return finish(query, out, view.getRCODE(), overUdp);
+	}
+
+	/**
+	 * Sets the header, counts the TTLs down, adds the OPT record and
+	 * truncates the message if it is too large for the client.
+	 *
+	 * @param out
+	 *            the message so far, header and question included, with
+	 *            room left for an OPT record
+	 */
+	private ByteBuffer finish(Query query, ByteBuffer out, int rcode,
+			boolean overUdp) {
+		out.putShort(0, (short) query.id);
+		out.putShort(2, (short) flags(query, rcode));
+
+		long remaining = -1;
+		DnsCache cache = resolver.getCache();
+		if (cache != null)
+			remaining = cache.getRemainingTTL(CacheKey.of(query.name,
+					query.qtype, DnsQueryEncoder.IN_CLASS));
+		if (remaining >= 0) {
+			ByteBuffer message = out.duplicate();
+			message.flip();
+			DnsMessageView view = new DnsMessageView().wrap(message);
+			for (int i = 0; i < view.getRecordCount(); i++) {
+				if ((view.getTTL(i) & 0xffffffffL) > remaining)
+					out.putInt(view.getTTLOffset(i), (int) remaining);
+			}
+		}
+
+		if (query.udpPayloadSize >= 0)
+			DnsQueryEncoder.writeOpt(out, 0, UDP_PAYLOAD);
+		out.flip();
+
+		int limit = Math.min(UDP_PAYLOAD,
+				Math.max(PLAIN_UDP_PAYLOAD, query.udpPayloadSize));
+		if (overUdp && out.remaining() > limit) {
+			truncated.increment();
+			ByteBuffer cut = ByteBuffer.allocate(DnsWireParser.SIZE_OF_HEADER
+					+ query.question.length + DnsWireParser.SIZE_OF_RECORD_FIELDS
+					+ 1);
+			cut.putShort((short) query.id);
+			cut.putShort((short) (flags(query, rcode) | DnsMessageWriter.TC_FLAG));
+			cut.putShort((short) 1).putShort((short) 0).putShort((short) 0)
+					.putShort((short) 0);
+			cut.put(query.question);
+			if (query.udpPayloadSize >= 0)
+				DnsQueryEncoder.writeOpt(cut, 0, UDP_PAYLOAD);
+			cut.flip();
+			return cut;
+		}
+		return out;
+	}
+
+	private ByteBuffer error(Query query, int rcode) {
+		return error(query.id, query.recursionDesired, query.question, rcode,
+				query.udpPayloadSize);
+	}
+
+	private static ByteBuffer error(int id, boolean recursionDesired,
+			byte[] question, int rcode, int udpPayloadSize) {
+		ByteBuffer out = ByteBuffer.allocate(DnsWireParser.SIZE_OF_HEADER
+				+ (question != null ? question.length : 0)
+				+ DnsWireParser.SIZE_OF_RECORD_FIELDS + 1);
+		out.putShort((short) id);
+		out.putShort((short) (DnsMessageWriter.QR_FLAG
+				| DnsMessageWriter.RA_FLAG
+				| (recursionDesired ? DnsMessageWriter.RD_FLAG : 0) | rcode));
+		out.putShort((short) (question != null ? 1 : 0)).putShort((short) 0)
+				.putShort((short) 0).putShort((short) 0);
+		if (question != null)
+			out.put(question);
+		if (udpPayloadSize >= 0)
+			DnsQueryEncoder.writeOpt(out, 0, UDP_PAYLOAD);
+		out.flip();
+		return out;
+	}
+
+	/**
+	 * The answer is the forwarder's, so it is never authoritative.
+	 */
+	private static int flags(Query query, int rcode) {
+		return DnsMessageWriter.QR_FLAG | DnsMessageWriter.RA_FLAG
+				| (query.recursionDesired ? DnsMessageWriter.RD_FLAG : 0)
+				| rcode;
+	}
+
+	/**
+	 * Hands a response to the I/O thread.
+	 */
+	private void reply(Reply reply) {
+		replies.add(reply);
+		// Responses from the cache are produced on the I/O thread itself,
+		// which sends them before it next selects
+		if (Thread.currentThread() != ioThread
+				&& wakeupPending.compareAndSet(false, true))
+			selector.wakeup();
+	}
+
+	private void sendReplies() {
+		Reply reply;
+		while ((reply = replies.poll()) != null) {
+			if (reply.connection != null) {
+				reply.connection.send(reply.message);
+				continue;
+			}
+			try {
+				// A full send buffer drops the datagram, the client retries
+				if (udp.send(reply.message, reply.client) == 0)
+					dropped.increment();
+			} catch (IOException e) {
+				dropped.increment();
+			}
+		}
+	}
+
+	/**
+	 * One client's TCP connection. Queries are read as they arrive and
+	 * answered in whatever order their lookups complete.
+	 */
+	private final class Connection {
+		private final SocketChannel channel;
+		private final SelectionKey key;
+		private final ByteBuffer readBuffer = ByteBuffer
+				.allocate(2 + MAX_TCP_QUERY);
+		private final Queue<ByteBuffer> writes = new ArrayDeque<ByteBuffer>();
+		private boolean open = true;
+		private int pending;
+		private long lastActive = System.nanoTime();
+
+		Connection(SocketChannel channel) throws IOException {
+			this.channel = channel;
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			this.key = channel.register(selector, SelectionKey.OP_READ, this);
+		}
+
+		void handle() {
+			try {
+				if (key.isWritable())
+					flush();
+				if (open && key.isValid() && key.isReadable())
+					read();
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		private void read() throws IOException {
+			while (true) {
+				readBuffer.flip();
+				while (readBuffer.remaining() >= 2 && pending < MAX_PIPELINED) {
+					int length = readBuffer.getShort(readBuffer.position()) & 0xffff;
+					if (length > MAX_TCP_QUERY) {
+						close();
+						return;
+					}
+					if (readBuffer.remaining() < 2 + length)
+						break;
+					ByteBuffer message = readBuffer.duplicate();
+					message.position(readBuffer.position() + 2).limit(
+							readBuffer.position() + 2 + length);
+					readBuffer.position(message.limit());
+					tcpQueries.increment();
+					pending++;
+					// A dropped query is never sent, so it is not pending
+					if (!handleQuery(message.slice(), response -> reply(new Reply(
+							this, null, response)), false))
+						pending--;
+				}
+				readBuffer.compact();
+				if (pending >= MAX_PIPELINED)
+					break;
+				int read = channel.read(readBuffer);
+				if (read < 0) {
+					close();
+					return;
+				}
+				if (read == 0)
+					break;
+				lastActive = System.nanoTime();
+			}
+			updateInterest();
+		}
+
+		void send(ByteBuffer message) {
+			pending--;
+			if (!open)
+				return;
+			ByteBuffer framed = ByteBuffer.allocate(2 + message.remaining());
+			framed.putShort((short) message.remaining()).put(message);
+			framed.flip();
+			writes.add(framed);
+			lastActive = System.nanoTime();
+			try {
+				flush();
+				// Reading may have stopped at the pipelining limit
+				if (open && pending == MAX_PIPELINED - 1)
+					read();
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		private void flush() throws IOException {
+			ByteBuffer write;
+			while ((write = writes.peek()) != null) {
+				channel.write(write);
+				if (write.hasRemaining())
+					break; // The socket buffer is full, wait for OP_WRITE
+				writes.poll();
+			}
+			updateInterest();
+		}
+
+		private void updateInterest() {
+			if (open && key.isValid())
+				key.interestOps((pending < MAX_PIPELINED ? SelectionKey.OP_READ
+						: 0) | (writes.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+		}
+
+		void close() {
+			if (!open)
+				return;
+			open = false;
+			key.cancel();
+			connections.remove(this);
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Closing anyway
+			}
+		}
+	}
+}
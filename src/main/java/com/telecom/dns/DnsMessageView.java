@@ -0,0 +1,380 @@
+package com.telecom.dns;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Read-only flyweight over a DNS message held in a heap or direct
+ * ByteBuffer. Header fields are read straight from the buffer, and the
+ * question and resource records are exposed as offsets into it, so nothing is
+ * copied. One view can be rewrapped around every message received. Its
+ * record index arrays are reused and only grow when a message has more
+ * records than any before it.
+ *
+ * A view is not thread safe and the buffer must not change while it is
+ * wrapped.
+ */
+public class DnsMessageView {
+
+	public static final int ANSWER_SECTION = 0;
+	public static final int AUTHORITY_SECTION = 1;
+	public static final int ADDITIONAL_SECTION = 2;
+
+	private static final int INITIAL_RECORD_CAPACITY = 16;
+
+	private ByteBuffer message;
+	private boolean indexed;
+	private boolean complete;
+	private int questionEnd;
+
+	// Every record of the three sections, in message order
+	private int recordCount;
+	private final int[] sectionStart = new int[3];
+	private final int[] sectionCount = new int[3];
+	private int[] nameOffset = new int[INITIAL_RECORD_CAPACITY];
+	private short[] type = new short[INITIAL_RECORD_CAPACITY];
+	private short[] rrClass = new short[INITIAL_RECORD_CAPACITY];
+	private int[] ttl = new int[INITIAL_RECORD_CAPACITY];
+	private int[] rdataOffset = new int[INITIAL_RECORD_CAPACITY];
+	private int[] rdataLength = new int[INITIAL_RECORD_CAPACITY];
+
+	/**
+	 * Points the view at a new message. The records are indexed the first
+	 * time one of them is asked for, so matching a response by its header
+	 * and question costs no record walk.
+	 *
+	 * @param message
+	 *            the whole message, from the header at index 0 to its limit
+	 * @return this view
+	 */
+	public DnsMessageView wrap(ByteBuffer message) {
+		this.message = message;
+		this.indexed = false;
+		return this;
+	}
+
+	public ByteBuffer getMessage() {
+		return message;
+	}
+
+	public int getLength() {
+		return message.limit();
+	}
+
+	/**
+	 * @return true if the message is long enough to hold a header
+	 */
+	public boolean hasHeader() {
+		return message.limit() >= DnsWireParser.SIZE_OF_HEADER;
+	}
+
+	public int getID() {
+		return DnsWireParser.readUnsignedShort(message, 0);
+	}
+
+	public boolean isResponse() {
+		return (message.get(2) & 0x80) != 0;
+	}
+
+	public int getOPCODE() {
+		return (message.get(2) >>> 3) & 0x0f;
+	}
+
+	public boolean isAuthoritative() {
+		return (message.get(2) & 0x04) != 0;
+	}
+
+	public boolean isTruncated() {
+		return (message.get(2) & 0x02) != 0;
+	}
+
+	public boolean isRecursionDesired() {
+		return (message.get(2) & 0x01) != 0;
+	}
+
+	public boolean isRecursionAvailable() {
+		return (message.get(3) & 0x80) != 0;
+	}
+
+	public int getRCODE() {
+		return message.get(3) & 0x0f;
+	}
+
+	public int getQDCOUNT() {
+		return DnsWireParser.readUnsignedShort(message, 4);
+	}
+
+	public int getANCOUNT() {
+		return DnsWireParser.readUnsignedShort(message, 6);
+	}
+
+	public int getNSCOUNT() {
+		return DnsWireParser.readUnsignedShort(message, 8);
+	}
+
+	public int getARCOUNT() {
+		return DnsWireParser.readUnsignedShort(message, 10);
+	}
+
+	/**
+	 * Compares the first question against the question section of a query
+	 * still held in its own buffer, ignoring ASCII case in the name but not
+	 * in QTYPE and QCLASS.
+	 *
+	 * @param query
+	 *            the buffer holding the query message
+	 * @param end
+	 *            the offset just past the query's question
+	 * @return true if the message echoes the query's question
+	 */
+	public boolean questionEquals(ByteBuffer query, int end) {
+		int length = end - DnsWireParser.SIZE_OF_HEADER;
+		if (getQDCOUNT() < 1
+				|| message.limit() < DnsWireParser.SIZE_OF_HEADER + length)
+			return false;
+		// Only the name folds case, QTYPE and QCLASS are the last 4 bytes
+		int nameEnd = end - 4;
+		for (int i = DnsWireParser.SIZE_OF_HEADER; i < nameEnd; i++) {
+			if (toLowerCase(query.get(i)) != toLowerCase(message.get(i)))
+				return false;
+		}
+		for (int i = nameEnd; i < end; i++) {
+			if (query.get(i) != message.get(i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the offset of the first question's QTYPE field
+	 */
+	public int getQuestionTypeOffset() {
+		return DnsWireParser.skipName(message, DnsWireParser.SIZE_OF_HEADER);
+	}
+
+	/**
+	 * @return the offset just past the question section
+	 */
+	public int getQuestionEnd() {
+		index();
+		return questionEnd;
+	}
+
+	/**
+	 * @return false if the message was cut short before its last record
+	 */
+	public boolean isComplete() {
+		index();
+		return complete;
+	}
+
+	/**
+	 * @return the number of records in the section that were decoded
+	 */
+	public int getSectionCount(int section) {
+		index();
+		return sectionCount[section];
+	}
+
+	/**
+	 * @return the index of the first record of the section
+	 */
+	public int getSectionStart(int section) {
+		index();
+		return sectionStart[section];
+	}
+
+	public int getRecordCount() {
+		index();
+		return recordCount;
+	}
+
+	public short getType(int record) {
+		return type[record];
+	}
+
+	public short getRRClass(int record) {
+		return rrClass[record];
+	}
+
+	public int getTTL(int record) {
+		return ttl[record];
+	}
+
+	public int getNameOffset(int record) {
+		return nameOffset[record];
+	}
+
+	public int getRdataOffset(int record) {
+		return rdataOffset[record];
+	}
+
+	public int getRdataLength(int record) {
+		return rdataLength[record];
+	}
+
+	/**
+	 * @return the offset of the record's TTL field
+	 */
+	public int getTTLOffset(int record) {
+		return rdataOffset[record] - 6;
+	}
+
+	/**
+	 * @return the smallest TTL in seconds among the records of the section,
+	 *         or -1 if the section is empty
+	 */
+	public long getMinimumTTL(int section) {
+		index();
+		long minimum = -1;
+		int start = sectionStart[section];
+		for (int i = start; i < start + sectionCount[section]; i++) {
+			if (minimum < 0 || ttl[i] < minimum)
+				minimum = ttl[i];
+		}
+		return minimum;
+	}
+
+	/**
+	 * @return the index of the EDNS0 OPT record in the additional section,
+	 *         or -1 if the message has none
+	 */
+	public int getOptRecord() {
+		index();
+		int start = sectionStart[ADDITIONAL_SECTION];
+		for (int i = start; i < start + sectionCount[ADDITIONAL_SECTION]; i++) {
+			if (type[i] == DnsRecord.OPT_TYPE)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the UDP payload size the sender advertised in its OPT record,
+	 *         or -1 if it sent none
+	 */
+	public int getUdpPayloadSize() {
+		int opt = getOptRecord();
+		return opt < 0 ? -1 : rrClass[opt] & 0xffff;
+	}
+
+	/**
+	 * @return the EDNS version of the OPT record, or -1 if there is none
+	 */
+	public int getEdnsVersion() {
+		int opt = getOptRecord();
+		return opt < 0 ? -1 : message.get(getTTLOffset(opt) + 1) & 0xff;
+	}
+
+	/**
+	 * @return the 12 bit RCODE, with the upper 8 bits taken from the OPT
+	 *         record when there is one
+	 */
+	public int getExtendedRCODE() {
+		int opt = getOptRecord();
+		int upper = opt < 0 ? 0 : message.get(getTTLOffset(opt)) & 0xff;
+		return upper << 4 | getRCODE();
+	}
+
+	/**
+	 * Reads the negative caching TTL from the authority section SOA record,
+	 * which is the smaller of the record's own TTL and its MINIMUM field (RFC
+	 * 2308).
+	 *
+	 * @return how long a negative answer may be cached in seconds, or -1 if
+	 *         the message has no SOA
+	 */
+	public long getNegativeTTL() {
+		index();
+		int start = sectionStart[AUTHORITY_SECTION];
+		for (int i = start; i < start + sectionCount[AUTHORITY_SECTION]; i++) {
+			if (type[i] != DnsRecord.SOA_TYPE)
+				continue;
+			try {
+				// Skip MNAME and RNAME, then SERIAL, REFRESH, RETRY and
+				// EXPIRE come before MINIMUM
+				int fields = DnsWireParser.skipName(message,
+						DnsWireParser.skipName(message, rdataOffset[i]));
+				return Math.min(ttl[i],
+						DnsWireParser.readUnsignedInt(message, fields + 16));
+			} catch (IndexOutOfBoundsException e) {
+				return -1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Walks the question and record sections by the header counts and RR
+	 * boundaries, storing only offsets and the fixed record fields.
+	 */
+	private void index() {
+		if (indexed)
+			return;
+		indexed = true;
+		complete = false;
+		recordCount = 0;
+		questionEnd = DnsWireParser.SIZE_OF_HEADER;
+		Arrays.fill(sectionStart, 0);
+		Arrays.fill(sectionCount, 0);
+
+		int limit = message.limit();
+		int offset = DnsWireParser.SIZE_OF_HEADER;
+		int questions = getQDCOUNT();
+		for (int i = 0; i < questions; i++) {
+			if (offset >= limit)
+				return;
+			offset = DnsWireParser.skipName(message, offset) + 4;
+		}
+		questionEnd = offset;
+
+		for (int section = ANSWER_SECTION; section <= ADDITIONAL_SECTION; section++) {
+			int count = DnsWireParser.readUnsignedShort(message,
+					6 + 2 * section);
+			sectionStart[section] = recordCount;
+
+			for (int i = 0; i < count; i++) {
+				// A truncated message keeps the records that fully arrived
+				if (offset >= limit)
+					return;
+				int fields = DnsWireParser.skipName(message, offset);
+				if (fields + DnsWireParser.SIZE_OF_RECORD_FIELDS > limit)
+					return;
+				int length = DnsWireParser.readUnsignedShort(message,
+						fields + 8);
+				int rdata = fields + DnsWireParser.SIZE_OF_RECORD_FIELDS;
+				if (rdata + length > limit)
+					return;
+
+				ensureCapacity(recordCount + 1);
+				nameOffset[recordCount] = offset;
+				type[recordCount] = message.getShort(fields);
+				rrClass[recordCount] = message.getShort(fields + 2);
+				ttl[recordCount] = DnsWireParser.readTTL(message, fields + 4);
+				rdataOffset[recordCount] = rdata;
+				rdataLength[recordCount] = length;
+				recordCount++;
+				sectionCount[section]++;
+
+				offset = rdata + length;
+			}
+		}
+		complete = true;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity <= type.length)
+			return;
+		int size = Math.max(capacity, type.length * 2);
+		nameOffset = Arrays.copyOf(nameOffset, size);
+		type = Arrays.copyOf(type, size);
+		rrClass = Arrays.copyOf(rrClass, size);
+		ttl = Arrays.copyOf(ttl, size);
+		rdataOffset = Arrays.copyOf(rdataOffset, size);
+		rdataLength = Arrays.copyOf(rdataLength, size);
+	}
+
+	private static byte toLowerCase(byte b) {
+		return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+	}
+}
@@ -0,0 +1,221 @@
+package com.telecom.dns;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Builds a whole DNS message, header, question and records, into a
+ * ByteBuffer. Sections must be written in order and the header counts are
+ * filled in as records are added. Names are written uncompressed.
+ */
+public class DnsMessageWriter {
+
+	public static final int QR_FLAG = 0x8000;
+	public static final int AA_FLAG = 0x0400;
+	public static final int TC_FLAG = 0x0200;
+	public static final int RD_FLAG = 0x0100;
+	public static final int RA_FLAG = 0x0080;
+
+	private final ByteBuffer out;
+	private final int start;
+	private int section = -1;
+
+	/**
+	 * Starts a message at the buffer's position.
+	 *
+	 * @param out
+	 * @param id
+	 *            the 16 bit message ID
+	 * @param flags
+	 *            the second header word, QR through RCODE
+	 */
+	public DnsMessageWriter(ByteBuffer out, int id, int flags) {
+		this.out = out;
+		this.start = out.position();
+		out.putShort((short) id);
+		out.putShort((short) flags);
+		out.putLong(0); // QDCOUNT, ANCOUNT, NSCOUNT and ARCOUNT
+	}
+
+	public DnsMessageWriter question(String name, short qtype, short qclass) {
+		if (section >= 0)
+			throw new IllegalStateException(
+					"The question must come before any record");
+		out.position(DnsQueryEncoder.writeName(out, out.position(), name));
+		out.putShort(qtype);
+		out.putShort(qclass);
+		increment(4);
+		return this;
+	}
+
+	/**
+	 * Adds one record, encoding the RDATA of the types DnsRecord decodes.
+	 *
+	 * @param section
+	 *            one of the DnsMessageView sections
+	 * @param record
+	 */
+	public DnsMessageWriter record(int section, DnsRecord record) {
+		int rdata = beginRecord(section, record.getName(), record.getType(),
+				record.getRRClass(), record.getTTL());
+		switch (record.getType()) {
+		case DnsRecord.A_TYPE:
+		case DnsRecord.AAAA_TYPE:
+			out.put(record.getAddress().getAddress());
+			break;
+		case DnsRecord.NS_TYPE:
+		case DnsRecord.CNAME_TYPE:
+			out.position(DnsQueryEncoder.writeName(out, out.position(),
+					record.getTarget()));
+			break;
+		case DnsRecord.MX_TYPE:
+			out.putShort((short) record.getPreference());
+			out.position(DnsQueryEncoder.writeName(out, out.position(),
+					record.getTarget()));
+			break;
+		default:
+			throw new IllegalArgumentException("Cannot encode RDATA of type "
+					+ record.getType());
+		}
+		endRecord(rdata);
+		return this;
+	}
+
+	/**
+	 * Adds an SOA record, as sent in the authority section of negative
+	 * answers.
+	 */
+	public DnsMessageWriter soa(int section, String zone, int ttl,
+			String mname, String rname, long serial, int refresh, int retry,
+			int expire, int minimum) {
+		int rdata = beginRecord(section, zone, DnsRecord.SOA_TYPE,
+				DnsQueryEncoder.IN_CLASS, ttl);
+		out.position(DnsQueryEncoder.writeName(out, out.position(), mname));
+		out.position(DnsQueryEncoder.writeName(out, out.position(), rname));
+		out.putInt((int) serial);
+		out.putInt(refresh);
+		out.putInt(retry);
+		out.putInt(expire);
+		out.putInt(minimum);
+		endRecord(rdata);
+		return this;
+	}
+
+	/**
+	 * Adds an EDNS0 OPT record advertising a UDP payload size.
+	 */
+	public DnsMessageWriter opt(int udpPayloadSize) {
+		section = DnsMessageView.ADDITIONAL_SECTION;
+		DnsQueryEncoder.writeOpt(out, start, udpPayloadSize);
+		return this;
+	}
+
+	/**
+	 * Copies a record from another message. The owner name and the names in
+	 * the RDATA of the types understood here are expanded, so the record no
+	 * longer depends on the source message's compression pointers.
+	 *
+	 * @param section
+	 * @param source
+	 *            the view holding the record
+	 * @param record
+	 *            the index of the record in the view
+	 */
+	public DnsMessageWriter copy(int section, DnsMessageView source,
+			int record) {
+		switch (source.getType(record)) {
+		case DnsRecord.A_TYPE:
+		case DnsRecord.AAAA_TYPE:
+		case DnsRecord.NS_TYPE:
+		case DnsRecord.CNAME_TYPE:
+		case DnsRecord.MX_TYPE:
+			return record(section, DnsRecord.read(source, record));
+		}
+
+		ByteBuffer message = source.getMessage();
+		int rdata = beginRecord(section,
+				DnsWireParser.readName(message, source.getNameOffset(record)),
+				source.getType(record), source.getRRClass(record),
+				source.getTTL(record));
+		int from = source.getRdataOffset(record);
+		int end = from + source.getRdataLength(record);
+		if (source.getType(record) == DnsRecord.SOA_TYPE) {
+			// MNAME and RNAME, then the five 32 bit fields
+			StringBuilder name = new StringBuilder();
+			from = DnsWireParser.readName(message, from, name);
+			out.position(DnsQueryEncoder.writeName(out, out.position(),
+					name.toString()));
+			name.setLength(0);
+			from = DnsWireParser.readName(message, from, name);
+			out.position(DnsQueryEncoder.writeName(out, out.position(),
+					name.toString()));
+		}
+		// Any other RDATA is copied raw, which is only safe for types whose
+		// RDATA holds no compressed names
+		for (int i = from; i < end; i++)
+			out.put(message.get(i));
+		endRecord(rdata);
+		return this;
+	}
+
+	/**
+	 * @return the most bytes {@link #copy} can write for the record, allowing
+	 *         for each name in it being compressed in the source but written
+	 *         out whole
+	 */
+	public static int maxCopyLength(DnsMessageView source, int record) {
+		int names;
+		switch (source.getType(record)) {
+		case DnsRecord.NS_TYPE:
+		case DnsRecord.CNAME_TYPE:
+		case DnsRecord.MX_TYPE:
+			names = 2;
+			break;
+		case DnsRecord.SOA_TYPE:
+			names = 3;
+			break;
+		default:
+			names = 1;
+		}
+		return names * DnsWireParser.MAX_NAME_LENGTH
+				+ DnsWireParser.SIZE_OF_RECORD_FIELDS
+				+ source.getRdataLength(record);
+	}
+
+	/**
+	 * @return the length of the message written so far
+	 */
+	public int length() {
+		return out.position() - start;
+	}
+
+	/**
+	 * Sets or clears header flags after the fact, the TC bit for instance.
+	 */
+	public DnsMessageWriter flags(int flags) {
+		out.putShort(start + 2, (short) flags);
+		return this;
+	}
+
+	private int beginRecord(int section, String name, short type,
+			short rrClass, int ttl) {
+		if (section < this.section)
+			throw new IllegalStateException("Sections must be written in order");
+		this.section = section;
+		out.position(DnsQueryEncoder.writeName(out, out.position(), name));
+		out.putShort(type);
+		out.putShort(rrClass);
+		out.putInt(ttl);
+		out.putShort((short) 0); // RDLENGTH, filled in by endRecord
+		increment(6 + 2 * section);
+		return out.position();
+	}
+
+	private void endRecord(int rdata) {
+		out.putShort(rdata - 2, (short) (out.position() - rdata));
+	}
+
+	private void increment(int countOffset) {
+		int at = start + countOffset;
+		out.putShort(at, (short) (out.getShort(at) + 1));
+	}
+}
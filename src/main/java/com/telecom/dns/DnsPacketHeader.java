@@ -1,3 +1,7 @@
+package com.telecom.dns;
+
+import java.nio.ByteBuffer;
+
 public class DnsPacketHeader {
 
 	private short ID;
@@ -9,6 +13,12 @@ public class DnsPacketHeader {
 	private short ARCOUNT;
 	private byte[] dnsHeader;
 
+	/**
+	 * Constructor for a header that is filled in by parse
+	 */
+	public DnsPacketHeader() {
+	}
+
 	public DnsPacketHeader(short iD, byte qR, byte oPCODE, byte aA, byte tC,
 			byte rD, byte rA, byte z, byte rCODE, short qDCOUNT, short aNCOUNT,
 			short nSCOUNT, short aRCOUNT) {
@@ -35,55 +45,72 @@ public class DnsPacketHeader {
 		dnsHeader[3] = (byte) ((RA << 7) | (Z << 4) | RCODE);
 		dnsHeader[4] = (byte) (QDCOUNT >>> 8);
 		dnsHeader[5] = (byte) QDCOUNT;
-		dnsHeader[6] = (byte) (ARCOUNT >>> 8);
-		dnsHeader[7] = (byte) ARCOUNT;
-		dnsHeader[8] = (byte) (ANCOUNT >>> 8);
-		dnsHeader[9] = (byte) ANCOUNT;
-		dnsHeader[10] = (byte) (NSCOUNT >>> 8);
-		dnsHeader[11] = (byte) NSCOUNT;
+		dnsHeader[6] = (byte) (ANCOUNT >>> 8);
+		dnsHeader[7] = (byte) ANCOUNT;
+		dnsHeader[8] = (byte) (NSCOUNT >>> 8);
+		dnsHeader[9] = (byte) NSCOUNT;
+		dnsHeader[10] = (byte) (ARCOUNT >>> 8);
+		dnsHeader[11] = (byte) ARCOUNT;
 
 		this.dnsHeader = dnsHeader;
 	}
 
 	public void parse(byte[] header) throws Exception {
-		this.ID = (short) ((header[0] << 8) | header[1]);
-		this.QR = (byte) ((header[2] & 0xff) >>> 7);
-		this.OPCODE = (byte) (((header[2] & 0xff) >>> 3) & 0x0f);
-		this.AA = (byte) (((header[2] & 0xff) >>> 2) & 0x01);
-		this.TC = (byte) (((header[2] & 0xff) >>> 1) & 0x01);
-		this.RD = (byte) ((header[2] & 0xff) & 0x01);
-		this.RA = (byte) (((header[3] & 0xff) >>> 7) & 0x01);
-		this.Z = (byte) (((header[3] & 0xff) >>> 4) & 0x07);
-		this.RCODE = (byte) ((header[3] & 0xff) & 0x0f);
-		this.QDCOUNT = (short) ((header[4] << 8) | header[5]);
-		this.ANCOUNT = (short) ((header[6] << 8) | header[7]);
-		this.NSCOUNT = (short) ((header[8] << 8) | header[9]);
-		this.ARCOUNT = (short) ((header[10] << 8) | header[11]);
-
-		if (RA == 1)
-			throw new Exception("The server does not support recursion");
-
+		parse(ByteBuffer.wrap(header));
+	}
+
+	/**
+	 * Reads the header fields in place from the start of a message.
+	 * 
+	 * @param message
+	 * @throws Exception
+	 *             if the header reports an error
+	 */
+	public void parse(ByteBuffer message) throws Exception {
+		this.ID = message.getShort(0);
+		this.QR = (byte) ((message.get(2) & 0xff) >>> 7);
+		this.OPCODE = (byte) (((message.get(2) & 0xff) >>> 3) & 0x0f);
+		this.AA = (byte) (((message.get(2) & 0xff) >>> 2) & 0x01);
+		this.TC = (byte) (((message.get(2) & 0xff) >>> 1) & 0x01);
+		this.RD = (byte) ((message.get(2) & 0xff) & 0x01);
+		this.RA = (byte) (((message.get(3) & 0xff) >>> 7) & 0x01);
+		this.Z = (byte) (((message.get(3) & 0xff) >>> 4) & 0x07);
+		this.RCODE = (byte) ((message.get(3) & 0xff) & 0x0f);
+		this.QDCOUNT = message.getShort(4);
+		this.ANCOUNT = message.getShort(6);
+		this.NSCOUNT = message.getShort(8);
+		this.ARCOUNT = message.getShort(10);
+
+		String error = getError();
+		if (error != null)
+			throw new Exception(error);
+	}
+
+	/**
+	 * @return a description of the error reported by this header, or null if
+	 *         the response can be used
+	 */
+	public String getError() {
 		switch (RCODE) {
 		case 0:
 			break;
 		case 1:
-			throw new Exception(
-					"The name server was unable to interpret the query");
+			return "The name server was unable to interpret the query";
 		case 2:
-			throw new Exception(
-					"The name server was unable to process this query due to a "
-							+ "problem with the name server");
+			return "The name server was unable to process this query due to a "
+					+ "problem with the name server";
 		case 3:
-			throw new Exception(
-					"The domain name referenced in the query does not exist");
+			return "The domain name referenced in the query does not exist";
 		case 4:
-			throw new Exception(
-					"The name server does not support the requested kind of query");
+			return "The name server does not support the requested kind of query";
 		case 5:
-			throw new Exception(
-					"The name server refuses to perform the requested operation "
-					+ "for policy reasons");
+			return "The name server refuses to perform the requested operation "
+					+ "for policy reasons";
 		}
+
+		if (RD == 1 && RA == 0)
+			return "The server does not support recursion";
+		return null;
 	}
 
 	@Override
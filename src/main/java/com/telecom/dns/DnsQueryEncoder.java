@@ -0,0 +1,157 @@
+package com.telecom.dns;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes queries straight into a caller supplied ByteBuffer, header and
+ * question together, without building any intermediate arrays or strings.
+ * Only the real length of the message is written so only that many bytes
+ * need to be sent.
+ */
+public final class DnsQueryEncoder {
+
+	public static final short IN_CLASS = 0x0001;
+
+	/**
+	 * The size of an OPT record with no options.
+	 */
+	public static final int OPT_RECORD_LENGTH = 11;
+
+	private static final int MAX_LABEL_LENGTH = 63;
+
+	private DnsQueryEncoder() {
+	}
+
+	/**
+	 * Writes a standard query with a single question at the buffer's
+	 * position and advances it past the message.
+	 *
+	 * @param out
+	 * @param id
+	 *            the 16 bit query ID
+	 * @param name
+	 *            the dotted domain name, with or without the trailing dot
+	 * @param qtype
+	 * @param qclass
+	 * @param recursionDesired
+	 *            whether to set the RD bit
+	 * @return the length of the message
+	 */
+	public static int encode(ByteBuffer out, int id, String name, short qtype,
+			short qclass, boolean recursionDesired) {
+		int start = out.position();
+		out.putShort((short) id);
+		out.put((byte) (recursionDesired ? 0x01 : 0x00));
+		out.put((byte) 0);
+		out.putShort((short) 1); // QDCOUNT
+		out.putShort((short) 0); // ANCOUNT
+		out.putShort((short) 0); // NSCOUNT
+		out.putShort((short) 0); // ARCOUNT
+
+		out.position(writeName(out, out.position(), name));
+		out.putShort(qtype);
+		out.putShort(qclass);
+		return out.position() - start;
+	}
+
+	/**
+	 * Writes a query like {@link #encode(ByteBuffer, int, String, short, short, boolean)}
+	 * followed by an EDNS0 OPT record advertising the UDP payload size.
+	 *
+	 * @param udpPayloadSize
+	 *            the largest UDP response accepted, or 0 to leave EDNS out
+	 * @return the length of the message
+	 */
+	public static int encode(ByteBuffer out, int id, String name, short qtype,
+			short qclass, boolean recursionDesired, int udpPayloadSize) {
+		int start = out.position();
+		encode(out, id, name, qtype, qclass, recursionDesired);
+		if (udpPayloadSize > 0)
+			writeOpt(out, start, udpPayloadSize);
+		return out.position() - start;
+	}
+
+	/**
+	 * Appends an OPT pseudo-record (RFC 6891) with version 0, no flags and no
+	 * options at the buffer's position, and counts it in ARCOUNT.
+	 *
+	 * @param out
+	 * @param start
+	 *            the offset of the message's header
+	 * @param udpPayloadSize
+	 */
+	public static void writeOpt(ByteBuffer out, int start, int udpPayloadSize) {
+		out.put((byte) 0); // The root name
+		out.putShort(DnsRecord.OPT_TYPE);
+		out.putShort((short) udpPayloadSize); // CLASS holds the payload size
+		out.putInt(0); // Extended RCODE, version and flags
+		out.putShort((short) 0); // No options
+		out.putShort(start + 10, (short) (out.getShort(start + 10) + 1));
+	}
+
+	/**
+	 * @return how many bytes the name takes in uncompressed wire format
+	 */
+	public static int nameLength(String name) {
+		int length = name.length();
+		if (length > 0 && name.charAt(length - 1) == '.')
+			length--;
+		return length == 0 ? 1 : length + 2;
+	}
+
+	/**
+	 * Writes the name in uncompressed wire format at an absolute offset,
+	 * leaving the buffer's position alone.
+	 *
+	 * @param out
+	 * @param offset
+	 * @param name
+	 *            the dotted domain name, with or without the trailing dot
+	 * @return the offset just past the name
+	 * @throws IllegalArgumentException
+	 *             if a label is empty or too long, the name is too long or
+	 *             it has characters outside ASCII
+	 */
+	public static int writeName(ByteBuffer out, int offset, String name) {
+		int end = name.length();
+		if (end > 0 && name.charAt(end - 1) == '.')
+			end--;
+		if (nameLength(name) > DnsWireParser.MAX_NAME_LENGTH)
+			throw new IllegalArgumentException("The domain name is too long: "
+					+ name);
+
+		int lengthOffset = offset++;
+		int labelLength = 0;
+		for (int i = 0; i < end; i++) {
+			char c = name.charAt(i);
+			if (c == '.') {
+				checkLabel(labelLength, name);
+				out.put(lengthOffset, (byte) labelLength);
+				lengthOffset = offset++;
+				labelLength = 0;
+			} else {
+				// Internationalized names have to be given in their
+				// xn-- form, a char cast to a byte would mangle them
+				if (c > 0x7f)
+					throw new IllegalArgumentException(
+							"The domain name is not ASCII: " + name);
+				out.put(offset++, (byte) c);
+				labelLength++;
+			}
+		}
+
+		if (end > 0) {
+			checkLabel(labelLength, name);
+			out.put(lengthOffset, (byte) labelLength);
+			lengthOffset = offset++;
+		}
+		out.put(lengthOffset, (byte) 0);
+		return offset;
+	}
+
+	private static void checkLabel(int labelLength, String name) {
+		if (labelLength == 0 || labelLength > MAX_LABEL_LENGTH)
+			throw new IllegalArgumentException(
+					"The domain name has an empty or too long label: " + name);
+	}
+}
@@ -1,3 +1,5 @@
+package com.telecom.dns;
+
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
@@ -14,18 +16,7 @@ public class DnsQuestion {
 	private byte[] dnsQuestion;
 
 	public DnsQuestion(String qNAME, String qTYPE, short qCLASS) {
-		switch (qTYPE) {
-		case A_TYPE:
-			this.QTYPE = 0x0001;
-			break;
-		case NS_TYPE:
-			this.QTYPE = 0x0002;
-			break;
-		case MX_TYPE:
-			this.QTYPE = 0x000f;
-			break;
-		}
-
+		this.QTYPE = toQTYPE(qTYPE);
 		this.QCLASS = qCLASS;
 		this.QNAME = QNameStringToByteArray(qNAME);
 
@@ -37,7 +28,7 @@ public class DnsQuestion {
 		this.dnsQuestion = dnsQuestion.array();
 	}
 
-	private byte[] QNameStringToByteArray(String qNAME) {
+	static byte[] QNameStringToByteArray(String qNAME) {
 		String[] qNameMinusPeriods = qNAME.split("[.]");
 		int numberOfLabels = qNameMinusPeriods.length;
 
@@ -66,6 +57,24 @@ public class DnsQuestion {
 		return qNameByteArray.array();
 	}
 
+	/**
+	 * Converts one of the query type names to its QTYPE value.
+	 * 
+	 * @param qTYPE
+	 * @return the QTYPE, or 0 if the type is not one the client sends
+	 */
+	public static short toQTYPE(String qTYPE) {
+		switch (qTYPE) {
+		case A_TYPE:
+			return 0x0001;
+		case NS_TYPE:
+			return 0x0002;
+		case MX_TYPE:
+			return 0x000f;
+		}
+		return 0;
+	}
+
 	public void parse(byte[] question) {
 		this.QNAME = ByteBuffer.allocate(question.length - 4)
 				.put(question, 0, question.length - 4).array();
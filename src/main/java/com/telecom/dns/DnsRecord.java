@@ -0,0 +1,139 @@
+package com.telecom.dns;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/**
+ * One decoded resource record. Only the RDATA of the record types the client
+ * understands is decoded, the rest are kept with just their owner, type,
+ * class and TTL.
+ */
+public class DnsRecord {
+
+	public static final short A_TYPE = 0x0001;
+	public static final short NS_TYPE = 0x0002;
+	public static final short CNAME_TYPE = 0x0005;
+	public static final short SOA_TYPE = 0x0006;
+	public static final short MX_TYPE = 0x000f;
+	public static final short AAAA_TYPE = 0x001c;
+	public static final short OPT_TYPE = 0x0029;
+
+	private final String name;
+	private final short type;
+	private final short rrClass;
+	private final int ttl;
+	private final InetAddress address;
+	private final String target;
+	private final int preference;
+
+	public DnsRecord(String name, short type, short rrClass, int ttl,
+			InetAddress address, String target, int preference) {
+		this.name = name;
+		this.type = type;
+		this.rrClass = rrClass;
+		this.ttl = ttl;
+		this.address = address;
+		this.target = target;
+		this.preference = preference;
+	}
+
+	/**
+	 * Decodes one record of a message into a typed object.
+	 *
+	 * @param view
+	 *            the view indexing the message
+	 * @param record
+	 *            the index of the record across all sections
+	 * @return the decoded record
+	 * @throws IllegalArgumentException
+	 *             if the record is malformed, an A or AAAA record whose RDATA
+	 *             is not an address of the right length for instance
+	 */
+	public static DnsRecord read(DnsMessageView view, int record) {
+		ByteBuffer message = view.getMessage();
+		String name = DnsWireParser.readName(message,
+				view.getNameOffset(record));
+		int rdata = view.getRdataOffset(record);
+		InetAddress address = null;
+		String target = null;
+		int preference = 0;
+
+		switch (view.getType(record)) {
+		case A_TYPE:
+		case AAAA_TYPE:
+			byte[] ip = new byte[view.getRdataLength(record)];
+			if (ip.length != (view.getType(record) == A_TYPE ? 4 : 16))
+				throw new IllegalArgumentException("The RDATA of " + name
+						+ " is not an IP address");
+			for (int i = 0; i < ip.length; i++)
+				ip[i] = message.get(rdata + i);
+			try {
+				address = InetAddress.getByAddress(ip);
+			} catch (UnknownHostException e) {
+				throw new IllegalArgumentException(e);
+			}
+			break;
+		case NS_TYPE:
+		case CNAME_TYPE:
+			target = DnsWireParser.readName(message, rdata);
+			break;
+		case MX_TYPE:
+			preference = DnsWireParser.readUnsignedShort(message, rdata);
+			target = DnsWireParser.readName(message, rdata + 2);
+			break;
+		}
+
+		return new DnsRecord(name, view.getType(record),
+				view.getRRClass(record), view.getTTL(record), address, target,
+				preference);
+	}
+
+	/**
+	 * @return the owner name of the record
+	 */
+	public String getName() {
+		return name;
+	}
+
+	public short getType() {
+		return type;
+	}
+
+	public short getRRClass() {
+		return rrClass;
+	}
+
+	public int getTTL() {
+		return ttl;
+	}
+
+	/**
+	 * @return the address of an A or AAAA record, null otherwise
+	 */
+	public InetAddress getAddress() {
+		return address;
+	}
+
+	/**
+	 * @return the name a CNAME points to, the name server of an NS record or
+	 *         the exchange of an MX record, null otherwise
+	 */
+	public String getTarget() {
+		return target;
+	}
+
+	/**
+	 * @return the preference of an MX record, 0 otherwise
+	 */
+	public int getPreference() {
+		return preference;
+	}
+
+	@Override
+	public String toString() {
+		return "DnsRecord [name=" + name + ", type=" + type + ", class="
+				+ rrClass + ", ttl=" + ttl + ", address=" + address
+				+ ", target=" + target + ", preference=" + preference + "]";
+	}
+}
@@ -0,0 +1,32 @@
+package com.telecom.dns;
+
+/**
+ * A lookup that the server answered with a non-zero RCODE, such as
+ * NXDOMAIN or SERVFAIL. The message is the header's description of the
+ * error and the response itself is kept for callers that pass it on.
+ */
+public class DnsResponseException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	private final transient DnsAnswer answer;
+
+	public DnsResponseException(DnsAnswer answer) {
+		super(answer.getHeader().getError());
+		this.answer = answer;
+	}
+
+	/**
+	 * @return the response, or null if the exception was deserialized
+	 */
+	public DnsAnswer getAnswer() {
+		return answer;
+	}
+
+	/**
+	 * @return the RCODE of the response
+	 */
+	public int getRCODE() {
+		return answer != null ? answer.getHeader().getRCODE() : 0;
+	}
+}
@@ -0,0 +1,124 @@
+package com.telecom.dns;
+
+import java.nio.ByteBuffer;
+
+/**
+ * RFC 1035 decoding helpers over a ByteBuffer holding a whole DNS message.
+ * Offsets are absolute positions in the buffer so compression pointers can
+ * be followed anywhere in the message, and the buffer's position is never
+ * touched. Only readName allocates, and only what the caller's StringBuilder
+ * needs.
+ */
+public final class DnsWireParser {
+
+	public static final int SIZE_OF_HEADER = 12;
+	// The fixed TYPE, CLASS, TTL and RDLENGTH fields that follow an RR name
+	public static final int SIZE_OF_RECORD_FIELDS = 10;
+	public static final int MAX_NAME_LENGTH = 255;
+
+	private static final int POINTER_MASK = 0xc0;
+	// A legal name has at most 127 labels, so more jumps mean a pointer loop
+	private static final int MAX_POINTER_JUMPS = 127;
+
+	private DnsWireParser() {
+	}
+
+	public static int readUnsignedByte(ByteBuffer message, int offset) {
+		return message.get(offset) & 0xff;
+	}
+
+	public static int readUnsignedShort(ByteBuffer message, int offset) {
+		return message.getShort(offset) & 0xffff;
+	}
+
+	public static long readUnsignedInt(ByteBuffer message, int offset) {
+		return message.getInt(offset) & 0xffffffffL;
+	}
+
+	/**
+	 * Reads a TTL field. TTLs with the top bit set are treated as zero, as
+	 * RFC 2181 requires.
+	 */
+	public static int readTTL(ByteBuffer message, int offset) {
+		return Math.max(message.getInt(offset), 0);
+	}
+
+	/**
+	 * @param message
+	 * @param offset
+	 *            where the name starts
+	 * @return the offset just past the name as it is stored at this position,
+	 *         without following any compression pointer
+	 */
+	public static int skipName(ByteBuffer message, int offset) {
+		while (true) {
+			int length = readUnsignedByte(message, offset);
+			if (length == 0)
+				return offset + 1;
+			if ((length & POINTER_MASK) == POINTER_MASK)
+				return offset + 2;
+			if ((length & POINTER_MASK) != 0)
+				throw new IllegalArgumentException(
+						"The DNS name uses an unsupported label type");
+			offset += length + 1;
+		}
+	}
+
+	/**
+	 * Appends the dotted form of the name, following compression pointers,
+	 * to the builder. The root name appends nothing.
+	 * 
+	 * @param message
+	 * @param offset
+	 *            where the name starts
+	 * @param name
+	 *            receives the name
+	 * @return the offset just past the name at its original position
+	 */
+	public static int readName(ByteBuffer message, int offset,
+			StringBuilder name) {
+		int end = -1;
+		int jumps = 0;
+		int start = name.length();
+
+		while (true) {
+			int length = readUnsignedByte(message, offset);
+			if (length == 0) {
+				offset++;
+				break;
+			}
+
+			if ((length & POINTER_MASK) == POINTER_MASK) {
+				if (++jumps > MAX_POINTER_JUMPS)
+					throw new IllegalArgumentException(
+							"The DNS name has a compression pointer loop");
+				if (end < 0)
+					end = offset + 2;
+				offset = readUnsignedShort(message, offset) & 0x3fff;
+				continue;
+			}
+			if ((length & POINTER_MASK) != 0)
+				throw new IllegalArgumentException(
+						"The DNS name uses an unsupported label type");
+
+			if (name.length() > start)
+				name.append('.');
+			for (int i = 1; i <= length; i++)
+				name.append((char) readUnsignedByte(message, offset + i));
+			offset += length + 1;
+
+			if (name.length() - start > MAX_NAME_LENGTH)
+				throw new IllegalArgumentException("The DNS name is too long");
+		}
+		return end < 0 ? offset : end;
+	}
+
+	/**
+	 * @return the dotted form of the name at the offset
+	 */
+	public static String readName(ByteBuffer message, int offset) {
+		StringBuilder name = new StringBuilder();
+		readName(message, offset, name);
+		return name.toString();
+	}
+}
@@ -0,0 +1,435 @@
+package com.telecom.dns;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Resolves names without a recursive server. Each lookup starts from the
+ * root hints, or from the deepest zone already known to enclose the name,
+ * and follows the referrals in the authority section of each response down
+ * to a server that answers for the name. The referred servers' addresses
+ * come from the glue in the additional section, and name servers without
+ * glue are resolved the same way first.
+ *
+ * Every referral is remembered in a {@link DelegationCache}, so later
+ * lookups under a known zone skip the root and TLD round trips. Queries go
+ * through a {@link NioResolver}, which picks among each zone's servers by
+ * RTT and retries on the others. Final answers are kept in an optional
+ * answer cache.
+ */
+public class IterativeResolver {
+
+	/**
+	 * The IPv4 addresses of a.root-servers.net to m.root-servers.net.
+	 */
+	public static final List<String> ROOT_SERVERS = Collections
+			.unmodifiableList(Arrays.asList("198.41.0.4", "170.247.170.2",
+					"192.33.4.12", "199.7.91.13", "192.203.230.10",
+					"192.5.5.241", "192.112.36.4", "198.97.190.53",
+					"192.36.148.17", "192.58.128.30", "193.0.14.129",
+					"199.7.83.42", "202.12.27.33"));
+
+	private static final int MAX_REFERRALS = 16;
+	private static final int MAX_CNAMES = 8;
+	// How deep lookups of name servers without glue may nest
+	private static final int MAX_DEPTH = 4;
+
+	private final NioResolver transport;
+	private final List<InetSocketAddress> rootHints;
+	private final int nameserverPort;
+	private final DnsCache cache;
+	private final DelegationCache delegations = new DelegationCache();
+
+	/**
+	 * @param transport
+	 *            sends the queries, its own servers and cache are not used
+	 * @param rootHints
+	 *            the root servers to start from
+	 * @param nameserverPort
+	 *            the port every other name server is asked on, 53 outside
+	 *            of tests
+	 * @param cache
+	 *            the answer cache, or null to resolve every lookup afresh
+	 */
+	public IterativeResolver(NioResolver transport,
+			List<InetSocketAddress> rootHints, int nameserverPort,
+			DnsCache cache) {
+		if (rootHints.isEmpty())
+			throw new IllegalArgumentException("No root hints were given");
+		this.transport = transport;
+		this.rootHints = new ArrayList<InetSocketAddress>(rootHints);
+		this.nameserverPort = nameserverPort;
+		this.cache = cache;
+	}
+
+	/**
+	 * @return the addresses in {@link #ROOT_SERVERS} on port 53
+	 */
+	public static List<InetSocketAddress> defaultRootHints() {
+		List<InetSocketAddress> hints = new ArrayList<InetSocketAddress>();
+		for (String address : ROOT_SERVERS) {
+			try {
+				hints.add(new InetSocketAddress(InetAddress.getByName(address),
+						53));
+			} catch (UnknownHostException e) {
+				// Literal addresses are never looked up
+				throw new IllegalStateException(e);
+			}
+		}
+		return hints;
+	}
+
+	public DelegationCache getDelegations() {
+		return delegations;
+	}
+
+	/**
+	 * Resolves the name. The future completes the way
+	 * {@link NioResolver#lookup(String, String)}'s does.
+	 *
+	 * @param name
+	 * @param type
+	 *            one of the DnsQuestion types
+	 * @return the pending answer
+	 */
+	public CompletableFuture<DnsAnswer> lookup(String name, String type) {
+		return lookup(name, DnsQuestion.toQTYPE(type));
+	}
+
+	public CompletableFuture<DnsAnswer> lookup(String name, short qtype) {
+		CompletableFuture<DnsAnswer> future = new CompletableFuture<DnsAnswer>();
+		resolve(DelegationCache.normalize(name), qtype, 0, 0).whenComplete(
+				(answer, error) -> {
+					if (error != null)
+						future.completeExceptionally(error);
+					else if (answer.getHeader().getRCODE() != 0)
+						future.completeExceptionally(new DnsResponseException(
+								answer));
+					else
+						future.complete(answer);
+				});
+		return future;
+	}
+
+	/**
+	 * @param depth
+	 *            how many name server lookups this one is nested in
+	 * @param cnames
+	 *            how many aliases were followed to get to the name
+	 * @return the final response, whatever its RCODE
+	 */
+	private CompletableFuture<DnsAnswer> resolve(String name, short qtype,
+			int depth, int cnames) {
+		CompletableFuture<DnsAnswer> result = new CompletableFuture<DnsAnswer>();
+		CacheKey key;
+		try {
+			key = CacheKey.of(name, qtype, DnsQueryEncoder.IN_CLASS);
+		} catch (IllegalArgumentException e) {
+			result.completeExceptionally(e);
+			return result;
+		}
+		if (cache != null) {
+			DnsAnswer cached = cache.get(key);
+			if (cached != null) {
+				result.complete(cached);
+				return result;
+			}
+		}
+
+		Lookup lookup = new Lookup(name, qtype, key, depth, cnames, result);
+		DelegationCache.Delegation closest = delegations.closest(name);
+		if (closest != null)
+			lookup.ask(closest.getZone(), closest.getServers());
+		else
+			lookup.ask("", rootHints);
+		return result;
+	}
+
+	/**
+	 * One name being chased down the delegation chain.
+	 */
+	private class Lookup {
+		private final String name;
+		private final short qtype;
+		private final CacheKey key;
+		private final int depth;
+		private final int cnames;
+		private final CompletableFuture<DnsAnswer> result;
+		private int referrals;
+
+		Lookup(String name, short qtype, CacheKey key, int depth, int cnames,
+				CompletableFuture<DnsAnswer> result) {
+			this.name = name;
+			this.qtype = qtype;
+			this.key = key;
+			this.depth = depth;
+			this.cnames = cnames;
+			this.result = result;
+		}
+
+		/**
+		 * Asks the servers of the zone.
+		 */
+		void ask(String zone, List<InetSocketAddress> servers) {
+			transport.query(servers, name, qtype, false).whenComplete(
+					(answer, error) -> {
+						if (error != null) {
+							result.completeExceptionally(error);
+							return;
+						}
+						try {
+							onResponse(zone, answer);
+						} catch (RuntimeException e) {
+							result.completeExceptionally(new IOException(
+									"The DNS packet wasn't successfully received", e));
+						}
+					});
+		}
+
+		private void onResponse(String zone, DnsAnswer answer) {
+			DnsMessageView view = answer.getMessageView();
+			int answers = view.getSectionCount(DnsMessageView.ANSWER_SECTION);
+			if (answer.getHeader().getRCODE() != 0) {
+				finish(answer, zone);
+			} else if (answers > 0) {
+				String target = cnameTarget(answer);
+				if (target == null)
+					finish(answer, zone);
+				else if (cnames >= MAX_CNAMES)
+					result.completeExceptionally(new IOException(
+							"The CNAME chain of " + name + " is too long"));
+				else
+					// The servers answered with an alias they do not serve,
+					// the target is resolved on its own
+					resolve(target, qtype, depth, cnames + 1).whenComplete(
+							(aliased, error) -> {
+								if (error != null) {
+									result.completeExceptionally(error);
+									return;
+								}
+								try {
+									// The target's own lookup took its glue
+									finish(withAliases(answer, aliased), null);
+								} catch (RuntimeException e) {
+									result.completeExceptionally(new IOException(
+											"The DNS packet wasn't successfully received", e));
+								}
+							});
+			} else if (view.isAuthoritative() || !followReferral(zone, answer))
+				// NODATA
+				finish(answer, zone);
+		}
+
+		/**
+		 * @return the end of the CNAME chain in the answer section when it
+		 *         has no record of the type asked for, or null
+		 */
+		private String cnameTarget(DnsAnswer answer) {
+			String target = null;
+			for (DnsRecord record : answer.getRecords()) {
+				if (record.getType() == qtype)
+					return null;
+				if (record.getType() == DnsRecord.CNAME_TYPE)
+					target = DelegationCache.normalize(record.getTarget());
+			}
+			return target;
+		}
+
+		/**
+		 * Moves on to the servers of a zone cut below the current zone.
+		 *
+		 * @return false if the response is not a referral
+		 */
+		private boolean followReferral(String zone, DnsAnswer answer) {
+			DnsMessageView view = answer.getMessageView();
+			String cut = null;
+			long ttl = Long.MAX_VALUE;
+			List<String> nameservers = new ArrayList<String>();
+			int start = view.getSectionStart(DnsMessageView.AUTHORITY_SECTION);
+			int end = start + view.getSectionCount(DnsMessageView.AUTHORITY_SECTION);
+			for (int i = start; i < end; i++) {
+				if (view.getType(i) != DnsRecord.NS_TYPE)
+					continue;
+				DnsRecord ns = answer.getRecord(i);
+				String owner = DelegationCache.normalize(ns.getName());
+				if (cut == null)
+					cut = owner;
+				if (!owner.equals(cut))
+					continue;
+				nameservers.add(DelegationCache.normalize(ns.getTarget()));
+				ttl = Math.min(ttl, ns.getTTL() & 0xffffffffL);
+			}
+			if (cut == null)
+				return false;
+			// A referral must lead down towards the name, anything else is a
+			// lame or bogus server
+			if (cut.equals(zone) || !DelegationCache.isWithin(cut, zone)
+					|| !DelegationCache.isWithin(name, cut)) {
+				result.completeExceptionally(new IOException(
+						"Bad referral to " + cut + " from the " + zone
+								+ " servers for " + name));
+				return true;
+			}
+			if (++referrals > MAX_REFERRALS) {
+				result.completeExceptionally(new IOException(
+						"Too many referrals resolving " + name));
+				return true;
+			}
+
+			List<InetSocketAddress> glue = glue(answer, zone, nameservers);
+			long zoneTtl = ttl;
+			if (!glue.isEmpty()) {
+				delegations.put(cut, glue, zoneTtl);
+				ask(cut, glue);
+			} else if (depth >= MAX_DEPTH) {
+				result.completeExceptionally(new IOException(
+						"The name servers of " + cut + " could not be found"));
+			} else {
+				String referredTo = cut;
+				resolveNameservers(nameservers, 0).whenComplete(
+						(addresses, error) -> {
+							if (error != null || addresses.isEmpty()) {
+								result.completeExceptionally(new IOException(
+										"The name servers of " + referredTo
+												+ " could not be found"));
+								return;
+							}
+							delegations.put(referredTo, addresses, zoneTtl);
+							ask(referredTo, addresses);
+						});
+			}
+			return true;
+		}
+
+		/**
+		 * Collects the additional section addresses of the name servers.
+		 * Only glue within the zone that sent it is believed.
+		 */
+		private List<InetSocketAddress> glue(DnsAnswer answer, String zone,
+				List<String> nameservers) {
+			DnsMessageView view = answer.getMessageView();
+			List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+			int start = view.getSectionStart(DnsMessageView.ADDITIONAL_SECTION);
+			int end = start + view.getSectionCount(DnsMessageView.ADDITIONAL_SECTION);
+			for (int i = start; i < end; i++) {
+				short type = view.getType(i);
+				if (type != DnsRecord.A_TYPE && type != DnsRecord.AAAA_TYPE)
+					continue;
+				DnsRecord record;
+				try {
+					record = answer.getRecord(i);
+				} catch (IllegalArgumentException e) {
+					continue; // Bogus glue, as if there were none
+				}
+				String owner = DelegationCache.normalize(record.getName());
+				if (nameservers.contains(owner)
+						&& DelegationCache.isWithin(owner, zone))
+					addresses.add(new InetSocketAddress(record.getAddress(),
+							nameserverPort));
+			}
+			return addresses;
+		}
+
+		/**
+		 * Looks up the addresses of the name servers in turn until one
+		 * resolves.
+		 */
+		private CompletableFuture<List<InetSocketAddress>> resolveNameservers(
+				List<String> nameservers, int next) {
+			if (next >= nameservers.size())
+				return CompletableFuture.completedFuture(Collections
+						.<InetSocketAddress> emptyList());
+			return resolve(nameservers.get(next), DnsRecord.A_TYPE, depth + 1, 0)
+					.handle((answer, error) -> {
+						List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+						if (error == null && answer.getHeader().getRCODE() == 0) {
+							for (DnsRecord record : answer.getRecords()) {
+								if (record.getType() == DnsRecord.A_TYPE)
+									addresses.add(new InetSocketAddress(record
+											.getAddress(), nameserverPort));
+							}
+						}
+						return addresses;
+					})
+					.thenCompose(addresses -> addresses.isEmpty() ? resolveNameservers(
+							nameservers, next + 1) : CompletableFuture
+							.completedFuture(addresses));
+		}
+
+		/**
+		 * Puts the CNAME records of a response in front of the answer for
+		 * their target, so that it answers the name asked for with the whole
+		 * chain, as a recursive server's would.
+		 */
+		private DnsAnswer withAliases(DnsAnswer aliases, DnsAnswer target) {
+			DnsMessageView view = aliases.getMessageView();
+			DnsMessageView targetView = target.getMessageView();
+			int end = view.getSectionCount(DnsMessageView.ANSWER_SECTION);
+			int length = DnsWireParser.SIZE_OF_HEADER
+					+ DnsWireParser.MAX_NAME_LENGTH + 4;
+			for (int i = 0; i < end; i++) {
+				if (view.getType(i) == DnsRecord.CNAME_TYPE)
+					length += DnsMessageWriter.maxCopyLength(view, i);
+			}
+			for (int i = 0; i < targetView.getRecordCount(); i++)
+				length += DnsMessageWriter.maxCopyLength(targetView, i);
+			ByteBuffer message = ByteBuffer.allocate(length);
+			DnsMessageWriter writer = new DnsMessageWriter(message, 0,
+					targetView.getMessage().getShort(2) & 0xffff).question(name,
+					qtype, DnsQueryEncoder.IN_CLASS);
+			for (int i = 0; i < end; i++) {
+				if (view.getType(i) == DnsRecord.CNAME_TYPE)
+					writer.copy(DnsMessageView.ANSWER_SECTION, view, i);
+			}
+			int authority = targetView
+					.getSectionStart(DnsMessageView.AUTHORITY_SECTION);
+			int additional = targetView
+					.getSectionStart(DnsMessageView.ADDITIONAL_SECTION);
+			for (int i = 0; i < targetView.getRecordCount(); i++) {
+				if (targetView.getType(i) == DnsRecord.OPT_TYPE)
+					continue;
+				writer.copy(i < authority ? DnsMessageView.ANSWER_SECTION
+						: i < additional ? DnsMessageView.AUTHORITY_SECTION
+								: DnsMessageView.ADDITIONAL_SECTION, targetView, i);
+			}
+			message.flip();
+			ByteBuffer trimmed = ByteBuffer.allocate(message.remaining());
+			trimmed.put(message).flip();
+
+			DnsPacketHeader header = new DnsPacketHeader();
+			try {
+				header.parse(trimmed);
+			} catch (Exception e) {
+				// NXDOMAIN at the end of the chain is passed on as it is
+			}
+			DnsAnswer answer = new DnsAnswer(0);
+			answer.parse(trimmed, header);
+			answer.setResponseStats(target.getResponseTimeNanos(),
+					target.getRetries());
+			return answer;
+		}
+
+		/**
+		 * @param zone
+		 *            the zone whose servers gave the answer, or null to
+		 *            leave its additional records out of the cache
+		 */
+		private void finish(DnsAnswer answer, String zone) {
+			int rcode = answer.getHeader().getRCODE();
+			if (cache != null && (rcode == 0 || rcode == 3)) {
+				cache.put(key, answer);
+				if (zone != null)
+					cache.putAdditional(answer, zone);
+			}
+			result.complete(answer);
+		}
+	}
+}
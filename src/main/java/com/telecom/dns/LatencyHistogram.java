@@ -0,0 +1,121 @@
+package com.telecom.dns;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log-linear histogram of latencies in nanoseconds. Every power of two is
+ * split into 16 linear buckets, so a percentile is reported within about 6%
+ * of the true value over the whole range of a long. Recording is lock-free
+ * and may happen from any number of threads.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records one latency. Negative values are counted as zero.
+	 *
+	 * @param nanos
+	 */
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		counts.incrementAndGet(bucketOf(nanos));
+		count.increment();
+		sum.add(nanos);
+
+		long current;
+		while (nanos < (current = min.get())
+				&& !min.compareAndSet(current, nanos))
+			;
+		while (nanos > (current = max.get())
+				&& !max.compareAndSet(current, nanos))
+			;
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getMin() {
+		return getCount() == 0 ? 0 : min.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public long getMean() {
+		long n = getCount();
+		return n == 0 ? 0 : sum.sum() / n;
+	}
+
+	/**
+	 * @param percentile
+	 *            between 0 and 100
+	 * @return the latency in nanoseconds that this percentage of the
+	 *         recorded values are at or below
+	 */
+	public long getPercentile(double percentile) {
+		long n = getCount();
+		if (n == 0)
+			return 0;
+		long rank = (long) Math.ceil(percentile / 100.0 * n);
+		if (rank < 1)
+			rank = 1;
+
+		long seen = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			seen += counts.get(bucket);
+			if (seen >= rank)
+				return Math.min(valueOf(bucket), getMax());
+		}
+		return getMax();
+	}
+
+	/**
+	 * Formats the usual percentiles in milliseconds.
+	 */
+	public String summary() {
+		return String.format("min %.3f, mean %.3f, p50 %.3f, p90 %.3f, "
+				+ "p99 %.3f, p99.9 %.3f, max %.3f ms", millis(getMin()),
+				millis(getMean()), millis(getPercentile(50)),
+				millis(getPercentile(90)), millis(getPercentile(99)),
+				millis(getPercentile(99.9)), millis(getMax()));
+	}
+
+	private static double millis(long nanos) {
+		return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	private static int bucketOf(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int msb = 63 - Long.numberOfLeadingZeros(value);
+		int shift = msb - SUB_BUCKET_BITS;
+		int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+		return (shift + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @return the largest value that falls in the bucket
+	 */
+	private static long valueOf(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int shift = bucket / SUB_BUCKETS - 1;
+		long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+		return lower + (1L << shift) - 1;
+	}
+}
@@ -0,0 +1,211 @@
+package com.telecom.dns;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiFunction;
+
+/**
+ * Drives a server at a fixed query rate for a fixed time, in the manner of
+ * dnsperf, cycling through a list of queries.
+ *
+ * The schedule is open loop: query i is due at start + i / qps whatever
+ * happened to the earlier ones, and its latency is measured from when it
+ * was due rather than from when it was actually sent. A stalled server or a
+ * full in-flight window therefore shows up in the percentiles instead of
+ * quietly lowering the offered load.
+ */
+public class LoadGenerator {
+
+	private final BiFunction<String, Short, CompletableFuture<DnsAnswer>> resolver;
+	private final List<Query> queries;
+	private final double qps;
+	private final long durationNanos;
+	private final int maxInFlight;
+	private final Semaphore inFlight;
+
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong errorResponses = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	/**
+	 * @param resolver
+	 *            the resolver to send through, without a cache unless
+	 *            measuring prefetch or serve-stale
+	 * @param queries
+	 *            the queries to cycle through
+	 * @param qps
+	 *            the target queries per second
+	 * @param durationMillis
+	 *            how long to keep sending
+	 * @param maxInFlight
+	 *            the most queries to have outstanding at once
+	 */
+	public LoadGenerator(NioResolver resolver, List<Query> queries, double qps,
+			long durationMillis, int maxInFlight) {
+		this(resolver::lookup, queries, qps, durationMillis, maxInFlight);
+	}
+
+	public LoadGenerator(Resolver resolver, List<Query> queries, double qps,
+			long durationMillis, int maxInFlight) {
+		this(resolver::lookup, queries, qps, durationMillis, maxInFlight);
+	}
+
+	private LoadGenerator(
+			BiFunction<String, Short, CompletableFuture<DnsAnswer>> resolver,
+			List<Query> queries, double qps, long durationMillis,
+			int maxInFlight) {
+		if (queries.isEmpty())
+			throw new IllegalArgumentException("The query list is empty");
+		if (qps <= 0 || durationMillis <= 0 || maxInFlight <= 0)
+			throw new IllegalArgumentException(
+					"The rate, duration and in-flight limit must be positive");
+		this.resolver = resolver;
+		this.queries = queries;
+		this.qps = qps;
+		this.durationNanos = TimeUnit.MILLISECONDS.toNanos(durationMillis);
+		this.maxInFlight = maxInFlight;
+		this.inFlight = new Semaphore(maxInFlight);
+	}
+
+	/**
+	 * Reads a dnsperf style query list, one "name [type]" per line. Blank
+	 * lines and lines starting with # are skipped.
+	 *
+	 * @param lines
+	 * @param defaultType
+	 *            the type for lines that do not give one
+	 * @return the queries
+	 * @throws IOException
+	 */
+	public static List<Query> readQueries(BufferedReader lines,
+			String defaultType) throws IOException {
+		List<Query> queries = new ArrayList<Query>();
+		String line;
+		while ((line = lines.readLine()) != null) {
+			line = line.trim();
+			if (line.isEmpty() || line.charAt(0) == '#')
+				continue;
+			String[] fields = line.split("\\s+");
+			String type = fields.length > 1 ? fields[1] : defaultType;
+			short qtype = DnsQuestion.toQTYPE(type.toLowerCase(Locale.ROOT));
+			if (qtype == 0)
+				throw new IOException("Unknown query type " + type + " for "
+						+ fields[0]);
+			queries.add(new Query(fields[0], qtype));
+		}
+		return queries;
+	}
+
+	/**
+	 * Sends for the configured duration, waits for the stragglers and prints
+	 * the report.
+	 *
+	 * @param report
+	 */
+	public void run(PrintStream report) {
+		long start = System.nanoTime();
+		long sent = 0;
+		long throttled = 0;
+
+		while (true) {
+			long due = start + (long) (sent * (TimeUnit.SECONDS.toNanos(1) / qps));
+			if (due - start >= durationNanos)
+				break;
+
+			// Sleep until due, a late wake up sends the backlog in a burst
+			long wait;
+			while ((wait = due - System.nanoTime()) > 0)
+				LockSupport.parkNanos(wait);
+
+			if (!inFlight.tryAcquire()) {
+				throttled++;
+				inFlight.acquireUninterruptibly();
+			}
+
+			Query query = queries.get((int) (sent % queries.size()));
+			resolver.apply(query.name, query.qtype).whenComplete(
+					(answer, error) -> {
+						onComplete(due, error);
+						inFlight.release();
+					});
+			sent++;
+		}
+		long sendTime = System.nanoTime() - start;
+
+		// Every permit is back once the last query has completed
+		inFlight.acquireUninterruptibly(maxInFlight);
+		long runTime = System.nanoTime() - start;
+
+		double seconds = runTime / (double) TimeUnit.SECONDS.toNanos(1);
+		report.println("Queries sent:         " + sent);
+		report.println("Queries completed:    " + completed.get() + " ("
+				+ errorResponses.get() + " with an error RCODE)");
+		report.println("Queries timed out:    " + timeouts.get());
+		report.println("Queries failed:       " + failed.get());
+		report.println("Throttled sends:      " + throttled
+				+ " (in-flight limit " + maxInFlight + ")");
+		report.println(String.format("Run time:             %.3f s", seconds));
+		report.println(String.format("Target QPS:           %.1f", qps));
+		report.println(String.format("Offered QPS:          %.1f", sent
+				/ (sendTime / (double) TimeUnit.SECONDS.toNanos(1))));
+		report.println(String.format("Achieved QPS:         %.1f",
+				completed.get() / seconds));
+		report.println("Latency:              " + latency.summary());
+	}
+
+	private void onComplete(long due, Throwable error) {
+		long now = System.nanoTime();
+		if (error instanceof CompletionException && error.getCause() != null)
+			error = error.getCause();
+
+		if (error instanceof SocketTimeoutException) {
+			timeouts.incrementAndGet();
+			return;
+		}
+		if (error instanceof IOException
+				|| error instanceof RuntimeException) {
+			failed.incrementAndGet();
+			return;
+		}
+
+		// The server answered, a non-zero RCODE is still a response
+		if (error != null)
+			errorResponses.incrementAndGet();
+		completed.incrementAndGet();
+		latency.record(now - due);
+	}
+
+	/**
+	 * One entry of the query list.
+	 */
+	public static class Query {
+		private final String name;
+		private final short qtype;
+
+		public Query(String name, short qtype) {
+			this.name = name;
+			this.qtype = qtype;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public short getQtype() {
+			return qtype;
+		}
+	}
+}
@@ -0,0 +1,1124 @@
+package com.telecom.dns;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Asynchronous resolver built on a non-blocking DatagramChannel. A single I/O
+ * thread sends every query, matches the responses back by header ID and
+ * echoed question, and drives timeouts and retransmissions from a timer
+ * wheel, so one thread can serve tens of thousands of outstanding lookups.
+ *
+ * Several upstream servers can be given. Each query goes to the server with
+ * the best smoothed RTT and failure record, and if that server has not
+ * answered within about twice its usual RTT the query is also sent to the
+ * next best one. Whichever good answer arrives first wins, SERVFAIL and
+ * REFUSED count as failures and move the query on to another server.
+ *
+ * Each server's retransmission timeout is worked out from its measured RTT
+ * and RTT variance, and doubles with every retry up to the configured
+ * timeout, so a lost packet to a nearby server is resent within
+ * milliseconds.
+ *
+ * Concurrent lookups for the same name and type are coalesced: only the
+ * first sends a query and the rest complete from its answer. With prefetch
+ * enabled, cached answers that are still being asked for close to their
+ * expiry are refreshed in the background at a bounded rate, so hot names
+ * do not go back to a miss when their TTL runs out.
+ *
+ * With serve-stale enabled (RFC 8767), a lookup whose answer has expired
+ * from the cache but is still within the stale window gets the old answer,
+ * with a short TTL, if the servers fail or have not answered by a client
+ * deadline. The query keeps going and refreshes the cache when it does
+ * get an answer.
+ *
+ * Queries advertise a larger UDP payload size with an EDNS0 OPT record when
+ * one is configured, and a server that answers FORMERR without an OPT
+ * record of its own is asked again without it. Truncated answers are asked
+ * again over TCP. Each server gets one
+ * persistent connection that every truncated lookup is pipelined over, and
+ * that is closed after sitting idle for a while.
+ *
+ * Queries can also be sent straight to other name servers with recursion
+ * turned off, for resolving iteratively from the root. Those servers'
+ * RTTs are tracked the same way.
+ *
+ * The returned futures are completed on the I/O thread. Dependent stages
+ * that block or do heavy work should use the async variants.
+ */
+public class NioResolver implements Closeable, TcpConnection.Listener {
+
+	private static final int MAX_UDP_DNS_BYTE_SIZE = 512;
+	private static final int MAX_POOLED_BUFFERS = 4096;
+	private static final int ID_SPACE = 1 << 16;
+	// RTOs are clamped well above this, a finer tick only costs wakeups
+	private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+	// Bounds on the measured retransmission timeout, the configured timeout
+	// is the upper one
+	// The lower bound rides out scheduling and GC stalls on the server
+	private static final long MIN_RTO_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+	private static final long INITIAL_RTO_NANOS = TimeUnit.SECONDS.toNanos(1);
+	// How long the I/O thread sleeps when no timer is pending
+	private static final long IDLE_SELECT_MILLIS = 1000;
+	private static final int WHEEL_SIZE = 1024;
+	private static final long TCP_IDLE_NANOS = TimeUnit.SECONDS.toNanos(10);
+	// The TTL RFC 8767 recommends for stale answers
+	private static final int STALE_TTL_SECONDS = 30;
+	// Past this many, what was learned about other name servers is dropped
+	private static final int MAX_TRACKED_NAMESERVERS = 4096;
+
+	private final List<ServerStats> servers;
+	// Name servers other than the configured ones, only used on the I/O
+	// thread
+	private final Map<InetSocketAddress, ServerStats> nameservers = new HashMap<InetSocketAddress, ServerStats>();
+	private final long timeoutNanos;
+	private final int maxRetries;
+	private final DnsCache cache;
+	private final int udpPayloadSize;
+	private final ResolverMetrics metrics;
+	private volatile TokenBucket prefetchLimit;
+	private volatile long staleDeadlineNanos = -1;
+
+	private final DatagramChannel channel;
+	private final Selector selector;
+	private final TimerWheel timerWheel;
+	private final Thread ioThread;
+	private final Queue<PendingQuery> submissions = new ConcurrentLinkedQueue<PendingQuery>();
+	// Work handed to the I/O thread by other threads
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final ConcurrentHashMap<CacheKey, CompletableFuture<DnsAnswer>> inProgress = new ConcurrentHashMap<CacheKey, CompletableFuture<DnsAnswer>>();
+	private final AtomicBoolean wakeupPending = new AtomicBoolean();
+	private volatile boolean running = true;
+
+	// Only touched by the I/O thread
+	private final PendingQuery[] inFlight = new PendingQuery[ID_SPACE];
+	private int inFlightCount;
+	private final Random random = new Random();
+	private final BufferPool queryBuffers = new BufferPool(
+			MAX_UDP_DNS_BYTE_SIZE, MAX_POOLED_BUFFERS, true);
+	private final ByteBuffer receiveBuffer;
+	private final DnsMessageView receiveView = new DnsMessageView();
+	private final Map<InetSocketAddress, TcpConnection> tcpConnections = new HashMap<InetSocketAddress, TcpConnection>();
+
+	/**
+	 * Opens the channel and starts the I/O thread.
+	 *
+	 * @param server
+	 *            the DNS server to query
+	 * @param timeoutMillis
+	 *            how long to wait before retransmitting
+	 * @param maxRetries
+	 *            how many timeouts to allow before giving up
+	 * @throws IOException
+	 */
+	public NioResolver(InetSocketAddress server, long timeoutMillis,
+			int maxRetries) throws IOException {
+		this(server, timeoutMillis, maxRetries, null);
+	}
+
+	/**
+	 * Opens the channel and starts the I/O thread. Lookups are answered from
+	 * the cache when possible and successful answers are added to it.
+	 *
+	 * @param server
+	 *            the DNS server to query
+	 * @param timeoutMillis
+	 *            how long to wait before retransmitting
+	 * @param maxRetries
+	 *            how many timeouts to allow before giving up
+	 * @param cache
+	 *            the answer cache, or null to always query the server
+	 * @throws IOException
+	 */
+	public NioResolver(InetSocketAddress server, long timeoutMillis,
+			int maxRetries, DnsCache cache) throws IOException {
+		this(server, timeoutMillis, maxRetries, cache, 0);
+	}
+
+	/**
+	 * Opens the channel and starts the I/O thread, advertising an EDNS0 UDP
+	 * payload size in every query.
+	 *
+	 * @param server
+	 *            the DNS server to query
+	 * @param timeoutMillis
+	 *            how long to wait before retransmitting
+	 * @param maxRetries
+	 *            how many timeouts to allow before giving up
+	 * @param cache
+	 *            the answer cache, or null to always query the server
+	 * @param udpPayloadSize
+	 *            the largest UDP response to accept, 1232 or 4096 for
+	 *            instance, or 0 to send plain 512 byte DNS queries
+	 * @throws IOException
+	 */
+	public NioResolver(InetSocketAddress server, long timeoutMillis,
+			int maxRetries, DnsCache cache, int udpPayloadSize)
+			throws IOException {
+		this(Collections.singletonList(server), timeoutMillis, maxRetries,
+				cache, udpPayloadSize);
+	}
+
+	/**
+	 * Opens the channel and starts the I/O thread, spreading and hedging the
+	 * queries over several servers.
+	 *
+	 * @param servers
+	 *            the DNS servers to query, in no particular order
+	 * @param timeoutMillis
+	 *            the longest to wait before retransmitting, the actual wait
+	 *            adapts to each server's RTT
+	 * @param maxRetries
+	 *            how many timeouts to allow before giving up
+	 * @param cache
+	 *            the answer cache, or null to always query the servers
+	 * @param udpPayloadSize
+	 *            the largest UDP response to accept, or 0 for no EDNS0
+	 * @throws IOException
+	 */
+	public NioResolver(List<InetSocketAddress> servers, long timeoutMillis,
+			int maxRetries, DnsCache cache, int udpPayloadSize)
+			throws IOException {
+		if (servers.isEmpty())
+			throw new IllegalArgumentException("No DNS server was given");
+		if (udpPayloadSize != 0
+				&& (udpPayloadSize < MAX_UDP_DNS_BYTE_SIZE || udpPayloadSize > 0xffff))
+			throw new IllegalArgumentException(
+					"The EDNS payload size must be between 512 and 65535");
+		// Answers are told apart by source address, so a server listed twice
+		// is only tracked once
+		List<ServerStats> stats = new ArrayList<ServerStats>();
+		for (InetSocketAddress server : new LinkedHashSet<InetSocketAddress>(
+				servers))
+			stats.add(new ServerStats(server));
+		this.servers = Collections.unmodifiableList(stats);
+		this.metrics = new ResolverMetrics(this.servers);
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		this.maxRetries = maxRetries;
+		this.cache = cache;
+		this.udpPayloadSize = udpPayloadSize;
+		// Sized to exactly what the server was told it may send
+		this.receiveBuffer = ByteBuffer.allocateDirect(Math.max(
+				MAX_UDP_DNS_BYTE_SIZE, udpPayloadSize));
+
+		this.selector = Selector.open();
+		this.channel = DatagramChannel.open();
+		this.channel.configureBlocking(false);
+		this.channel.bind(null);
+		this.channel.register(selector, SelectionKey.OP_READ);
+		this.timerWheel = new TimerWheel(TICK_NANOS, WHEEL_SIZE,
+				System.nanoTime());
+
+		this.ioThread = new Thread(this::ioLoop, "dns-nio-resolver");
+		this.ioThread.setDaemon(true);
+		this.ioThread.start();
+	}
+
+	/**
+	 * Queues a lookup. The future completes with the parsed answer, or
+	 * exceptionally with a SocketTimeoutException once every retry has timed
+	 * out, or with a DnsResponseException holding the response when it
+	 * carries a non-zero RCODE.
+	 *
+	 * @param name
+	 *            the domain name to look up
+	 * @param type
+	 *            one of the DnsQuestion types
+	 * @return the pending answer
+	 */
+	public CompletableFuture<DnsAnswer> lookup(String name, String type) {
+		return lookup(name, DnsQuestion.toQTYPE(type));
+	}
+
+	/**
+	 * Queues a lookup for any QTYPE, in class IN.
+	 *
+	 * @param name
+	 *            the domain name to look up
+	 * @param qtype
+	 * @return the pending answer
+	 * @see #lookup(String, String)
+	 */
+	public CompletableFuture<DnsAnswer> lookup(String name, short qtype) {
+		CompletableFuture<DnsAnswer> future = new CompletableFuture<DnsAnswer>();
+		if (!running) {
+			future.completeExceptionally(new IOException(
+					"The resolver has been closed"));
+			return future;
+		}
+
+		metrics.onLookup();
+		long lookupAt = System.nanoTime();
+		CacheKey key;
+		try {
+			key = CacheKey.of(name, qtype, DnsQueryEncoder.IN_CLASS);
+		} catch (IllegalArgumentException e) {
+			future.completeExceptionally(e);
+			return future;
+		}
+		DnsAnswer stale = null;
+		if (cache != null) {
+			DnsAnswer cached = cache.get(key);
+			if (cached != null) {
+				metrics.onCacheHit();
+				cached.setResponseStats(System.nanoTime() - lookupAt, 0);
+				deliver(future, cached);
+				return future;
+			}
+			metrics.onCacheMiss();
+			if (staleDeadlineNanos >= 0)
+				stale = cache.getStale(key);
+		}
+
+		// Identical lookups already on their way to a server share its
+		// answer instead of sending their own query
+		CompletableFuture<DnsAnswer> flight = inProgress.get(key);
+		if (flight == null) {
+			CompletableFuture<DnsAnswer> created = new CompletableFuture<DnsAnswer>();
+			flight = inProgress.putIfAbsent(key, created);
+			if (flight == null)
+				flight = startFlight(name, qtype, key, created);
+			else
+				metrics.onCoalesced();
+		} else
+			metrics.onCoalesced();
+
+		// Every caller gets its own future, so one of them cancelling or
+		// completing it cannot affect the others
+		DnsAnswer staleAnswer = stale;
+		flight.whenComplete((answer, error) -> {
+			if (staleAnswer != null && isFailure(answer, error))
+				serveStale(future, staleAnswer, lookupAt);
+			else if (error != null)
+				future.completeExceptionally(error);
+			else
+				deliver(future, answer);
+		});
+		if (staleAnswer != null && !future.isDone()) {
+			long deadline = lookupAt + staleDeadlineNanos;
+			execute(() -> {
+				if (future.isDone())
+					return;
+				long now = System.nanoTime();
+				TimerWheel.Timeout staleTimer = timerWheel.schedule(
+						() -> serveStale(future, staleAnswer, lookupAt),
+						deadline - now, now);
+				// An upstream answer that comes first leaves nothing to wait
+				// for, the timer is dropped rather than left in the wheel
+				future.whenComplete((answer, error) -> execute(staleTimer::cancel));
+			});
+		}
+		return future;
+	}
+
+	/**
+	 * @return whether the lookup got no usable answer from any server, as
+	 *         opposed to an answer such as NXDOMAIN
+	 */
+	private static boolean isFailure(DnsAnswer answer, Throwable error) {
+		if (error != null)
+			return true;
+		int rcode = answer.getHeader().getRCODE();
+		return rcode == 2 || rcode == 5;
+	}
+
+	private void serveStale(CompletableFuture<DnsAnswer> future,
+			DnsAnswer stale, long lookupAt) {
+		if (future.isDone())
+			return;
+		DnsAnswer answer = stale.withMaximumTTL(STALE_TTL_SECONDS);
+		answer.setResponseStats(System.nanoTime() - lookupAt, 0);
+		if (deliver(future, answer))
+			metrics.onStaleAnswer();
+	}
+
+	private CompletableFuture<DnsAnswer> startFlight(String name,
+			short qtype, CacheKey key, CompletableFuture<DnsAnswer> flight) {
+		flight.whenComplete((answer, error) -> inProgress.remove(key, flight));
+		submit(new PendingQuery(name, qtype, key, flight));
+		return flight;
+	}
+
+	/**
+	 * Sends one query straight to one of the given name servers, bypassing
+	 * the cache and the configured servers, and completes with whatever it
+	 * answers, referrals and error RCODEs included. Meant for iterative
+	 * resolution, which asks authoritative servers with recursion off.
+	 *
+	 * @param nameservers
+	 *            the servers to choose from, by RTT, retrying on the others
+	 * @param name
+	 * @param qtype
+	 * @param recursionDesired
+	 *            whether to set the RD bit
+	 * @return the pending response
+	 */
+	public CompletableFuture<DnsAnswer> query(
+			List<InetSocketAddress> nameservers, String name, short qtype,
+			boolean recursionDesired) {
+		CompletableFuture<DnsAnswer> future = new CompletableFuture<DnsAnswer>();
+		if (!running) {
+			future.completeExceptionally(new IOException(
+					"The resolver has been closed"));
+			return future;
+		}
+		if (nameservers.isEmpty()) {
+			future.completeExceptionally(new IllegalArgumentException(
+					"No name server was given"));
+			return future;
+		}
+		PendingQuery query = new PendingQuery(name, qtype, null, future);
+		query.targets = new ArrayList<InetSocketAddress>(
+				new LinkedHashSet<InetSocketAddress>(nameservers));
+		query.recursionDesired = recursionDesired;
+		submit(query);
+		return future;
+	}
+
+	/**
+	 * Refreshes cached answers that are looked up again within the last
+	 * part of their TTL, ahead of their expiry. The refresh goes through the
+	 * usual query path and its answer replaces the cached one; lookups in
+	 * the meantime are still served from the cache.
+	 *
+	 * @param ttlFraction
+	 *            how far into the TTL to start refreshing, 0.1 refreshes
+	 *            entries hit during the last tenth of their TTL
+	 * @param maxPerSecond
+	 *            the most refreshes to send per second, so that prefetching
+	 *            cannot crowd out lookups that missed
+	 */
+	public void enablePrefetch(double ttlFraction, double maxPerSecond) {
+		if (cache == null)
+			throw new IllegalStateException("Prefetch needs a cache");
+		prefetchLimit = new TokenBucket(maxPerSecond, Math.max(1, maxPerSecond));
+		cache.setPrefetch(ttlFraction, this::prefetch);
+	}
+
+	private boolean prefetch(CacheKey key, DnsAnswer answer) {
+		if (!running)
+			return true;
+		// A lookup that missed may already be asking for the same thing
+		CompletableFuture<DnsAnswer> flight = inProgress.get(key);
+		if (flight != null) {
+			onRefreshed(key, flight);
+			return true;
+		}
+		if (!prefetchLimit.tryAcquire()) {
+			metrics.onPrefetchThrottled();
+			return false;
+		}
+		CompletableFuture<DnsAnswer> created = new CompletableFuture<DnsAnswer>();
+		flight = inProgress.putIfAbsent(key, created);
+		if (flight != null) {
+			onRefreshed(key, flight);
+			return true;
+		}
+		metrics.onPrefetch();
+		String name = DnsWireParser.readName(ByteBuffer.wrap(key.getQNAME()), 0);
+		startFlight(name, key.getQTYPE(), key, created);
+		onRefreshed(key, created);
+		return true;
+	}
+
+	/**
+	 * An answer that is not cached leaves the old entry in place, which a
+	 * later hit then has to be able to refresh again.
+	 */
+	private void onRefreshed(CacheKey key, CompletableFuture<DnsAnswer> flight) {
+		flight.whenComplete((answer, error) -> {
+			if (error != null || answer.getHeader().getRCODE() != 0
+					&& answer.getHeader().getRCODE() != 3)
+				cache.refreshFailed(key);
+		});
+	}
+
+	/**
+	 * Hands out expired answers when the servers fail or are slow, as
+	 * described in RFC 8767. Stale answers carry a TTL of at most 30
+	 * seconds.
+	 *
+	 * @param staleWindowSeconds
+	 *            how long past their expiry answers are kept for this
+	 * @param clientTimeoutMillis
+	 *            how long a lookup waits for a fresh answer before taking
+	 *            the stale one, RFC 8767 suggests 1800
+	 */
+	public void enableServeStale(long staleWindowSeconds,
+			long clientTimeoutMillis) {
+		if (cache == null)
+			throw new IllegalStateException("Serve-stale needs a cache");
+		if (clientTimeoutMillis < 0)
+			throw new IllegalArgumentException(
+					"The client timeout cannot be negative");
+		cache.setStaleWindow(staleWindowSeconds);
+		staleDeadlineNanos = TimeUnit.MILLISECONDS
+				.toNanos(clientTimeoutMillis);
+	}
+
+	private void submit(PendingQuery query) {
+		submissions.add(query);
+		wakeup();
+	}
+
+	/**
+	 * Runs the task on the I/O thread.
+	 */
+	private void execute(Runnable task) {
+		tasks.add(task);
+		wakeup();
+	}
+
+	private void wakeup() {
+		// Only the first submission since the last select needs a wakeup
+		if (wakeupPending.compareAndSet(false, true))
+			selector.wakeup();
+	}
+
+	/**
+	 * @return what has been learned about each server so far
+	 */
+	public List<ServerStats> getServerStats() {
+		return servers;
+	}
+
+	/**
+	 * @return the resolver's counters and latency histograms
+	 */
+	public ResolverMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Stops the I/O thread and fails every lookup still outstanding.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (!running)
+			return;
+		running = false;
+		selector.wakeup();
+		try {
+			ioThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		channel.close();
+		selector.close();
+		metrics.close();
+	}
+
+	private void ioLoop() {
+		try {
+			while (running) {
+				// Sleeps until the earliest timer is due, not tick by tick
+				long wait = timerWheel.nanosUntilNextTimeout(System.nanoTime());
+				long waitMillis = wait >= TimeUnit.MILLISECONDS
+						.toNanos(IDLE_SELECT_MILLIS) ? IDLE_SELECT_MILLIS
+						: TimeUnit.NANOSECONDS.toMillis(wait + 999999);
+				if (waitMillis == 0)
+					selector.selectNow();
+				else
+					selector.select(waitMillis);
+				wakeupPending.set(false);
+
+				for (SelectionKey key : selector.selectedKeys()) {
+					if (key.attachment() instanceof TcpConnection)
+						((TcpConnection) key.attachment()).handle(System
+								.nanoTime());
+					else
+						receiveAll();
+				}
+				selector.selectedKeys().clear();
+				Runnable task;
+				while ((task = tasks.poll()) != null)
+					task.run();
+				drainSubmissions();
+				long now = System.nanoTime();
+				timerWheel.advance(now);
+				closeIdleConnections(now);
+			}
+		} catch (IOException e) {
+			System.err.println("ERROR" + "	" + "The resolver stopped: "
+					+ e.getMessage());
+		} finally {
+			running = false;
+			failOutstanding();
+		}
+	}
+
+	private void drainSubmissions() {
+		// Leave anything that does not fit in the ID space queued until
+		// answers free some IDs up
+		PendingQuery query;
+		while (inFlightCount < ID_SPACE && (query = submissions.poll()) != null)
+			send(query);
+	}
+
+	private void send(PendingQuery query) {
+		int id = random.nextInt(ID_SPACE);
+		while (inFlight[id] != null)
+			id = (id + 1) & (ID_SPACE - 1);
+
+		// The query is encoded once into a pooled buffer that is kept for
+		// retransmissions and for matching the echoed question
+		ByteBuffer data = queryBuffers.acquire();
+		try {
+			query.questionEnd = DnsQueryEncoder.encode(data, id, query.name,
+					query.qtype, DnsQueryEncoder.IN_CLASS,
+					query.recursionDesired);
+			if (udpPayloadSize > 0)
+				DnsQueryEncoder.writeOpt(data, 0, udpPayloadSize);
+		} catch (IllegalArgumentException e) {
+			queryBuffers.release(data);
+			query.future.completeExceptionally(e);
+			return;
+		}
+		data.flip();
+		query.id = id;
+		query.data = data;
+
+		inFlight[id] = query;
+		inFlightCount++;
+		query.startedAt = System.nanoTime();
+		query.candidates = query.targets == null ? servers
+				: nameserverStats(query.targets);
+		query.server = bestServer(query.candidates, null, query.startedAt);
+		transmit(query);
+	}
+
+	private List<ServerStats> nameserverStats(
+			List<InetSocketAddress> addresses) {
+		if (nameservers.size() > MAX_TRACKED_NAMESERVERS)
+			nameservers.clear();
+		List<ServerStats> stats = new ArrayList<ServerStats>(addresses.size());
+		for (InetSocketAddress address : addresses) {
+			ServerStats server = serverAt(servers, address);
+			if (server == null)
+				server = nameservers.computeIfAbsent(address, ServerStats::new);
+			stats.add(server);
+		}
+		return stats;
+	}
+
+	/**
+	 * @return the candidate with the lowest score, other than the one given
+	 */
+	private static ServerStats bestServer(List<ServerStats> candidates,
+			ServerStats excluded, long now) {
+		ServerStats best = null;
+		long bestScore = Long.MAX_VALUE;
+		for (ServerStats server : candidates) {
+			long score = server.score(now);
+			if (server != excluded && score < bestScore) {
+				best = server;
+				bestScore = score;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Sends the query to its current server and starts the retransmit timer,
+	 * and the hedge timer when there is another server to hedge to. Over TCP,
+	 * which retransmits by itself, the timer is the whole timeout.
+	 */
+	private void transmit(PendingQuery query) {
+		long now = System.nanoTime();
+		if (query.overTcp) {
+			query.timeout = timerWheel.schedule(query, timeoutNanos, now);
+			query.recordAttempt(query.server, now);
+			transmitTcp(query, now);
+			return;
+		}
+		query.timeout = timerWheel.schedule(query,
+				retransmitTimeout(query.server, query.retries), now);
+		if (query.candidates.size() > 1)
+			query.hedge = timerWheel.schedule(() -> onHedge(query),
+					hedgeDelay(query.server), now);
+		try {
+			transmitUdp(query, query.server, now);
+		} catch (IOException e) {
+			release(query);
+			query.future.completeExceptionally(new IOException(
+					"The DNS packet did not successfully get sent", e));
+		}
+	}
+
+	private void transmitUdp(PendingQuery query, ServerStats server, long now)
+			throws IOException {
+		query.recordAttempt(server, now);
+		// A full send buffer drops the datagram, which the retransmit timer
+		// then treats like any other lost packet
+		query.data.position(0);
+		channel.send(query.data, server.getAddress());
+	}
+
+	/**
+	 * The server's RTO, doubled for every retry and capped at the configured
+	 * timeout. An unmeasured server gets RFC 6298's initial second. The last
+	 * attempt waits the whole timeout so that a slow answer is not given up
+	 * on just because the earlier ones were fast.
+	 */
+	long retransmitTimeout(ServerStats server, int retries) {
+		if (retries >= maxRetries - 1)
+			return timeoutNanos;
+		long rto = server.getRetransmitTimeoutNanos();
+		if (rto == 0)
+			rto = INITIAL_RTO_NANOS;
+		rto = Math.max(rto, MIN_RTO_NANOS);
+		for (int i = 0; i < retries && rto < timeoutNanos; i++)
+			rto <<= 1;
+		return Math.min(rto, timeoutNanos);
+	}
+
+	/**
+	 * How long to give a server before hedging: twice its smoothed RTT, or
+	 * half the initial RTO while it has none.
+	 */
+	private long hedgeDelay(ServerStats server) {
+		long srtt = server.getSmoothedRttNanos();
+		if (srtt == 0)
+			return Math.min(timeoutNanos, INITIAL_RTO_NANOS) / 2;
+		return Math.min(Math.max(2 * srtt, TICK_NANOS), timeoutNanos / 2);
+	}
+
+	private void onHedge(PendingQuery query) {
+		query.hedge = null;
+		if (query.overTcp)
+			return;
+		long now = System.nanoTime();
+		ServerStats other = bestServer(query.candidates, query.server, now);
+		query.hedgedTo = other;
+		metrics.onHedge();
+		try {
+			transmitUdp(query, other, now);
+		} catch (IOException e) {
+			// The first server may still answer, only the hedge is lost
+			query.hedgedTo = null;
+			other.onFailure(now);
+		}
+	}
+
+	private void transmitTcp(PendingQuery query, long now) {
+		InetSocketAddress server = query.server.getAddress();
+		TcpConnection connection = tcpConnections.get(server);
+		if (connection == null) {
+			try {
+				connection = new TcpConnection(server, selector, this, now);
+			} catch (IOException e) {
+				release(query);
+				query.future.completeExceptionally(new IOException(
+						"The TCP connection could not be opened", e));
+				return;
+			}
+			tcpConnections.put(server, connection);
+		}
+
+		if (query.connection != null)
+			query.connection.outstanding--;
+		query.connection = connection;
+		connection.outstanding++;
+		connection.lastActive = now;
+		query.data.position(0);
+		connection.send(query.data);
+	}
+
+	private void onTimeout(PendingQuery query) {
+		long now = System.nanoTime();
+		if (query.hedge != null)
+			query.hedge.cancel();
+		query.server.onFailure(now);
+		if (query.hedgedTo != null)
+			query.hedgedTo.onFailure(now);
+		query.hedgedTo = null;
+
+		// Keep trying until number of retries exceeds max retries, each time
+		// with whichever server now looks best
+		query.retries++;
+		if (query.retries >= maxRetries) {
+			release(query);
+			metrics.onTimeout();
+			query.future.completeExceptionally(new SocketTimeoutException(
+					"A timeout occured"));
+		} else if (query.overTcp) {
+			// Sending the query again on the same connection would only
+			// queue a duplicate behind the first. It goes to the next best
+			// server instead, or to the same one over a new connection.
+			TcpConnection stalled = query.connection;
+			if (stalled != null) {
+				stalled.outstanding--;
+				query.connection = null;
+			}
+			ServerStats other = bestServer(query.candidates, query.server, now);
+			if (other != null)
+				query.server = other;
+			else if (stalled != null)
+				stalled.close(new IOException("The TCP connection stalled"));
+			metrics.onRetransmit();
+			transmit(query);
+		} else {
+			query.server = bestServer(query.candidates, null, now);
+			metrics.onRetransmit();
+			transmit(query);
+		}
+	}
+
+	/**
+	 * @return the server at the address, or null if it is not one of them
+	 */
+	private static ServerStats serverAt(List<ServerStats> candidates,
+			SocketAddress address) {
+		for (ServerStats server : candidates) {
+			if (server.getAddress().equals(address))
+				return server;
+		}
+		return null;
+	}
+
+	/**
+	 * Credits the server with the answer, and takes an RTT sample unless the
+	 * query was sent to it more than once.
+	 *
+	 * @return the time since the query was last sent to the server
+	 */
+	private long onAnswer(PendingQuery query, ServerStats server) {
+		long now = System.nanoTime();
+		long rtt = now - query.lastSentAt(server);
+		if (query.sendCount(server) == 1)
+			server.onRttSample(rtt);
+		server.onAnswer(now);
+		server.getLatency().record(rtt);
+		metrics.onReceived();
+		return rtt;
+	}
+
+	private void receiveAll() throws IOException {
+		while (true) {
+			receiveBuffer.clear();
+			SocketAddress from = channel.receive(receiveBuffer);
+			if (from == null)
+				return;
+
+			receiveBuffer.flip();
+			receiveView.wrap(receiveBuffer);
+			if (!receiveView.hasHeader())
+				continue;
+
+			// Match on the datagram in place, only a response that belongs
+			// to a query is copied out
+			PendingQuery query = inFlight[receiveView.getID()];
+			if (query == null || query.overTcp || !receiveView.isResponse())
+				continue;
+			ServerStats server = serverAt(query.candidates, from);
+			if (server == null || query.sendCount(server) == 0
+					|| !receiveView.questionEquals(query.data,
+							query.questionEnd))
+				continue;
+
+			long responseTime = onAnswer(query, server);
+			if (receiveView.isTruncated()) {
+				metrics.onTruncated();
+				// Ask the same server again over TCP, the retry budget
+				// starts over
+				cancelTimers(query);
+				query.server = server;
+				query.overTcp = true;
+				query.retries = 0;
+				transmit(query);
+				continue;
+			}
+			if (retryWithoutEdns(query, server) || retryElsewhere(query, server))
+				continue;
+
+			release(query);
+			byte[] data = new byte[receiveBuffer.remaining()];
+			receiveBuffer.get(data);
+			try {
+				complete(query, ByteBuffer.wrap(data), responseTime);
+			} catch (RuntimeException e) {
+				// A malformed response must not take the I/O thread down
+				query.future.completeExceptionally(new IOException(
+						"The DNS packet wasn't successfully received", e));
+			}
+		}
+	}
+
+	/**
+	 * A server that does not know EDNS answers FORMERR without an OPT record
+	 * (RFC 6891 section 7). The OPT record is cut off the query, which is
+	 * then sent again.
+	 *
+	 * @return true if the query was sent again
+	 */
+	private boolean retryWithoutEdns(PendingQuery query, ServerStats server) {
+		if (receiveView.getRCODE() != 1 || query.data.limit() == query.questionEnd)
+			return false;
+		try {
+			if (receiveView.getOptRecord() >= 0)
+				return false;
+		} catch (RuntimeException e) {
+			return false; // Malformed, complete() reports it
+		}
+		cancelTimers(query);
+		query.server = server;
+		query.data.putShort(10, (short) 0); // ARCOUNT
+		query.data.limit(query.questionEnd);
+		transmit(query);
+		return true;
+	}
+
+	/**
+	 * With more than one server, SERVFAIL or REFUSED from one of them is not
+	 * the final word. The query waits for its hedge if there is one, or is
+	 * sent to the next best server.
+	 *
+	 * @return true if the query is still outstanding
+	 */
+	private boolean retryElsewhere(PendingQuery query, ServerStats server) {
+		int rcode = receiveView.getRCODE();
+		if ((rcode != 2 && rcode != 5) || query.candidates.size() == 1
+				|| query.retries + 1 >= maxRetries)
+			return false;
+
+		long now = System.nanoTime();
+		server.onFailure(now);
+		if (query.hedgedTo != null) {
+			// The other copy is still out
+			if (server == query.server)
+				query.server = query.hedgedTo;
+			query.hedgedTo = null;
+			return true;
+		}
+		cancelTimers(query);
+		query.retries++;
+		query.server = bestServer(query.candidates, server, now);
+		transmit(query);
+		return true;
+	}
+
+	@Override
+	public void onTcpMessage(TcpConnection connection, ByteBuffer message) {
+		receiveView.wrap(message);
+		if (!receiveView.hasHeader())
+			return;
+		PendingQuery query = inFlight[receiveView.getID()];
+		if (query == null || query.connection != connection
+				|| !receiveView.isResponse()
+				|| !receiveView.questionEquals(query.data, query.questionEnd))
+			return;
+		long responseTime = onAnswer(query, query.server);
+		if (retryWithoutEdns(query, query.server))
+			return;
+
+		release(query);
+		try {
+			complete(query, message, responseTime);
+		} catch (RuntimeException e) {
+			query.future.completeExceptionally(new IOException(
+					"The DNS packet wasn't successfully received", e));
+		}
+	}
+
+	@Override
+	public void onTcpClosed(TcpConnection connection, IOException cause) {
+		tcpConnections.remove(connection.getServer());
+		if (connection.outstanding == 0 || !running)
+			return;
+
+		// Whatever was still waiting on the connection is sent again on a
+		// new one, which counts against the retries. A server that cannot
+		// be connected to at all fails them straight away.
+		for (PendingQuery query : inFlight) {
+			if (query == null || query.connection != connection)
+				continue;
+			if (connection.isConnected()) {
+				cancelTimers(query);
+				onTimeout(query);
+			} else {
+				release(query);
+				query.future.completeExceptionally(new IOException(
+						"The TCP connection could not be opened", cause));
+			}
+		}
+	}
+
+	private void closeIdleConnections(long now) {
+		if (tcpConnections.isEmpty())
+			return;
+		for (TcpConnection connection : new ArrayList<TcpConnection>(
+				tcpConnections.values())) {
+			if (connection.outstanding == 0
+					&& now - connection.lastActive > TCP_IDLE_NANOS)
+				connection.close(null);
+		}
+	}
+
+	private void complete(PendingQuery query, ByteBuffer message,
+			long responseTime) {
+		DnsPacketHeader dnsHeader = new DnsPacketHeader();
+		try {
+			dnsHeader.parse(message);
+		} catch (Exception e) {
+			// The RCODE is checked once the answer is delivered
+		}
+		DnsAnswer dnsAnswer = new DnsAnswer(0);
+		dnsAnswer.parse(message, dnsHeader);
+		dnsAnswer.setResponseStats(responseTime, query.retries);
+		metrics.onAnswer(query.qtype, dnsHeader.getRCODE(), System.nanoTime()
+				- query.startedAt);
+		// NXDOMAIN is remembered as well so dead names are not retried
+		byte rcode = dnsHeader.getRCODE();
+		if (cache != null && query.key != null && (rcode == 0 || rcode == 3)) {
+			cache.put(query.key, dnsAnswer);
+			// Saves the follow-up lookups of MX and NS targets
+			cache.putAdditional(dnsAnswer);
+		}
+
+		// Whatever the RCODE, the flight's callers decide what to make of it
+		query.future.complete(dnsAnswer);
+	}
+
+	/**
+	 * Completes the future with the answer, or with a DnsResponseException
+	 * when the answer carries a non-zero RCODE.
+	 *
+	 * @return false if the future was already complete
+	 */
+	private static boolean deliver(CompletableFuture<DnsAnswer> future,
+			DnsAnswer dnsAnswer) {
+		if (dnsAnswer.getHeader().getRCODE() != 0)
+			return future.completeExceptionally(new DnsResponseException(
+					dnsAnswer));
+		return future.complete(dnsAnswer);
+	}
+
+	private void cancelTimers(PendingQuery query) {
+		query.timeout.cancel();
+		if (query.hedge != null)
+			query.hedge.cancel();
+		query.hedge = null;
+		query.hedgedTo = null;
+	}
+
+	private void release(PendingQuery query) {
+		cancelTimers(query);
+		if (query.connection != null) {
+			query.connection.outstanding--;
+			query.connection = null;
+		}
+		inFlight[query.id] = null;
+		inFlightCount--;
+		queryBuffers.release(query.data);
+		query.data = null;
+	}
+
+	private void failOutstanding() {
+		IOException closed = new IOException("The resolver has been closed");
+		for (TcpConnection connection : new ArrayList<TcpConnection>(
+				tcpConnections.values()))
+			connection.close(closed);
+
+		for (int id = 0; id < ID_SPACE; id++) {
+			PendingQuery query = inFlight[id];
+			if (query != null) {
+				inFlight[id] = null;
+				query.future.completeExceptionally(closed);
+			}
+		}
+		inFlightCount = 0;
+
+		PendingQuery query;
+		while ((query = submissions.poll()) != null)
+			query.future.completeExceptionally(closed);
+	}
+
+	private class PendingQuery implements Runnable {
+		private final String name;
+		private final short qtype;
+		private final CacheKey key;
+		private final CompletableFuture<DnsAnswer> future;
+		// The name servers to ask instead of the configured ones, if any
+		private List<InetSocketAddress> targets;
+		private List<ServerStats> candidates;
+		private boolean recursionDesired = true;
+		private ByteBuffer data;
+		private int id;
+		private int retries;
+		private TimerWheel.Timeout timeout;
+		private TimerWheel.Timeout hedge;
+		private ServerStats server;
+		private ServerStats hedgedTo;
+		// Every send, for matching answers to servers and for Karn's rule
+		private ServerStats[] sentTo = new ServerStats[4];
+		private long[] sentAt = new long[4];
+		private int sends;
+		private long startedAt;
+		private boolean overTcp;
+		private int questionEnd;
+		private TcpConnection connection;
+
+		PendingQuery(String name, short qtype, CacheKey key,
+				CompletableFuture<DnsAnswer> future) {
+			this.name = name;
+			this.qtype = qtype;
+			this.key = key;
+			this.future = future;
+		}
+
+		@Override
+		public void run() {
+			onTimeout(this);
+		}
+
+		void recordAttempt(ServerStats server, long now) {
+			if (sends == sentTo.length) {
+				sentTo = Arrays.copyOf(sentTo, sends * 2);
+				sentAt = Arrays.copyOf(sentAt, sends * 2);
+			}
+			sentTo[sends] = server;
+			sentAt[sends] = now;
+			sends++;
+			server.onSent();
+			metrics.onSent();
+		}
+
+		int sendCount(ServerStats server) {
+			int count = 0;
+			for (int i = 0; i < sends; i++) {
+				if (sentTo[i] == server)
+					count++;
+			}
+			return count;
+		}
+
+		long lastSentAt(ServerStats server) {
+			for (int i = sends - 1; i >= 0; i--) {
+				if (sentTo[i] == server)
+					return sentAt[i];
+			}
+			return 0;
+		}
+	}
+}
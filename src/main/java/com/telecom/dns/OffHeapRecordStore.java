@@ -0,0 +1,497 @@
+package com.telecom.dns;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cached answers kept in wire format outside the Java heap, so that a cache
+ * of millions of answers is a few dozen objects to the garbage collector
+ * however many entries it holds.
+ *
+ * The store is split into shards by key hash, each behind its own lock.
+ * A shard indexes its records with an open-addressing hash table, itself a
+ * direct buffer of (hash, address) slots probed linearly, keyed on the
+ * lowercased QNAME bytes, QTYPE and QCLASS. The records are appended to a
+ * ring of fixed size segments, also direct buffers. When the ring comes
+ * round, the oldest segment is emptied by dropping its records from the
+ * index and written over, so the store never grows past its capacity and
+ * evicts in insertion order. Replacing or removing an entry only marks the
+ * old record dead, its space comes back with its segment.
+ *
+ * A record is its length, key hash, expiry and original TTL in nanoseconds,
+ * the prefetch and live flags, the QNAME length and QNAME, QTYPE, QCLASS,
+ * and the message length and message. With the index slot that makes 48
+ * bytes besides the name and message, plus the index's spare slots.
+ */
+final class OffHeapRecordStore {
+
+	private static final int SHARDS = 16;
+	private static final int SEGMENTS_PER_SHARD = 8;
+	private static final int SLOT_SIZE = 12;
+	private static final int INITIAL_SLOTS = 1 << 10;
+
+	private static final int LENGTH = 0;
+	private static final int HASH = 4;
+	private static final int EXPIRES_AT = 8;
+	private static final int TTL = 16;
+	private static final int REFRESHING = 24;
+	private static final int LIVE = 25;
+	private static final int QNAME_LENGTH = 26;
+	private static final int RECORD_HEADER = 28;
+
+	// A record with the longest name and message there can be
+	private static final int MAX_RECORD = RECORD_HEADER + 255 + 8 + 65535;
+
+	/**
+	 * The smallest capacity that fits a record of the largest size in every
+	 * segment.
+	 */
+	static final long MIN_CAPACITY = (long) SHARDS * SEGMENTS_PER_SHARD
+			* MAX_RECORD;
+
+	private final Shard[] shards = new Shard[SHARDS];
+	private final long capacity;
+
+	/**
+	 * An answer read back from the store.
+	 */
+	static final class Record {
+		final CacheKey key;
+		// A heap copy, it stays valid whatever happens to the store
+		final ByteBuffer message;
+		final long ttlNanos;
+		final long expiresAt;
+
+		Record(CacheKey key, ByteBuffer message, long ttlNanos, long expiresAt) {
+			this.key = key;
+			this.message = message;
+			this.ttlNanos = ttlNanos;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	/**
+	 * @param capacity
+	 *            the bytes of record segments to use, at least
+	 *            {@link #MIN_CAPACITY}. Segments are allocated as they are
+	 *            first written and count against -XX:MaxDirectMemorySize.
+	 */
+	OffHeapRecordStore(long capacity) {
+		if (capacity < MIN_CAPACITY)
+			throw new IllegalArgumentException("The off-heap cache needs at least "
+					+ ((MIN_CAPACITY >> 20) + 1) + " MB");
+		long segmentSize = capacity / SHARDS / SEGMENTS_PER_SHARD;
+		if (segmentSize > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("The off-heap cache is too large");
+		for (int i = 0; i < SHARDS; i++)
+			shards[i] = new Shard((int) segmentSize);
+		this.capacity = segmentSize * SHARDS * SEGMENTS_PER_SHARD;
+	}
+
+	long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the bytes of segments allocated so far
+	 */
+	long getAllocated() {
+		long allocated = 0;
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				for (ByteBuffer segment : shard.segments) {
+					if (segment != null)
+						allocated += segment.capacity();
+				}
+				allocated += shard.index.capacity();
+			}
+		}
+		return allocated;
+	}
+
+	int size() {
+		int size = 0;
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				size += shard.count;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Stores the answer, replacing any under the same key.
+	 *
+	 * @param message
+	 *            the response, from position to limit, copied into the store
+	 * @return false if the message is too large to store
+	 */
+	boolean put(CacheKey key, ByteBuffer message, long ttlNanos, long expiresAt) {
+		int hash = key.hashCode();
+		Shard shard = shard(hash);
+		synchronized (shard) {
+			return shard.put(key, hash, message, ttlNanos, expiresAt);
+		}
+	}
+
+	/**
+	 * @return the answer under the key, expired or not, or null
+	 */
+	Record get(CacheKey key) {
+		int hash = key.hashCode();
+		Shard shard = shard(hash);
+		synchronized (shard) {
+			int slot = shard.find(key, hash);
+			return slot < 0 ? null : shard.read(shard.address(slot), key);
+		}
+	}
+
+	boolean contains(CacheKey key) {
+		int hash = key.hashCode();
+		Shard shard = shard(hash);
+		synchronized (shard) {
+			return shard.find(key, hash) >= 0;
+		}
+	}
+
+	/**
+	 * Removes the answer under the key if it is still the one that expires
+	 * at the time given.
+	 */
+	void remove(CacheKey key, long expiresAt) {
+		int hash = key.hashCode();
+		Shard shard = shard(hash);
+		synchronized (shard) {
+			int slot = shard.find(key, hash);
+			if (slot >= 0 && shard.expiresAt(shard.address(slot)) == expiresAt)
+				shard.delete(slot);
+		}
+	}
+
+	/**
+	 * Sets or clears the prefetch flag of the answer under the key, if it is
+	 * still the one that expires at the time given.
+	 *
+	 * @return false if the flag already had that value, or the answer is
+	 *         gone
+	 */
+	boolean setRefreshing(CacheKey key, long expiresAt, boolean refreshing) {
+		int hash = key.hashCode();
+		Shard shard = shard(hash);
+		synchronized (shard) {
+			int slot = shard.find(key, hash);
+			if (slot < 0)
+				return false;
+			long address = shard.address(slot);
+			if (shard.expiresAt(address) != expiresAt)
+				return false;
+			ByteBuffer segment = shard.segment(address);
+			int offset = offset(address) + REFRESHING;
+			byte value = (byte) (refreshing ? 1 : 0);
+			if (segment.get(offset) == value)
+				return false;
+			segment.put(offset, value);
+			return true;
+		}
+	}
+
+	/**
+	 * Removes every answer that expired before the time given.
+	 *
+	 * @param before
+	 *            in System.nanoTime() terms
+	 */
+	void removeExpired(long before) {
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				for (int segment = 0; segment < SEGMENTS_PER_SHARD; segment++)
+					shard.removeRecords(segment, before);
+			}
+		}
+	}
+
+	/**
+	 * @return a heap copy of every answer, expired or not
+	 */
+	List<Record> records() {
+		List<Record> records = new ArrayList<Record>();
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				for (int segment = 0; segment < SEGMENTS_PER_SHARD; segment++)
+					shard.readRecords(segment, records);
+			}
+		}
+		return records;
+	}
+
+	void clear() {
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				shard.clear();
+			}
+		}
+	}
+
+	private Shard shard(int hash) {
+		// The low bits pick the index slot, the shard comes from the top
+		return shards[spread(hash) >>> 28];
+	}
+
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * Segment numbers start at one so that an empty slot's address is 0.
+	 */
+	private static long address(int segment, int offset) {
+		return (long) (segment + 1) << 32 | offset;
+	}
+
+	private static int segmentOf(long address) {
+		return (int) (address >>> 32) - 1;
+	}
+
+	private static int offset(long address) {
+		return (int) address;
+	}
+
+	/**
+	 * One lock's worth of the store. Every method is called holding it.
+	 */
+	private static final class Shard {
+		private final int segmentSize;
+		private final ByteBuffer[] segments = new ByteBuffer[SEGMENTS_PER_SHARD];
+		// How far each segment has been written
+		private final int[] used = new int[SEGMENTS_PER_SHARD];
+		private int current;
+		private ByteBuffer index = ByteBuffer.allocateDirect(INITIAL_SLOTS
+				* SLOT_SIZE);
+		private int mask = INITIAL_SLOTS - 1;
+		private int count;
+
+		Shard(int segmentSize) {
+			this.segmentSize = segmentSize;
+		}
+
+		boolean put(CacheKey key, int hash, ByteBuffer message,
+				long ttlNanos, long expiresAt) {
+			byte[] qname = key.getQNAME();
+			int length = RECORD_HEADER + qname.length + 8 + message.remaining();
+			if (length > segmentSize)
+				return false;
+			// Allocating first, emptying a segment may drop the old record
+			// under this key
+			long address = allocate(length);
+			ByteBuffer segment = segment(address);
+			int at = offset(address);
+			segment.putInt(at + LENGTH, length);
+			segment.putInt(at + HASH, hash);
+			segment.putLong(at + EXPIRES_AT, expiresAt);
+			segment.putLong(at + TTL, ttlNanos);
+			segment.put(at + REFRESHING, (byte) 0);
+			segment.put(at + LIVE, (byte) 1);
+			segment.putShort(at + QNAME_LENGTH, (short) qname.length);
+			int position = at + RECORD_HEADER;
+			for (byte b : qname)
+				segment.put(position++, b);
+			segment.putShort(position, key.getQTYPE());
+			segment.putShort(position + 2, key.getQCLASS());
+			segment.putInt(position + 4, message.remaining());
+			position += 8;
+			for (int i = message.position(); i < message.limit(); i++)
+				segment.put(position++, message.get(i));
+
+			int slot = find(key, hash);
+			if (slot >= 0) {
+				kill(address(slot));
+				setSlot(slot, hash, address);
+				return true;
+			}
+			if (count + 1 > (mask + 1) / 4 * 3)
+				resize();
+			slot = spread(hash) & mask;
+			while (address(slot) != 0)
+				slot = (slot + 1) & mask;
+			setSlot(slot, hash, address);
+			count++;
+			return true;
+		}
+
+		/**
+		 * @return the address of room for the record, at the end of the
+		 *         current segment or at the start of the next one
+		 */
+		private long allocate(int length) {
+			if (used[current] + length > segmentSize) {
+				current = (current + 1) % SEGMENTS_PER_SHARD;
+				removeRecords(current, Long.MAX_VALUE);
+				used[current] = 0;
+			}
+			if (segments[current] == null)
+				segments[current] = ByteBuffer.allocateDirect(segmentSize);
+			long address = OffHeapRecordStore.address(current, used[current]);
+			used[current] += length;
+			return address;
+		}
+
+		/**
+		 * Removes the live records of a segment that expired before the
+		 * time given, Long.MAX_VALUE for all of them.
+		 */
+		void removeRecords(int segmentNumber, long before) {
+			ByteBuffer segment = segments[segmentNumber];
+			for (int at = 0; at < used[segmentNumber]; at += segment.getInt(at
+					+ LENGTH)) {
+				if (segment.get(at + LIVE) == 0)
+					continue;
+				if (before != Long.MAX_VALUE
+						&& segment.getLong(at + EXPIRES_AT) - before > 0)
+					continue;
+				long address = OffHeapRecordStore.address(segmentNumber, at);
+				int hash = segment.getInt(at + HASH);
+				int slot = spread(hash) & mask;
+				for (int probes = 0; address(slot) != address; probes++) {
+					// Every live record is indexed, reaching an empty slot or
+					// going all the way round means the index is broken
+					if (address(slot) == 0 || probes > mask)
+						throw new IllegalStateException("The record at "
+								+ address + " is live but not indexed");
+					slot = (slot + 1) & mask;
+				}
+				delete(slot);
+			}
+		}
+
+		void readRecords(int segmentNumber, List<Record> records) {
+			ByteBuffer segment = segments[segmentNumber];
+			for (int at = 0; at < used[segmentNumber]; at += segment.getInt(at
+					+ LENGTH)) {
+				if (segment.get(at + LIVE) != 0)
+					records.add(read(OffHeapRecordStore.address(segmentNumber,
+							at), null));
+			}
+		}
+
+		/**
+		 * @return the slot holding the key, or -1
+		 */
+		int find(CacheKey key, int hash) {
+			for (int slot = spread(hash) & mask;; slot = (slot + 1) & mask) {
+				long address = address(slot);
+				if (address == 0)
+					return -1;
+				if (index.getInt(slot * SLOT_SIZE) == hash
+						&& keyEquals(address, key))
+					return slot;
+			}
+		}
+
+		private boolean keyEquals(long address, CacheKey key) {
+			ByteBuffer segment = segment(address);
+			int at = offset(address);
+			byte[] qname = key.getQNAME();
+			if (segment.getShort(at + QNAME_LENGTH) != qname.length)
+				return false;
+			at += RECORD_HEADER;
+			for (int i = 0; i < qname.length; i++) {
+				if (segment.get(at + i) != qname[i])
+					return false;
+			}
+			at += qname.length;
+			return segment.getShort(at) == key.getQTYPE()
+					&& segment.getShort(at + 2) == key.getQCLASS();
+		}
+
+		Record read(long address, CacheKey key) {
+			ByteBuffer segment = segment(address);
+			int at = offset(address);
+			int qnameLength = segment.getShort(at + QNAME_LENGTH);
+			int position = at + RECORD_HEADER;
+			if (key == null) {
+				byte[] qname = new byte[qnameLength];
+				for (int i = 0; i < qnameLength; i++)
+					qname[i] = segment.get(position + i);
+				key = new CacheKey(qname, segment.getShort(position
+						+ qnameLength), segment.getShort(position + qnameLength
+						+ 2));
+			}
+			position += qnameLength + 4;
+			byte[] message = new byte[segment.getInt(position)];
+			ByteBuffer source = segment.duplicate();
+			source.position(position + 4).limit(position + 4 + message.length);
+			source.get(message);
+			return new Record(key, ByteBuffer.wrap(message),
+					segment.getLong(at + TTL), segment.getLong(at + EXPIRES_AT));
+		}
+
+		long expiresAt(long address) {
+			return segment(address).getLong(offset(address) + EXPIRES_AT);
+		}
+
+		ByteBuffer segment(long address) {
+			return segments[segmentOf(address)];
+		}
+
+		long address(int slot) {
+			return index.getLong(slot * SLOT_SIZE + 4);
+		}
+
+		private void setSlot(int slot, int hash, long address) {
+			index.putInt(slot * SLOT_SIZE, hash);
+			index.putLong(slot * SLOT_SIZE + 4, address);
+		}
+
+		private void kill(long address) {
+			segment(address).put(offset(address) + LIVE, (byte) 0);
+		}
+
+		/**
+		 * Empties the slot and shifts later slots of the probe run back into
+		 * it, so lookups never need tombstones.
+		 */
+		void delete(int slot) {
+			kill(address(slot));
+			int hole = slot;
+			for (int next = (hole + 1) & mask; address(next) != 0; next = (next + 1)
+					& mask) {
+				int home = spread(index.getInt(next * SLOT_SIZE)) & mask;
+				// The entry may fill the hole if the hole lies between its
+				// home slot and where it sits now
+				if (((next - home) & mask) >= ((next - hole) & mask)) {
+					setSlot(hole, index.getInt(next * SLOT_SIZE), address(next));
+					hole = next;
+				}
+			}
+			setSlot(hole, 0, 0);
+			count--;
+		}
+
+		private void resize() {
+			ByteBuffer old = index;
+			int oldSlots = mask + 1;
+			index = ByteBuffer.allocateDirect(oldSlots * 2 * SLOT_SIZE);
+			mask = oldSlots * 2 - 1;
+			for (int i = 0; i < oldSlots; i++) {
+				long address = old.getLong(i * SLOT_SIZE + 4);
+				if (address == 0)
+					continue;
+				int hash = old.getInt(i * SLOT_SIZE);
+				int slot = spread(hash) & mask;
+				while (address(slot) != 0)
+					slot = (slot + 1) & mask;
+				setSlot(slot, hash, address);
+			}
+		}
+
+		void clear() {
+			for (int i = 0; i <= mask; i++)
+				setSlot(i, 0, 0);
+			for (int i = 0; i < SEGMENTS_PER_SHARD; i++)
+				used[i] = 0;
+			current = 0;
+			count = 0;
+		}
+	}
+}
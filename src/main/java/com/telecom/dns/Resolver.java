@@ -0,0 +1,438 @@
+package com.telecom.dns;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Resolves names in-process. A Resolver holds one socket, one I/O thread
+ * and optionally an answer cache, and is meant to be built once and shared:
+ * every method is safe to call from any thread, and concurrent lookups of
+ * the same name go out as one query.
+ *
+ * <pre>
+ * try (Resolver resolver = Resolver.builder()
+ * 		.server(new InetSocketAddress("8.8.8.8", 53)).cache().build()) {
+ * 	for (DnsRecord record : resolver.resolve("www.mcgill.ca", DnsRecord.A_TYPE))
+ * 		System.out.println(record.getAddress());
+ * }
+ * </pre>
+ *
+ * Lookups either go to recursive servers through a {@link NioResolver} or,
+ * when built with {@link Builder#iterative(int)}, are resolved from the root
+ * down by an {@link IterativeResolver}.
+ */
+public class Resolver implements Closeable {
+
+	private final NioResolver transport;
+	private final IterativeResolver iterative;
+	private final DnsCache cache;
+	private final Path cacheFile;
+
+	private Resolver(NioResolver transport, IterativeResolver iterative,
+			DnsCache cache, Path cacheFile) {
+		this.transport = transport;
+		this.iterative = iterative;
+		this.cache = cache;
+		this.cacheFile = cacheFile;
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * Looks up the name. The future completes with the whole response, or
+	 * exceptionally with a SocketTimeoutException once every retry has timed
+	 * out, or with a DnsResponseException holding the response when it
+	 * carries a non-zero RCODE.
+	 *
+	 * @param name
+	 * @param qtype
+	 *            the QTYPE, in class IN
+	 * @return the pending answer
+	 */
+	public CompletableFuture<DnsAnswer> lookup(String name, short qtype) {
+		return iterative != null ? iterative.lookup(name, qtype) : transport
+				.lookup(name, qtype);
+	}
+
+	/**
+	 * @param name
+	 * @param type
+	 *            one of the DnsQuestion types
+	 * @return the pending answer
+	 * @see #lookup(String, short)
+	 */
+	public CompletableFuture<DnsAnswer> lookup(String name, String type) {
+		short qtype = DnsQuestion.toQTYPE(type);
+		if (qtype == 0) {
+			CompletableFuture<DnsAnswer> future = new CompletableFuture<DnsAnswer>();
+			future.completeExceptionally(new IllegalArgumentException(
+					"Unknown query type " + type));
+			return future;
+		}
+		return lookup(name, qtype);
+	}
+
+	/**
+	 * Looks up the name and picks out the answer records of the type asked
+	 * for, leaving out the CNAMEs that led to them.
+	 *
+	 * @param name
+	 * @param qtype
+	 * @return the pending records, empty if the name has none of the type
+	 */
+	public CompletableFuture<List<DnsRecord>> resolveAsync(String name,
+			short qtype) {
+		return lookup(name, qtype).thenApply(answer -> recordsOf(answer, qtype));
+	}
+
+	/**
+	 * Looks up the name and waits for the answer.
+	 *
+	 * @param name
+	 * @param qtype
+	 * @return the answer records of the type asked for, empty if the name
+	 *         has none
+	 * @throws IOException
+	 *             if the lookup timed out or failed, or the name does not
+	 *             exist
+	 */
+	public List<DnsRecord> resolve(String name, short qtype) throws IOException {
+		return recordsOf(await(lookup(name, qtype)), qtype);
+	}
+
+	/**
+	 * @param name
+	 * @param type
+	 *            one of the DnsQuestion types
+	 * @return the answer records of the type asked for
+	 * @throws IOException
+	 * @see #resolve(String, short)
+	 */
+	public List<DnsRecord> resolve(String name, String type) throws IOException {
+		short qtype = DnsQuestion.toQTYPE(type);
+		if (qtype == 0)
+			throw new IllegalArgumentException("Unknown query type " + type);
+		return resolve(name, qtype);
+	}
+
+	private static List<DnsRecord> recordsOf(DnsAnswer answer, short qtype) {
+		List<DnsRecord> records = new ArrayList<DnsRecord>();
+		for (DnsRecord record : answer.getRecords()) {
+			if (record.getType() == qtype)
+				records.add(record);
+		}
+		return Collections.unmodifiableList(records);
+	}
+
+	private static DnsAnswer await(CompletableFuture<DnsAnswer> future)
+			throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("The lookup was interrupted");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof CompletionException && cause.getCause() != null)
+				cause = cause.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IOException(cause.getMessage(), cause);
+		}
+	}
+
+	/**
+	 * @return the answer cache, or null if the resolver has none
+	 */
+	public DnsCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * @return the counters and latency histograms of the queries sent
+	 */
+	public ResolverMetrics getMetrics() {
+		return transport.getMetrics();
+	}
+
+	/**
+	 * @return what has been learned about each configured server
+	 */
+	public List<ServerStats> getServerStats() {
+		return transport.getServerStats();
+	}
+
+	/**
+	 * @return the zone cuts learned so far, or null unless resolving
+	 *         iteratively
+	 */
+	public DelegationCache getDelegations() {
+		return iterative != null ? iterative.getDelegations() : null;
+	}
+
+	/**
+	 * Stops the I/O thread, failing every lookup still outstanding, and
+	 * saves the cache to its file if it has one.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			transport.close();
+		} finally {
+			if (cacheFile != null) {
+				try {
+					cache.save(cacheFile);
+				} catch (IOException e) {
+					throw new IOException("The cache file could not be saved: "
+							+ e.getMessage(), e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Configures a Resolver. Every setting has a default, only the servers
+	 * have to be given unless resolving iteratively from the root servers.
+	 */
+	public static class Builder {
+		private final List<InetSocketAddress> servers = new ArrayList<InetSocketAddress>();
+		private long timeoutMillis = 5000;
+		private int maxRetries = 3;
+		private int udpPayloadSize = 1232;
+		private int cacheEntries;
+		private long cacheBytes;
+		private long offHeapBytes;
+		private Path cacheFile;
+		private boolean prefetch;
+		private double prefetchFraction;
+		private double prefetchRate;
+		private boolean serveStale;
+		private long staleWindowSeconds;
+		private long clientTimeoutMillis;
+		private boolean iterative;
+		private int nameserverPort;
+
+		private Builder() {
+		}
+
+		/**
+		 * Adds a server to query, or a root hint when resolving iteratively.
+		 */
+		public Builder server(InetSocketAddress server) {
+			servers.add(server);
+			return this;
+		}
+
+		public Builder servers(List<InetSocketAddress> servers) {
+			this.servers.addAll(servers);
+			return this;
+		}
+
+		/**
+		 * @param timeoutMillis
+		 *            the longest to wait before retransmitting, 5 seconds by
+		 *            default
+		 */
+		public Builder timeout(long timeoutMillis) {
+			this.timeoutMillis = timeoutMillis;
+			return this;
+		}
+
+		/**
+		 * @param maxRetries
+		 *            how many timeouts to allow before giving up, 3 by
+		 *            default
+		 */
+		public Builder maxRetries(int maxRetries) {
+			this.maxRetries = maxRetries;
+			return this;
+		}
+
+		/**
+		 * @param udpPayloadSize
+		 *            the EDNS0 UDP payload size to advertise, 1232 by
+		 *            default, or 0 for plain 512 byte DNS
+		 */
+		public Builder edns(int udpPayloadSize) {
+			this.udpPayloadSize = udpPayloadSize;
+			return this;
+		}
+
+		/**
+		 * Caches answers for their TTL, up to
+		 * {@link DnsCache#DEFAULT_MAX_ENTRIES} of them.
+		 */
+		public Builder cache() {
+			return cache(DnsCache.DEFAULT_MAX_ENTRIES);
+		}
+
+		/**
+		 * Caches answers for their TTL, up to this many of them whatever
+		 * their size. Use {@link #cacheBytes(long)} to bound the memory
+		 * they take instead.
+		 */
+		public Builder cache(int maxEntries) {
+			if (maxEntries <= 0)
+				throw new IllegalArgumentException(
+						"The cache size must be positive");
+			this.cacheEntries = maxEntries;
+			return this;
+		}
+
+		/**
+		 * Caches answers in up to this many bytes of heap, keeping the most
+		 * popular ones once full. Each answer weighs its message plus a fixed
+		 * overhead, so a few large answers cannot hold as much memory as
+		 * many small ones would under an entry bound. Takes precedence over
+		 * {@link #cache(int)}.
+		 *
+		 * @see DnsCache#withMaxBytes(long)
+		 */
+		public Builder cacheBytes(long maxBytes) {
+			if (maxBytes <= 0)
+				throw new IllegalArgumentException(
+						"The cache size must be positive");
+			this.cacheBytes = maxBytes;
+			return this;
+		}
+
+		/**
+		 * Caches answers off the Java heap, in up to this many bytes.
+		 *
+		 * @see DnsCache#offHeap(long)
+		 */
+		public Builder offHeapCache(long capacityBytes) {
+			if (capacityBytes < DnsCache.MIN_OFF_HEAP_CAPACITY)
+				throw new IllegalArgumentException(
+						"The off-heap cache size must be at least "
+								+ DnsCache.MIN_OFF_HEAP_CAPACITY + " bytes");
+			this.offHeapBytes = capacityBytes;
+			return this;
+		}
+
+		/**
+		 * Caches answers, starting from those saved in the file if it
+		 * exists, and saves them back to it on close.
+		 */
+		public Builder cacheFile(Path cacheFile) {
+			this.cacheFile = cacheFile;
+			return this;
+		}
+
+		/**
+		 * Caches answers and refreshes hot ones ahead of their expiry.
+		 *
+		 * @see NioResolver#enablePrefetch(double, double)
+		 */
+		public Builder prefetch(double ttlFraction, double maxPerSecond) {
+			this.prefetch = true;
+			this.prefetchFraction = ttlFraction;
+			this.prefetchRate = maxPerSecond;
+			return this;
+		}
+
+		/**
+		 * Caches answers and keeps expired ones for when the servers fail or
+		 * are slow.
+		 *
+		 * @see NioResolver#enableServeStale(long, long)
+		 */
+		public Builder serveStale(long staleWindowSeconds,
+				long clientTimeoutMillis) {
+			this.serveStale = true;
+			this.staleWindowSeconds = staleWindowSeconds;
+			this.clientTimeoutMillis = clientTimeoutMillis;
+			return this;
+		}
+
+		/**
+		 * Resolves from the root down instead of asking recursive servers.
+		 * The servers given are the root hints, the built-in root servers
+		 * when none are.
+		 *
+		 * @param nameserverPort
+		 *            the port every other name server is asked on
+		 */
+		public Builder iterative(int nameserverPort) {
+			this.iterative = true;
+			this.nameserverPort = nameserverPort;
+			return this;
+		}
+
+		/**
+		 * Opens the socket and starts the I/O thread.
+		 *
+		 * @return the resolver
+		 * @throws IOException
+		 *             if the socket cannot be opened, or the cache file
+		 *             exists but is not one
+		 * @throws IllegalArgumentException
+		 *             if the settings do not go together
+		 */
+		public Resolver build() throws IOException {
+			if (iterative && (prefetch || serveStale))
+				throw new IllegalArgumentException(
+						"Prefetch and serve-stale need a recursive server");
+			List<InetSocketAddress> targets = servers;
+			if (iterative && targets.isEmpty())
+				targets = IterativeResolver.defaultRootHints();
+
+			DnsCache cache = null;
+			if (offHeapBytes > 0)
+				cache = DnsCache.offHeap(offHeapBytes);
+			else if (cacheBytes > 0)
+				cache = DnsCache.withMaxBytes(cacheBytes);
+			else if (cacheEntries > 0 || cacheFile != null || prefetch
+					|| serveStale)
+				cache = new DnsCache(cacheEntries > 0 ? cacheEntries
+						: DnsCache.DEFAULT_MAX_ENTRIES);
+			if (cacheFile != null && Files.exists(cacheFile)) {
+				try {
+					cache.load(cacheFile);
+				} catch (IOException e) {
+					// Going on would overwrite the file on close
+					throw new IOException("The cache file could not be loaded: "
+							+ e.getMessage(), e);
+				}
+			}
+
+			// Iterative lookups are cached by the IterativeResolver, the
+			// NioResolver only carries its queries
+			NioResolver transport;
+			try {
+				transport = new NioResolver(targets, timeoutMillis,
+						maxRetries, iterative ? null : cache, udpPayloadSize);
+			} catch (IOException e) {
+				throw new IOException("The socket didn't bind to a port: "
+						+ e.getMessage(), e);
+			}
+			try {
+				if (prefetch)
+					transport.enablePrefetch(prefetchFraction, prefetchRate);
+				if (serveStale)
+					transport.enableServeStale(staleWindowSeconds,
+							clientTimeoutMillis);
+			} catch (RuntimeException e) {
+				transport.close();
+				throw e;
+			}
+			IterativeResolver iterativeResolver = iterative ? new IterativeResolver(
+					transport, targets, nameserverPort, cache) : null;
+			return new Resolver(transport, iterativeResolver, cache, cacheFile);
+		}
+	}
+}
@@ -0,0 +1,374 @@
+package com.telecom.dns;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms for one resolver. Recording only touches
+ * LongAdders and atomic arrays, so it takes no locks and, once a query type
+ * has been seen, allocates nothing. The figures can be published as a JMX
+ * MBean and dumped as text on a schedule.
+ */
+public class ResolverMetrics implements ResolverMetricsMBean {
+
+	// Query types below this get their own histogram, the rest share one
+	private static final int TRACKED_QTYPES = 256;
+	private static final int RCODES = 16;
+	private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS
+			.toNanos(1);
+
+	private final List<ServerStats> servers;
+
+	private final LongAdder lookups = new LongAdder();
+	private final LongAdder coalesced = new LongAdder();
+	private final LongAdder sent = new LongAdder();
+	private final LongAdder received = new LongAdder();
+	private final LongAdder retransmissions = new LongAdder();
+	private final LongAdder hedged = new LongAdder();
+	private final LongAdder timeouts = new LongAdder();
+	private final LongAdder truncated = new LongAdder();
+	private final LongAdder cacheHits = new LongAdder();
+	private final LongAdder cacheMisses = new LongAdder();
+	private final LongAdder prefetches = new LongAdder();
+	private final LongAdder prefetchesThrottled = new LongAdder();
+	private final LongAdder staleAnswers = new LongAdder();
+	private final AtomicLongArray rcodes = new AtomicLongArray(RCODES);
+
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final AtomicReferenceArray<LatencyHistogram> qtypeLatency = new AtomicReferenceArray<LatencyHistogram>(
+			TRACKED_QTYPES);
+
+	private ObjectName registeredAs;
+	private ScheduledExecutorService dumper;
+
+	ResolverMetrics(List<ServerStats> servers) {
+		this.servers = servers;
+	}
+
+	void onLookup() {
+		lookups.increment();
+	}
+
+	void onCoalesced() {
+		coalesced.increment();
+	}
+
+	void onSent() {
+		sent.increment();
+	}
+
+	void onReceived() {
+		received.increment();
+	}
+
+	void onRetransmit() {
+		retransmissions.increment();
+	}
+
+	void onHedge() {
+		hedged.increment();
+	}
+
+	void onTimeout() {
+		timeouts.increment();
+	}
+
+	void onTruncated() {
+		truncated.increment();
+	}
+
+	void onCacheHit() {
+		cacheHits.increment();
+	}
+
+	void onCacheMiss() {
+		cacheMisses.increment();
+	}
+
+	void onPrefetch() {
+		prefetches.increment();
+	}
+
+	void onPrefetchThrottled() {
+		prefetchesThrottled.increment();
+	}
+
+	void onStaleAnswer() {
+		staleAnswers.increment();
+	}
+
+	/**
+	 * Records a lookup the server answered, from its first send to the
+	 * answer.
+	 */
+	void onAnswer(short qtype, int rcode, long latencyNanos) {
+		rcodes.incrementAndGet(rcode & (RCODES - 1));
+		latency.record(latencyNanos);
+		qtypeHistogram(qtype).record(latencyNanos);
+	}
+
+	private LatencyHistogram qtypeHistogram(short qtype) {
+		int slot = (qtype & 0xffff) < TRACKED_QTYPES ? qtype & 0xffff : 0;
+		LatencyHistogram histogram = qtypeLatency.get(slot);
+		if (histogram == null) {
+			qtypeLatency.compareAndSet(slot, null, new LatencyHistogram());
+			histogram = qtypeLatency.get(slot);
+		}
+		return histogram;
+	}
+
+	/**
+	 * @return the latency of every answered lookup
+	 */
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	@Override
+	public long getLookups() {
+		return lookups.sum();
+	}
+
+	@Override
+	public long getCoalescedLookups() {
+		return coalesced.sum();
+	}
+
+	@Override
+	public long getQueriesSent() {
+		return sent.sum();
+	}
+
+	@Override
+	public long getResponsesReceived() {
+		return received.sum();
+	}
+
+	@Override
+	public long getRetransmissions() {
+		return retransmissions.sum();
+	}
+
+	@Override
+	public long getHedgedQueries() {
+		return hedged.sum();
+	}
+
+	@Override
+	public long getTimeouts() {
+		return timeouts.sum();
+	}
+
+	@Override
+	public long getTruncatedResponses() {
+		return truncated.sum();
+	}
+
+	@Override
+	public long getCacheHits() {
+		return cacheHits.sum();
+	}
+
+	@Override
+	public long getCacheMisses() {
+		return cacheMisses.sum();
+	}
+
+	@Override
+	public long getPrefetches() {
+		return prefetches.sum();
+	}
+
+	@Override
+	public long getPrefetchesThrottled() {
+		return prefetchesThrottled.sum();
+	}
+
+	@Override
+	public long getStaleAnswers() {
+		return staleAnswers.sum();
+	}
+
+	@Override
+	public String[] getRcodeCounts() {
+		List<String> counts = new ArrayList<String>();
+		for (int rcode = 0; rcode < RCODES; rcode++) {
+			long count = rcodes.get(rcode);
+			if (count > 0)
+				counts.add(rcodeName(rcode) + " " + count);
+		}
+		return counts.toArray(new String[0]);
+	}
+
+	@Override
+	public double getLatencyP50() {
+		return latency.getPercentile(50) / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getLatencyP90() {
+		return latency.getPercentile(90) / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getLatencyP99() {
+		return latency.getPercentile(99) / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getLatencyP999() {
+		return latency.getPercentile(99.9) / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public String[] getQtypeLatencies() {
+		List<String> lines = new ArrayList<String>();
+		for (int slot = 0; slot < TRACKED_QTYPES; slot++) {
+			LatencyHistogram histogram = qtypeLatency.get(slot);
+			if (histogram != null)
+				lines.add((slot == 0 ? "OTHER" : qtypeName(slot)) + "	"
+						+ histogram.getCount() + " answers, "
+						+ histogram.summary());
+		}
+		return lines.toArray(new String[0]);
+	}
+
+	@Override
+	public String[] getServerLatencies() {
+		String[] lines = new String[servers.size()];
+		for (int i = 0; i < lines.length; i++)
+			lines[i] = servers.get(i).summary() + ", "
+					+ servers.get(i).getLatency().summary();
+		return lines;
+	}
+
+	@Override
+	public String dump() {
+		StringBuilder out = new StringBuilder();
+		out.append("lookups ").append(getLookups())
+				.append(", coalesced ").append(getCoalescedLookups())
+				.append(", sent ").append(getQueriesSent())
+				.append(", received ").append(getResponsesReceived())
+				.append(", retransmitted ").append(getRetransmissions())
+				.append(", hedged ").append(getHedgedQueries())
+				.append(", timed out ").append(getTimeouts())
+				.append(", truncated ").append(getTruncatedResponses())
+				.append(", cache hits ").append(getCacheHits())
+				.append(", cache misses ").append(getCacheMisses())
+				.append(", prefetched ").append(getPrefetches())
+				.append(", prefetches throttled ")
+				.append(getPrefetchesThrottled())
+				.append(", served stale ").append(getStaleAnswers())
+				.append('\n');
+		out.append("rcodes");
+		for (String count : getRcodeCounts())
+			out.append("	").append(count);
+		out.append('\n');
+		out.append("latency	").append(latency.summary()).append('\n');
+		for (String line : getQtypeLatencies())
+			out.append("qtype ").append(line).append('\n');
+		for (String line : getServerLatencies())
+			out.append("server ").append(line).append('\n');
+		return out.toString();
+	}
+
+	/**
+	 * Publishes the metrics on the platform MBean server as
+	 * com.telecom.dns:type=Resolver,name=&lt;name&gt;.
+	 *
+	 * @param name
+	 * @throws JMException
+	 */
+	public synchronized void register(String name) throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName objectName = new ObjectName("com.telecom.dns:type=Resolver,name="
+				+ ObjectName.quote(name));
+		server.registerMBean(this, objectName);
+		registeredAs = objectName;
+	}
+
+	/**
+	 * Prints {@link #dump()} every period on a daemon thread.
+	 *
+	 * @param out
+	 * @param periodSeconds
+	 */
+	public synchronized void startDump(PrintStream out, long periodSeconds) {
+		if (dumper != null)
+			return;
+		dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "dns-metrics-dump");
+			thread.setDaemon(true);
+			return thread;
+		});
+		dumper.scheduleAtFixedRate(() -> out.print(dump()), periodSeconds,
+				periodSeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Stops the dump and takes the MBean off the MBean server.
+	 */
+	public synchronized void close() {
+		if (dumper != null) {
+			dumper.shutdownNow();
+			dumper = null;
+		}
+		if (registeredAs != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+						registeredAs);
+			} catch (JMException e) {
+				// Already gone
+			}
+			registeredAs = null;
+		}
+	}
+
+	static String qtypeName(int qtype) {
+		switch (qtype) {
+		case DnsRecord.A_TYPE:
+			return "A";
+		case DnsRecord.NS_TYPE:
+			return "NS";
+		case DnsRecord.CNAME_TYPE:
+			return "CNAME";
+		case DnsRecord.SOA_TYPE:
+			return "SOA";
+		case DnsRecord.MX_TYPE:
+			return "MX";
+		case DnsRecord.AAAA_TYPE:
+			return "AAAA";
+		}
+		return "TYPE" + qtype;
+	}
+
+	static String rcodeName(int rcode) {
+		switch (rcode) {
+		case 0:
+			return "NOERROR";
+		case 1:
+			return "FORMERR";
+		case 2:
+			return "SERVFAIL";
+		case 3:
+			return "NXDOMAIN";
+		case 4:
+			return "NOTIMP";
+		case 5:
+			return "REFUSED";
+		}
+		return "RCODE" + rcode;
+	}
+}
@@ -0,0 +1,74 @@
+package com.telecom.dns;
+
+/**
+ * The JMX view of a resolver's {@link ResolverMetrics}. Latencies are in
+ * milliseconds.
+ */
+public interface ResolverMetricsMBean {
+
+	long getLookups();
+
+	/**
+	 * @return lookups that shared a query already in flight
+	 */
+	long getCoalescedLookups();
+
+	long getQueriesSent();
+
+	long getResponsesReceived();
+
+	long getRetransmissions();
+
+	long getHedgedQueries();
+
+	long getTimeouts();
+
+	long getTruncatedResponses();
+
+	long getCacheHits();
+
+	long getCacheMisses();
+
+	/**
+	 * @return cached answers refreshed ahead of their expiry
+	 */
+	long getPrefetches();
+
+	/**
+	 * @return refreshes put off by the prefetch rate limit
+	 */
+	long getPrefetchesThrottled();
+
+	/**
+	 * @return lookups answered from expired cache entries
+	 */
+	long getStaleAnswers();
+
+	/**
+	 * @return "RCODE count" for every RCODE seen
+	 */
+	String[] getRcodeCounts();
+
+	double getLatencyP50();
+
+	double getLatencyP90();
+
+	double getLatencyP99();
+
+	double getLatencyP999();
+
+	/**
+	 * @return a latency summary line per query type seen
+	 */
+	String[] getQtypeLatencies();
+
+	/**
+	 * @return a latency summary line per server
+	 */
+	String[] getServerLatencies();
+
+	/**
+	 * @return everything above as text
+	 */
+	String dump();
+}
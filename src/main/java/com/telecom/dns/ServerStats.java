@@ -0,0 +1,156 @@
+package com.telecom.dns;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a resolver has learned about one upstream server: a smoothed round
+ * trip time and its variance, the retransmission timeout computed from them
+ * as in RFC 6298 (Jacobson/Karels), and a failure score that grows with every timeout or error
+ * answer and decays with good answers and with time. Servers with the
+ * lowest score are asked first.
+ *
+ * Only the resolver's I/O thread updates the figures. They are volatile so
+ * that other threads can report them.
+ */
+public class ServerStats {
+
+	// The RTT and variance gains of 1/8 and 1/4 from RFC 6298
+	private static final int SRTT_SHIFT = 3;
+	private static final int RTTVAR_SHIFT = 2;
+	private static final long CLOCK_GRANULARITY_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(1);
+	// Added to the RTT so that failures count against servers not yet timed
+	private static final long SCORE_FLOOR_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(1);
+	private static final long FAILURE_HALF_LIFE_NANOS = TimeUnit.SECONDS
+			.toNanos(30);
+
+	private final InetSocketAddress address;
+	private final LatencyHistogram latency = new LatencyHistogram();
+
+	private volatile long smoothedRttNanos;
+	private volatile long rttVarianceNanos;
+	private volatile long retransmitTimeoutNanos;
+	private volatile double failureScore;
+	private volatile long failureScoreAt;
+	private volatile long queries;
+	private volatile long answers;
+	private volatile long failures;
+
+	public ServerStats(InetSocketAddress address) {
+		this.address = address;
+	}
+
+	public InetSocketAddress getAddress() {
+		return address;
+	}
+
+	/**
+	 * @return the smoothed round trip time, or 0 before the first sample
+	 */
+	public long getSmoothedRttNanos() {
+		return smoothedRttNanos;
+	}
+
+	public long getRttVarianceNanos() {
+		return rttVarianceNanos;
+	}
+
+	/**
+	 * @return SRTT + max(G, 4 * RTTVAR), or 0 before the first sample
+	 */
+	public long getRetransmitTimeoutNanos() {
+		return retransmitTimeoutNanos;
+	}
+
+	public double getFailureScore(long nowNanos) {
+		if (failureScore == 0)
+			return 0;
+		double halfLives = (nowNanos - failureScoreAt)
+				/ (double) FAILURE_HALF_LIFE_NANOS;
+		return failureScore * Math.pow(0.5, halfLives);
+	}
+
+	/**
+	 * @return the time from the last send to the answer, for every answer
+	 */
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	public long getQueries() {
+		return queries;
+	}
+
+	public long getAnswers() {
+		return answers;
+	}
+
+	/**
+	 * @return how many queries timed out or were answered SERVFAIL or REFUSED
+	 */
+	public long getFailures() {
+		return failures;
+	}
+
+	/**
+	 * The expected cost of asking this server, its RTT inflated by its
+	 * failure score. A server that has not answered yet scores low, so
+	 * every server gets measured.
+	 */
+	long score(long nowNanos) {
+		return (long) ((smoothedRttNanos + SCORE_FLOOR_NANOS) * (1 + getFailureScore(nowNanos)));
+	}
+
+	void onSent() {
+		queries++;
+	}
+
+	/**
+	 * Folds an RTT sample into the smoothed RTT and its variance and works
+	 * out the new retransmission timeout. Samples must come from queries
+	 * that were sent to this server only once (Karn's algorithm).
+	 */
+	void onRttSample(long rttNanos) {
+		rttNanos = Math.max(rttNanos, 1);
+		if (smoothedRttNanos == 0) {
+			smoothedRttNanos = rttNanos;
+			rttVarianceNanos = rttNanos / 2;
+		} else {
+			// The variance is updated with the old SRTT, before SRTT moves
+			long deviation = Math.abs(smoothedRttNanos - rttNanos);
+			rttVarianceNanos += (deviation - rttVarianceNanos) >> RTTVAR_SHIFT;
+			smoothedRttNanos += (rttNanos - smoothedRttNanos) >> SRTT_SHIFT;
+		}
+		retransmitTimeoutNanos = smoothedRttNanos
+				+ Math.max(CLOCK_GRANULARITY_NANOS, 4 * rttVarianceNanos);
+	}
+
+	void onAnswer(long nowNanos) {
+		answers++;
+		setFailureScore(getFailureScore(nowNanos) / 2, nowNanos);
+	}
+
+	void onFailure(long nowNanos) {
+		failures++;
+		setFailureScore(getFailureScore(nowNanos) + 1, nowNanos);
+	}
+
+	private void setFailureScore(double score, long nowNanos) {
+		failureScore = score < 0.01 ? 0 : score;
+		failureScoreAt = nowNanos;
+	}
+
+	/**
+	 * Formats the figures in milliseconds.
+	 */
+	public String summary() {
+		double millis = TimeUnit.MILLISECONDS.toNanos(1);
+		return String.format("%s	srtt %.3f ms, rttvar %.3f ms, rto %.3f ms, "
+				+ "failure score %.2f, %d queries, %d answers, %d failures",
+				address.getAddress().getHostAddress() + ":" + address.getPort(),
+				smoothedRttNanos / millis, rttVarianceNanos / millis,
+				retransmitTimeoutNanos / millis, getFailureScore(System.nanoTime()), queries, answers, failures);
+	}
+}
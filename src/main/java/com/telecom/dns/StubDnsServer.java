@@ -0,0 +1,660 @@
+package com.telecom.dns;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process authoritative stand-in server for load tests and benchmarks.
+ * It listens on a loopback UDP and TCP port and answers from a zone map.
+ * Latency, loss, truncation and error RCODEs can be injected so the client's
+ * retry and timeout handling runs deterministically without a network.
+ *
+ * NS records below a declared zone's apex are zone cuts: queries at or
+ * under them get a referral, with the NS records in the authority section
+ * and any A or AAAA records for the name servers as glue, the way a root or
+ * TLD server answers. NS records at the apex itself are answered like any
+ * other record, and NS records in no declared zone are ignored. Several
+ * stubs bound to different loopback addresses can stand in for the whole
+ * delegation chain, the root one declaring the zone "".
+ *
+ * It can also run on its own from a zone file of "name TYPE ttl data" lines,
+ * where a "zone SOA negative-ttl" line declares a zone:
+ *
+ * <pre>
+ * java -cp dnsClient.jar com.telecom.dns.StubDnsServer 5353 zone.txt
+ * </pre>
+ */
+public class StubDnsServer implements Closeable {
+
+	private static final int MAX_MESSAGE_SIZE = 65535;
+	private static final int PLAIN_UDP_PAYLOAD = 512;
+	private static final int DEFAULT_UDP_PAYLOAD = 4096;
+	private static final int MAX_CNAME_HOPS = 8;
+	private static final int BIND_ATTEMPTS = 10;
+
+	private final DatagramChannel udp;
+	private final ServerSocketChannel tcp;
+	private final InetSocketAddress address;
+	private final ScheduledExecutorService responders;
+	private final List<SocketChannel> connections = new CopyOnWriteArrayList<SocketChannel>();
+	private volatile boolean running = true;
+
+	// Owner names are lowercased and kept without the trailing dot
+	private final ConcurrentHashMap<String, List<DnsRecord>> records = new ConcurrentHashMap<String, List<DnsRecord>>();
+	private final ConcurrentHashMap<String, Integer> zones = new ConcurrentHashMap<String, Integer>();
+	private final ConcurrentHashMap<String, Integer> nameRcodes = new ConcurrentHashMap<String, Integer>();
+
+	private volatile long latencyMillis;
+	private volatile long jitterMillis;
+	private volatile double lossRate;
+	private volatile boolean truncateUdp;
+	private volatile boolean ednsSupported = true;
+	private volatile int udpPayloadLimit = DEFAULT_UDP_PAYLOAD;
+	private volatile int rcode = -1;
+
+	private final AtomicLong udpQueries = new AtomicLong();
+	private final AtomicLong tcpQueries = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * Starts a server on an ephemeral loopback port.
+	 */
+	public StubDnsServer() throws IOException {
+		this(0);
+	}
+
+	public StubDnsServer(int port) throws IOException {
+		this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+	}
+
+	/**
+	 * Starts a server with UDP and TCP bound to the same address and port.
+	 * With port 0 an ephemeral port that is free for both is picked.
+	 *
+	 * @param bindAddress
+	 * @throws IOException
+	 */
+	public StubDnsServer(InetSocketAddress bindAddress) throws IOException {
+		DatagramChannel udp = null;
+		ServerSocketChannel tcp = null;
+		for (int attempt = 0; tcp == null; attempt++) {
+			udp = DatagramChannel.open();
+			udp.bind(bindAddress);
+			InetSocketAddress bound = (InetSocketAddress) udp
+					.getLocalAddress();
+			try {
+				tcp = ServerSocketChannel.open();
+				tcp.bind(bound);
+			} catch (BindException e) {
+				// Someone already has the TCP side of this port
+				tcp.close();
+				tcp = null;
+				udp.close();
+				if (bindAddress.getPort() != 0 || attempt >= BIND_ATTEMPTS)
+					throw e;
+			}
+		}
+		this.udp = udp;
+		this.tcp = tcp;
+		this.address = (InetSocketAddress) udp.getLocalAddress();
+		this.responders = Executors.newScheduledThreadPool(2, runnable -> {
+			Thread thread = new Thread(runnable, "dns-stub-responder");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		startThread(this::serveUdp, "dns-stub-udp");
+		startThread(this::acceptTcp, "dns-stub-tcp");
+	}
+
+	/**
+	 * Serves the zone file given on the command line until killed.
+	 *
+	 * @param args
+	 *            the port and the zone file
+	 */
+	public static void main(String[] args) throws IOException,
+			InterruptedException {
+		if (args.length != 2) {
+			System.err.println("usage: StubDnsServer port zonefile");
+			return;
+		}
+
+		StubDnsServer server = new StubDnsServer(Integer.parseInt(args[0]));
+		BufferedReader zone = new BufferedReader(new FileReader(args[1]));
+		try {
+			String line;
+			while ((line = zone.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.charAt(0) == '#')
+					continue;
+				String[] fields = line.split("\\s+", 4);
+				if (fields.length >= 3 && fields[1].equalsIgnoreCase("SOA"))
+					server.addZone(fields[0], Integer.parseInt(fields[2]));
+				else if (fields.length == 4)
+					server.addRecord(fields[0], fields[1],
+							Integer.parseInt(fields[2]), fields[3]);
+				else
+					System.err.println("ERROR	Skipping zone line: " + line);
+			}
+		} finally {
+			zone.close();
+		}
+
+		System.err.println("Serving on " + server.getAddress());
+		Thread.currentThread().join();
+	}
+
+	/**
+	 * Declares a zone so that names under it that have no records get
+	 * NXDOMAIN or NODATA with an SOA, instead of REFUSED.
+	 *
+	 * @param zone
+	 * @param negativeTTL
+	 *            the SOA TTL and MINIMUM sent with negative answers
+	 */
+	public StubDnsServer addZone(String zone, int negativeTTL) {
+		zones.put(normalize(zone), negativeTTL);
+		return this;
+	}
+
+	public StubDnsServer addRecord(DnsRecord record) {
+		String owner = normalize(record.getName());
+		List<DnsRecord> list = records.get(owner);
+		if (list == null) {
+			records.putIfAbsent(owner, new CopyOnWriteArrayList<DnsRecord>());
+			list = records.get(owner);
+		}
+		list.add(record);
+		return this;
+	}
+
+	/**
+	 * Adds a record given in zone file form.
+	 *
+	 * @param name
+	 *            the owner name
+	 * @param type
+	 *            A, AAAA, NS, CNAME or MX
+	 * @param ttl
+	 * @param data
+	 *            an address, a target name, or "preference exchange" for MX
+	 * @throws IOException
+	 *             if an address does not parse
+	 */
+	public StubDnsServer addRecord(String name, String type, int ttl,
+			String data) throws IOException {
+		data = data.trim();
+		switch (type.toUpperCase(Locale.ROOT)) {
+		case "A":
+			return addRecord(new DnsRecord(name, DnsRecord.A_TYPE,
+					DnsQueryEncoder.IN_CLASS, ttl, InetAddress.getByName(data),
+					null, 0));
+		case "AAAA":
+			return addRecord(new DnsRecord(name, DnsRecord.AAAA_TYPE,
+					DnsQueryEncoder.IN_CLASS, ttl, InetAddress.getByName(data),
+					null, 0));
+		case "NS":
+			return addRecord(new DnsRecord(name, DnsRecord.NS_TYPE,
+					DnsQueryEncoder.IN_CLASS, ttl, null, data, 0));
+		case "CNAME":
+			return addRecord(new DnsRecord(name, DnsRecord.CNAME_TYPE,
+					DnsQueryEncoder.IN_CLASS, ttl, null, data, 0));
+		case "MX":
+			String[] mx = data.split("\\s+");
+			return addRecord(new DnsRecord(name, DnsRecord.MX_TYPE,
+					DnsQueryEncoder.IN_CLASS, ttl, null, mx[1],
+					Integer.parseInt(mx[0])));
+		}
+		throw new IllegalArgumentException("Unsupported record type " + type);
+	}
+
+	/**
+	 * Delays every response by the latency plus a uniformly random jitter.
+	 */
+	public StubDnsServer setLatency(long latencyMillis, long jitterMillis) {
+		this.latencyMillis = latencyMillis;
+		this.jitterMillis = jitterMillis;
+		return this;
+	}
+
+	/**
+	 * Drops this fraction of UDP queries without answering.
+	 */
+	public StubDnsServer setLossRate(double lossRate) {
+		this.lossRate = lossRate;
+		return this;
+	}
+
+	/**
+	 * Answers every UDP query with an empty truncated response, forcing the
+	 * client over to TCP.
+	 */
+	public StubDnsServer setTruncateUdp(boolean truncateUdp) {
+		this.truncateUdp = truncateUdp;
+		return this;
+	}
+
+	/**
+	 * Caps the size of UDP responses. Responses are truncated past the
+	 * smaller of this and the size the client advertised with EDNS0, or past
+	 * 512 bytes when it sent no OPT record.
+	 */
+	public StubDnsServer setUdpPayloadLimit(int udpPayloadLimit) {
+		this.udpPayloadLimit = udpPayloadLimit;
+		return this;
+	}
+
+	/**
+	 * With EDNS0 unsupported, queries carrying an OPT record get FORMERR, the
+	 * way servers that predate RFC 6891 answer them.
+	 */
+	public StubDnsServer setEdnsSupported(boolean ednsSupported) {
+		this.ednsSupported = ednsSupported;
+		return this;
+	}
+
+	/**
+	 * Answers every query with this RCODE, or -1 to answer normally.
+	 */
+	public StubDnsServer setRcode(int rcode) {
+		this.rcode = rcode;
+		return this;
+	}
+
+	/**
+	 * Answers queries for one name with this RCODE, or -1 to answer normally.
+	 */
+	public StubDnsServer setRcode(String name, int rcode) {
+		if (rcode < 0)
+			nameRcodes.remove(normalize(name));
+		else
+			nameRcodes.put(normalize(name), rcode);
+		return this;
+	}
+
+	public InetSocketAddress getAddress() {
+		return address;
+	}
+
+	public long getUdpQueries() {
+		return udpQueries.get();
+	}
+
+	public long getTcpQueries() {
+		return tcpQueries.get();
+	}
+
+	/**
+	 * @return how many UDP queries were dropped by the injected loss
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	@Override
+	public void close() throws IOException {
+		running = false;
+		responders.shutdownNow();
+		udp.close();
+		tcp.close();
+		for (SocketChannel connection : connections)
+			connection.close();
+	}
+
+	private void startThread(Runnable task, String name) {
+		Thread thread = new Thread(task, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void serveUdp() {
+		ByteBuffer query = ByteBuffer.allocate(MAX_MESSAGE_SIZE);
+		while (running) {
+			try {
+				query.clear();
+				SocketAddress client = udp.receive(query);
+				query.flip();
+				udpQueries.incrementAndGet();
+				if (lossRate > 0
+						&& ThreadLocalRandom.current().nextDouble() < lossRate) {
+					dropped.incrementAndGet();
+					continue;
+				}
+
+				ByteBuffer response = respond(query, true);
+				if (response != null)
+					later(() -> {
+						try {
+							udp.send(response, client);
+						} catch (IOException e) {
+							// The client went away
+						}
+					});
+			} catch (IOException e) {
+				if (running)
+					System.err.println("ERROR	Stub UDP receive failed: "
+							+ e.getMessage());
+			} catch (RuntimeException e) {
+				// Malformed query, there is nothing sensible to answer
+			}
+		}
+	}
+
+	private void acceptTcp() {
+		while (running) {
+			try {
+				SocketChannel connection = tcp.accept();
+				connections.add(connection);
+				startThread(() -> serveTcp(connection), "dns-stub-tcp-connection");
+			} catch (IOException e) {
+				if (running)
+					System.err.println("ERROR	Stub TCP accept failed: "
+							+ e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Reads length prefixed queries off one connection. Responses are written
+	 * as they become ready, so with jitter they go out of order the way RFC
+	 * 7766 pipelining allows.
+	 */
+	private void serveTcp(SocketChannel connection) {
+		ByteBuffer length = ByteBuffer.allocate(2);
+		try {
+			while (running) {
+				length.clear();
+				if (!readFully(connection, length))
+					break;
+				ByteBuffer query = ByteBuffer.allocate(length.getShort(0) & 0xffff);
+				if (!readFully(connection, query))
+					break;
+				query.flip();
+				tcpQueries.incrementAndGet();
+
+				ByteBuffer response;
+				try {
+					response = respond(query, false);
+				} catch (RuntimeException e) {
+					continue;
+				}
+				if (response == null)
+					continue;
+				later(() -> {
+					ByteBuffer framed = ByteBuffer.allocate(2 + response.remaining());
+					framed.putShort((short) response.remaining()).put(response);
+					framed.flip();
+					try {
+						synchronized (connection) {
+							while (framed.hasRemaining())
+								connection.write(framed);
+						}
+					} catch (IOException e) {
+						// The client closed the connection
+					}
+				});
+			}
+		} catch (IOException e) {
+			// The client closed the connection
+		} finally {
+			connections.remove(connection);
+			try {
+				connection.close();
+			} catch (IOException e) {
+				// Already closed
+			}
+		}
+	}
+
+	private static boolean readFully(SocketChannel connection, ByteBuffer buffer)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			if (connection.read(buffer) < 0)
+				return false;
+		}
+		return true;
+	}
+
+	private void later(Runnable send) {
+		long delay = latencyMillis;
+		if (jitterMillis > 0)
+			delay += ThreadLocalRandom.current().nextLong(jitterMillis + 1);
+		if (delay <= 0)
+			send.run();
+		else
+			responders.schedule(send, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Builds the response to one query.
+	 *
+	 * @return the response, or null if the message should be ignored
+	 */
+	private ByteBuffer respond(ByteBuffer query, boolean overUdp) {
+		DnsMessageView view = new DnsMessageView().wrap(query);
+		if (!view.hasHeader() || view.isResponse())
+			return null;
+
+		int flags = DnsMessageWriter.QR_FLAG | (view.getOPCODE() << 11);
+		if (view.isRecursionDesired())
+			// Stands in for a recursive server as well as an authoritative one
+			flags |= DnsMessageWriter.RD_FLAG | DnsMessageWriter.RA_FLAG;
+
+		ByteBuffer out = ByteBuffer.allocate(MAX_MESSAGE_SIZE);
+		int clientPayload = view.getUdpPayloadSize();
+		if (view.getQDCOUNT() != 1) {
+			// FORMERR
+			new DnsMessageWriter(out, view.getID(), flags | 1);
+			out.flip();
+			return out;
+		}
+
+		String name = DnsWireParser.readName(query,
+				DnsWireParser.SIZE_OF_HEADER);
+		int typeOffset = view.getQuestionTypeOffset();
+		short qtype = query.getShort(typeOffset);
+		short qclass = query.getShort(typeOffset + 2);
+
+		DnsMessageWriter writer = new DnsMessageWriter(out, view.getID(),
+				flags | DnsMessageWriter.AA_FLAG);
+		writer.question(name, qtype, qclass);
+		if (clientPayload >= 0 && !ednsSupported) {
+			// FORMERR, echoing the question but no OPT record
+			writer.flags(flags | 1);
+			out.flip();
+			return out;
+		}
+
+		Integer forced = nameRcodes.get(normalize(name));
+		if (forced == null && rcode >= 0)
+			forced = rcode;
+		String cut = zoneCut(normalize(name));
+		if (forced != null)
+			writer.flags(flags | forced);
+		else if (cut != null)
+			writer.flags(flags | refer(writer, cut));
+		else
+			writer.flags(flags | DnsMessageWriter.AA_FLAG
+					| answer(writer, name, qtype));
+
+		// Echo EDNS0 back to clients that use it
+		if (clientPayload >= 0)
+			writer.opt(udpPayloadLimit);
+
+		int limit = Math.min(udpPayloadLimit,
+				Math.max(PLAIN_UDP_PAYLOAD, clientPayload));
+		if (overUdp && (truncateUdp || writer.length() > limit)) {
+			// Start over with just the question and the TC bit set
+			out.clear();
+			DnsMessageWriter truncated = new DnsMessageWriter(out,
+					view.getID(), flags | DnsMessageWriter.AA_FLAG
+							| DnsMessageWriter.TC_FLAG);
+			truncated.question(name, qtype, qclass);
+			if (clientPayload >= 0)
+				truncated.opt(udpPayloadLimit);
+		}
+		out.flip();
+		return out;
+	}
+
+	/**
+	 * Writes the answer from the zone map, following CNAMEs inside it.
+	 *
+	 * @return the RCODE of the answer
+	 */
+	private int answer(DnsMessageWriter writer, String name, short qtype) {
+		String current = normalize(name);
+		for (int hop = 0; hop <= MAX_CNAME_HOPS; hop++) {
+			List<DnsRecord> list = records.get(current);
+			if (list == null)
+				break;
+
+			List<DnsRecord> matches = new ArrayList<DnsRecord>();
+			DnsRecord cname = null;
+			for (DnsRecord record : list) {
+				if (record.getType() == qtype)
+					matches.add(record);
+				else if (record.getType() == DnsRecord.CNAME_TYPE)
+					cname = record;
+			}
+
+			if (!matches.isEmpty()) {
+				for (DnsRecord record : matches)
+					writer.record(DnsMessageView.ANSWER_SECTION, record);
+				writeAddresses(writer, matches);
+				return 0;
+			}
+			if (cname == null) {
+				// NODATA, the name exists without this type
+				writeSoa(writer, current);
+				return 0;
+			}
+			writer.record(DnsMessageView.ANSWER_SECTION, cname);
+			current = normalize(cname.getTarget());
+		}
+
+		// NXDOMAIN inside a zone we serve, otherwise not our business
+		if (writeSoa(writer, current))
+			return 3;
+		// unless an alias led out of our zones, the client follows it
+		return current.equals(normalize(name)) ? 5 : 0;
+	}
+
+	/**
+	 * @return the deepest name with NS records at or above the name and
+	 *         below the apex of the closest declared zone, or null if there
+	 *         is none or no declared zone encloses the name
+	 */
+	private String zoneCut(String name) {
+		String current = name;
+		String cut = null;
+		while (true) {
+			if (zones.containsKey(current))
+				return cut;
+			if (cut == null && hasNameservers(current))
+				cut = current;
+			if (current.isEmpty())
+				return null;
+			int dot = current.indexOf('.');
+			current = dot < 0 ? "" : current.substring(dot + 1);
+		}
+	}
+
+	private boolean hasNameservers(String name) {
+		List<DnsRecord> list = records.get(name);
+		if (list != null) {
+			for (DnsRecord record : list) {
+				if (record.getType() == DnsRecord.NS_TYPE)
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Adds the addresses of MX and NS targets to the additional section, as
+	 * authoritative servers do to save the follow-up lookups.
+	 */
+	private void writeAddresses(DnsMessageWriter writer, List<DnsRecord> answers) {
+		for (DnsRecord answer : answers) {
+			if (answer.getType() != DnsRecord.MX_TYPE
+					&& answer.getType() != DnsRecord.NS_TYPE)
+				continue;
+			List<DnsRecord> list = records.get(normalize(answer.getTarget()));
+			if (list == null)
+				continue;
+			for (DnsRecord address : list) {
+				if (address.getType() == DnsRecord.A_TYPE
+						|| address.getType() == DnsRecord.AAAA_TYPE)
+					writer.record(DnsMessageView.ADDITIONAL_SECTION, address);
+			}
+		}
+	}
+
+	/**
+	 * Writes a referral to the name servers of the zone cut, with glue.
+	 *
+	 * @return the RCODE of the referral
+	 */
+	private int refer(DnsMessageWriter writer, String cut) {
+		List<DnsRecord> glue = new ArrayList<DnsRecord>();
+		for (DnsRecord ns : records.get(cut)) {
+			if (ns.getType() != DnsRecord.NS_TYPE)
+				continue;
+			writer.record(DnsMessageView.AUTHORITY_SECTION, ns);
+			List<DnsRecord> addresses = records.get(normalize(ns.getTarget()));
+			if (addresses == null)
+				continue;
+			for (DnsRecord address : addresses) {
+				if (address.getType() == DnsRecord.A_TYPE
+						|| address.getType() == DnsRecord.AAAA_TYPE)
+					glue.add(address);
+			}
+		}
+		for (DnsRecord address : glue)
+			writer.record(DnsMessageView.ADDITIONAL_SECTION, address);
+		return 0;
+	}
+
+	private boolean writeSoa(DnsMessageWriter writer, String name) {
+		String zone = name;
+		while (!zones.containsKey(zone)) {
+			int dot = zone.indexOf('.');
+			if (zone.isEmpty())
+				return false;
+			zone = dot < 0 ? "" : zone.substring(dot + 1);
+		}
+		int negativeTTL = zones.get(zone);
+		String apex = zone.isEmpty() ? "" : "." + zone;
+		writer.soa(DnsMessageView.AUTHORITY_SECTION, zone, negativeTTL, "ns"
+				+ apex, "hostmaster" + apex, 1, 3600, 600, 86400, negativeTTL);
+		return true;
+	}
+
+	private static String normalize(String name) {
+		String lower = name.toLowerCase(Locale.ROOT);
+		return lower.endsWith(".") ? lower.substring(0, lower.length() - 1)
+				: lower;
+	}
+}
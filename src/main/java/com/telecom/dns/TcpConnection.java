@@ -0,0 +1,165 @@
+package com.telecom.dns;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * One long-lived, non-blocking TCP connection to a DNS server, as described
+ * in RFC 7766. Queries are written back to back without waiting for earlier
+ * answers and the answers are handed over in whatever order they arrive, so
+ * any number of lookups share the connection.
+ *
+ * Everything here runs on the owning resolver's I/O thread, which calls
+ * handle() when the selector reports the connection ready.
+ */
+class TcpConnection {
+
+	/**
+	 * Receives the messages read off the connection.
+	 */
+	interface Listener {
+		void onTcpMessage(TcpConnection connection, ByteBuffer message);
+
+		void onTcpClosed(TcpConnection connection, IOException cause);
+	}
+
+	private static final int MAX_MESSAGE_SIZE = 65535;
+
+	private final InetSocketAddress server;
+	private final Listener listener;
+	private final SocketChannel channel;
+	private final SelectionKey key;
+	private final Queue<ByteBuffer> writes = new ArrayDeque<ByteBuffer>();
+	private final ByteBuffer readBuffer = ByteBuffer
+			.allocate(2 + MAX_MESSAGE_SIZE);
+	private boolean connected;
+	private boolean open = true;
+
+	// Kept up to date by the resolver, for closing idle connections
+	int outstanding;
+	long lastActive;
+
+	TcpConnection(InetSocketAddress server, Selector selector,
+			Listener listener, long nowNanos) throws IOException {
+		this.server = server;
+		this.listener = listener;
+		this.lastActive = nowNanos;
+		this.channel = SocketChannel.open();
+		try {
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			connected = channel.connect(server);
+			key = channel.register(selector, connected ? SelectionKey.OP_READ
+					: SelectionKey.OP_CONNECT, this);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	InetSocketAddress getServer() {
+		return server;
+	}
+
+	/**
+	 * @return whether the connection was ever established
+	 */
+	boolean isConnected() {
+		return connected;
+	}
+
+	/**
+	 * Queues a query, prefixed with its two byte length.
+	 *
+	 * @param query
+	 *            the message, from position to limit
+	 */
+	void send(ByteBuffer query) {
+		ByteBuffer framed = ByteBuffer.allocate(2 + query.remaining());
+		framed.putShort((short) query.remaining());
+		framed.put(query.duplicate());
+		framed.flip();
+		writes.add(framed);
+		if (connected)
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * Finishes connecting, flushes queued queries and reads answers, as far
+	 * as the socket allows without blocking.
+	 */
+	void handle(long nowNanos) {
+		if (!open || !key.isValid())
+			return;
+		try {
+			if (!connected && key.isConnectable()) {
+				channel.finishConnect();
+				connected = true;
+				key.interestOps(SelectionKey.OP_READ
+						| (writes.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+			}
+			if (connected && key.isWritable())
+				flush();
+			if (connected && key.isReadable())
+				read(nowNanos);
+		} catch (IOException e) {
+			close(e);
+		}
+	}
+
+	/**
+	 * Closes the connection and tells the listener.
+	 */
+	void close(IOException cause) {
+		if (!open)
+			return;
+		open = false;
+		key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Closing anyway
+		}
+		listener.onTcpClosed(this, cause);
+	}
+
+	private void flush() throws IOException {
+		ByteBuffer write;
+		while ((write = writes.peek()) != null) {
+			channel.write(write);
+			if (write.hasRemaining())
+				return; // The socket buffer is full, wait for OP_WRITE
+			writes.poll();
+		}
+		key.interestOps(SelectionKey.OP_READ);
+	}
+
+	private void read(long nowNanos) throws IOException {
+		int read;
+		while ((read = channel.read(readBuffer)) > 0) {
+			lastActive = nowNanos;
+			readBuffer.flip();
+			while (readBuffer.remaining() >= 2) {
+				int length = readBuffer.getShort(readBuffer.position()) & 0xffff;
+				if (readBuffer.remaining() < 2 + length)
+					break;
+				readBuffer.position(readBuffer.position() + 2);
+				byte[] message = new byte[length];
+				readBuffer.get(message);
+				listener.onTcpMessage(this, ByteBuffer.wrap(message));
+				if (!open)
+					return;
+			}
+			readBuffer.compact();
+		}
+		if (read < 0)
+			throw new IOException("The server closed the TCP connection");
+	}
+}
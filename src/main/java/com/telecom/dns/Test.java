@@ -1,3 +1,5 @@
+package com.telecom.dns;
+
 public class Test {
 	public static void main(String[] args) {
 		DnsPacketHeader d1 = new DnsPacketHeader((short) 0x827a, (byte) 0,
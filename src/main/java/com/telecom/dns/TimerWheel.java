@@ -0,0 +1,165 @@
+package com.telecom.dns;
+
+/**
+ * Hashed timing wheel owned by a single thread. Timeouts are bucketed by the
+ * tick they expire on, so scheduling and cancelling cost the same no matter
+ * how many timeouts are pending. All methods must be called from the thread
+ * that advances the wheel.
+ */
+public class TimerWheel {
+
+	private final long tickNanos;
+	private final int mask;
+	private final Timeout[] buckets;
+	private final long startNanos;
+	private long currentTick;
+	private int size;
+
+	/**
+	 * @param tickNanos
+	 *            the resolution of the wheel
+	 * @param wheelSize
+	 *            the number of buckets, rounded up to a power of two
+	 * @param nowNanos
+	 *            the current System.nanoTime()
+	 */
+	public TimerWheel(long tickNanos, int wheelSize, long nowNanos) {
+		int buckets = Integer.highestOneBit(Math.max(wheelSize, 2) - 1) << 1;
+		this.tickNanos = tickNanos;
+		this.mask = buckets - 1;
+		this.buckets = new Timeout[buckets];
+		this.startNanos = nowNanos;
+	}
+
+	/**
+	 * Schedules a task to run once the delay has passed. The task runs on the
+	 * thread calling advance, at most one tick late.
+	 * 
+	 * @param task
+	 * @param delayNanos
+	 * @param nowNanos
+	 * @return a handle that can cancel the task
+	 */
+	public Timeout schedule(Runnable task, long delayNanos, long nowNanos) {
+		long deadline = nowNanos + Math.max(delayNanos, 0) - startNanos;
+		long deadlineTick = Math.max((deadline + tickNanos - 1) / tickNanos,
+				currentTick + 1);
+
+		Timeout timeout = new Timeout(this, task, deadlineTick);
+		int bucket = (int) (deadlineTick & mask);
+		timeout.next = buckets[bucket];
+		if (timeout.next != null)
+			timeout.next.prev = timeout;
+		buckets[bucket] = timeout;
+		size++;
+		return timeout;
+	}
+
+	/**
+	 * Runs every task whose deadline is at or before the given time.
+	 * 
+	 * @param nowNanos
+	 */
+	public void advance(long nowNanos) {
+		long targetTick = (nowNanos - startNanos) / tickNanos;
+		while (currentTick < targetTick) {
+			currentTick++;
+			if (size == 0) {
+				// Nothing to run, jump straight to the target
+				currentTick = targetTick;
+				break;
+			}
+			expireBucket((int) (currentTick & mask));
+		}
+	}
+
+	/**
+	 * Looks for the earliest pending deadline, so that the caller can sleep
+	 * until it instead of waking on every tick.
+	 *
+	 * @param nowNanos
+	 * @return how long until the tick of the earliest pending timeout, 0 if
+	 *         it is due already, or Long.MAX_VALUE if none is pending
+	 */
+	public long nanosUntilNextTimeout(long nowNanos) {
+		if (size == 0)
+			return Long.MAX_VALUE;
+		// A bucket also holds timeouts whole rounds further out, those only
+		// count if no bucket has one due in this round
+		long earliest = Long.MAX_VALUE;
+		for (long tick = currentTick + 1; tick <= currentTick + buckets.length; tick++) {
+			for (Timeout timeout = buckets[(int) (tick & mask)]; timeout != null; timeout = timeout.next)
+				earliest = Math.min(earliest, timeout.deadlineTick);
+			if (earliest <= tick)
+				break;
+		}
+		long wait = earliest * tickNanos - (nowNanos - startNanos);
+		return Math.max(wait, 0);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private void expireBucket(int bucket) {
+		// Detach the expired timeouts first, tasks may cancel or schedule
+		// others in this same bucket while they run
+		Timeout expired = null;
+		Timeout timeout = buckets[bucket];
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			if (timeout.deadlineTick <= currentTick) {
+				unlink(timeout);
+				timeout.next = expired;
+				expired = timeout;
+			}
+			timeout = next;
+		}
+
+		while (expired != null) {
+			Timeout next = expired.next;
+			expired.next = null;
+			if (!expired.cancelled)
+				expired.task.run();
+			expired = next;
+		}
+	}
+
+	private void unlink(Timeout timeout) {
+		int bucket = (int) (timeout.deadlineTick & mask);
+		if (timeout.prev != null)
+			timeout.prev.next = timeout.next;
+		else
+			buckets[bucket] = timeout.next;
+		if (timeout.next != null)
+			timeout.next.prev = timeout.prev;
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.wheel = null;
+		size--;
+	}
+
+	public static final class Timeout {
+		private TimerWheel wheel;
+		private final Runnable task;
+		private final long deadlineTick;
+		private Timeout prev;
+		private Timeout next;
+		private boolean cancelled;
+
+		private Timeout(TimerWheel wheel, Runnable task, long deadlineTick) {
+			this.wheel = wheel;
+			this.task = task;
+			this.deadlineTick = deadlineTick;
+		}
+
+		/**
+		 * Stops the task from running. Does nothing if it already ran.
+		 */
+		public void cancel() {
+			cancelled = true;
+			if (wheel != null)
+				wheel.unlink(this);
+		}
+	}
+}
@@ -0,0 +1,507 @@
+package com.telecom.dns;
+
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToIntFunction;
+
+/**
+ * Bounds a concurrent map by total weight, choosing what to evict with
+ * W-TinyLFU (Einziger, Friedman and Manes, "TinyLFU: A Highly Efficient Cache
+ * Admission Policy").
+ *
+ * New entries go to a small LRU window. Entries pushed out of the window
+ * join the main space, a segmented LRU of a probation and a protected part,
+ * only if they have been used more often than the entry they would displace
+ * from it. How often is estimated by a count-min sketch of 4 bit counters
+ * that are halved periodically, so that old popularity fades. The window
+ * lets bursts of new names in, the admission test keeps a scan of one-off
+ * names from flushing out the popular ones.
+ *
+ * Reads do not take the lock: the map is read directly and the read is
+ * recorded into one of several small ring buffers, picked by thread, that
+ * are replayed against the policy by whichever thread next holds the lock.
+ * A read that finds its buffer full is dropped, the policy only needs a
+ * sample. The buffers are shared by threads that hash alike, so reads still
+ * contend on them; how far reads scale across cores has not been measured,
+ * CacheReadBenchmark is there for that. Everything that adds or removes
+ * entries goes through this class under the lock, so the map and the policy
+ * always hold the same keys.
+ */
+final class TinyLfuPolicy<V> {
+
+	private static final double WINDOW_SHARE = 0.01;
+	private static final double PROTECTED_SHARE = 0.8;
+
+	private static final int READ_BUFFER_SIZE = 16;
+	private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+	private static final int READ_BUFFERS = Math.min(64,
+			ceilingPowerOfTwo(4 * Runtime.getRuntime().availableProcessors()));
+
+	private static final byte WINDOW = 0;
+	private static final byte PROBATION = 1;
+	private static final byte PROTECTED = 2;
+
+	private final ConcurrentHashMap<CacheKey, V> map;
+	private final ToIntFunction<V> weigher;
+	private final long maximum;
+	private final long windowMaximum;
+	private final long protectedMaximum;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final ReadBuffer[] readBuffers = new ReadBuffer[READ_BUFFERS];
+
+	// Guarded by the lock
+	private final HashMap<CacheKey, Node> nodes = new HashMap<CacheKey, Node>();
+	private final Node window = Node.queue();
+	private final Node probation = Node.queue();
+	private final Node protectedQueue = Node.queue();
+	private final FrequencySketch sketch = new FrequencySketch();
+	private long windowWeight;
+	private long mainWeight;
+	private long protectedWeight;
+
+	private volatile long weightedSize;
+	private volatile long evictions;
+
+	/**
+	 * @param map
+	 *            the map to bound, only to be changed through this policy
+	 * @param maximum
+	 *            the total weight the map may hold
+	 * @param weigher
+	 *            the weight of a value, at least 1
+	 * @param minimumWeight
+	 *            the least a value can weigh, the window holds at least this
+	 *            much so that a small cache still has one
+	 */
+	TinyLfuPolicy(ConcurrentHashMap<CacheKey, V> map, long maximum,
+			ToIntFunction<V> weigher, int minimumWeight) {
+		if (maximum <= 0)
+			throw new IllegalArgumentException("The cache size must be positive");
+		this.map = map;
+		this.maximum = maximum;
+		this.weigher = weigher;
+		this.windowMaximum = Math.min(maximum,
+				Math.max(minimumWeight, (long) (maximum * WINDOW_SHARE)));
+		this.protectedMaximum = (long) ((maximum - windowMaximum) * PROTECTED_SHARE);
+		for (int i = 0; i < READ_BUFFERS; i++)
+			readBuffers[i] = new ReadBuffer();
+	}
+
+	long getMaximum() {
+		return maximum;
+	}
+
+	long getWeightedSize() {
+		return weightedSize;
+	}
+
+	long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * Notes a hit on the key. Safe to call from any thread without blocking.
+	 */
+	void recordRead(CacheKey key) {
+		int stripe = spread((int) Thread.currentThread().getId())
+				& (READ_BUFFERS - 1);
+		if (!readBuffers[stripe].offer(key) && lock.tryLock()) {
+			try {
+				drainReads();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Maps the key to the value, then evicts down to the maximum. The new
+	 * value itself may be evicted straight away if it is not popular enough
+	 * to be kept over what is cached.
+	 *
+	 * @return the value it replaced, or null
+	 */
+	V put(CacheKey key, V value) {
+		lock.lock();
+		try {
+			drainReads();
+			V previous = map.put(key, value);
+			onWrite(key, weigher.applyAsInt(value));
+			return previous;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the value already mapped to the key, or null if the value was
+	 *         added
+	 */
+	V putIfAbsent(CacheKey key, V value) {
+		lock.lock();
+		try {
+			drainReads();
+			V raced = map.putIfAbsent(key, value);
+			if (raced == null)
+				onWrite(key, weigher.applyAsInt(value));
+			return raced;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the key if it still maps to the value.
+	 */
+	boolean remove(CacheKey key, V value) {
+		lock.lock();
+		try {
+			if (!map.remove(key, value))
+				return false;
+			Node node = nodes.remove(key);
+			if (node != null)
+				unlink(node);
+			updateWeightedSize();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void clear() {
+		lock.lock();
+		try {
+			drainReads();
+			map.clear();
+			nodes.clear();
+			window.clear();
+			probation.clear();
+			protectedQueue.clear();
+			windowWeight = 0;
+			mainWeight = 0;
+			protectedWeight = 0;
+			updateWeightedSize();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void drainReads() {
+		for (ReadBuffer buffer : readBuffers)
+			buffer.drain(this);
+	}
+
+	private void onRead(CacheKey key) {
+		Node node = nodes.get(key);
+		if (node == null)
+			return;
+		sketch.increment(hash(key));
+		onAccess(node);
+	}
+
+	private void onWrite(CacheKey key, int weight) {
+		sketch.ensureCapacity(nodes.size() + 1);
+		sketch.increment(hash(key));
+		Node node = nodes.get(key);
+		if (node != null) {
+			int delta = weight - node.weight;
+			node.weight = weight;
+			if (node.queue == WINDOW) {
+				windowWeight += delta;
+			} else {
+				mainWeight += delta;
+				if (node.queue == PROTECTED)
+					protectedWeight += delta;
+			}
+			onAccess(node);
+		} else {
+			node = new Node(key, weight);
+			nodes.put(key, node);
+			window.addLast(node);
+			windowWeight += weight;
+		}
+		evict();
+		updateWeightedSize();
+	}
+
+	private void onAccess(Node node) {
+		switch (node.queue) {
+		case WINDOW:
+			window.moveToLast(node);
+			break;
+		case PROBATION:
+			node.unlink();
+			node.queue = PROTECTED;
+			protectedQueue.addLast(node);
+			protectedWeight += node.weight;
+			// The least recently used protected entries make room, they get
+			// another chance in probation
+			while (protectedWeight > protectedMaximum) {
+				Node demoted = protectedQueue.next;
+				demoted.unlink();
+				demoted.queue = PROBATION;
+				probation.addLast(demoted);
+				protectedWeight -= demoted.weight;
+			}
+			break;
+		default:
+			protectedQueue.moveToLast(node);
+			break;
+		}
+	}
+
+	private void evict() {
+		long mainMaximum = maximum - windowMaximum;
+		while (windowWeight > windowMaximum) {
+			Node candidate = window.next;
+			candidate.unlink();
+			windowWeight -= candidate.weight;
+			admit(candidate, mainMaximum);
+		}
+		// Replacing a value with a heavier one can overfill the main space
+		while (mainWeight > mainMaximum) {
+			Node victim = probation.next != probation ? probation.next
+					: protectedQueue.next;
+			unlink(victim);
+			evict(victim);
+		}
+	}
+
+	/**
+	 * Moves an entry out of the window into probation, if it is used more
+	 * often than every entry it would push out of the main space.
+	 */
+	private void admit(Node candidate, long mainMaximum) {
+		if (candidate.weight > mainMaximum) {
+			evict(candidate);
+			return;
+		}
+		int frequency = sketch.frequency(hash(candidate.key));
+		while (mainWeight + candidate.weight > mainMaximum) {
+			Node victim = probation.next != probation ? probation.next
+					: protectedQueue.next;
+			if (sketch.frequency(hash(victim.key)) >= frequency) {
+				evict(candidate);
+				return;
+			}
+			unlink(victim);
+			evict(victim);
+		}
+		candidate.queue = PROBATION;
+		probation.addLast(candidate);
+		mainWeight += candidate.weight;
+	}
+
+	/**
+	 * Drops an entry already unlinked from its queue.
+	 */
+	private void evict(Node node) {
+		nodes.remove(node.key);
+		map.remove(node.key);
+		evictions++;
+	}
+
+	private void unlink(Node node) {
+		node.unlink();
+		if (node.queue == WINDOW) {
+			windowWeight -= node.weight;
+		} else {
+			mainWeight -= node.weight;
+			if (node.queue == PROTECTED)
+				protectedWeight -= node.weight;
+		}
+	}
+
+	private void updateWeightedSize() {
+		weightedSize = windowWeight + mainWeight;
+	}
+
+	private static int hash(CacheKey key) {
+		return spread(key.hashCode());
+	}
+
+	private static int spread(int x) {
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		return (x >>> 16) ^ x;
+	}
+
+	private static int ceilingPowerOfTwo(int x) {
+		return 1 << (32 - Integer.numberOfLeadingZeros(x - 1));
+	}
+
+	/**
+	 * An entry in one of the LRU queues, or the head of a queue. A queue is
+	 * circular through its head, the least recently used entry is head.next.
+	 */
+	private static final class Node {
+		final CacheKey key;
+		int weight;
+		byte queue;
+		Node prev;
+		Node next;
+
+		Node(CacheKey key, int weight) {
+			this.key = key;
+			this.weight = weight;
+			this.queue = WINDOW;
+		}
+
+		static Node queue() {
+			Node head = new Node(null, 0);
+			head.prev = head;
+			head.next = head;
+			return head;
+		}
+
+		void addLast(Node node) {
+			node.prev = prev;
+			node.next = this;
+			prev.next = node;
+			prev = node;
+		}
+
+		void moveToLast(Node node) {
+			node.unlink();
+			addLast(node);
+		}
+
+		void unlink() {
+			prev.next = next;
+			next.prev = prev;
+			prev = null;
+			next = null;
+		}
+
+		void clear() {
+			prev = this;
+			next = this;
+		}
+	}
+
+	/**
+	 * A ring of recent reads that many threads add to and the lock holder
+	 * empties. Slots are claimed by advancing the tail, so a reader that
+	 * loses the race or finds the ring full just drops its read.
+	 */
+	private static final class ReadBuffer {
+		private final AtomicLong tail = new AtomicLong();
+		// Only advanced by the lock holder
+		private volatile long head;
+		private final AtomicReferenceArray<CacheKey> slots = new AtomicReferenceArray<CacheKey>(
+				READ_BUFFER_SIZE);
+
+		/**
+		 * @return false if the buffer is full and should be drained
+		 */
+		boolean offer(CacheKey key) {
+			long t = tail.get();
+			long size = t - head;
+			if (size >= READ_BUFFER_SIZE)
+				return false;
+			if (tail.compareAndSet(t, t + 1))
+				slots.lazySet((int) t & READ_BUFFER_MASK, key);
+			return size + 1 < READ_BUFFER_SIZE;
+		}
+
+		void drain(TinyLfuPolicy<?> policy) {
+			long h = head;
+			long t = tail.get();
+			for (; h < t; h++) {
+				int index = (int) h & READ_BUFFER_MASK;
+				CacheKey key = slots.get(index);
+				// Claimed but not written yet, picked up next time
+				if (key == null)
+					break;
+				slots.lazySet(index, null);
+				policy.onRead(key);
+			}
+			head = h;
+		}
+	}
+
+	/**
+	 * A count-min sketch of 4 bit counters, four per key, sixteen to a long.
+	 * Each key's counters share one nibble position within their longs so a
+	 * lookup touches at most four words. Once as many increments as ten
+	 * times the table length have been made, every counter is halved.
+	 */
+	private static final class FrequencySketch {
+		private static final long[] SEED = { 0xc3a5c85c97cb3127L,
+				0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+		private static final long RESET_MASK = 0x7777777777777777L;
+		private static final long ONE_MASK = 0x1111111111111111L;
+		private static final int MIN_TABLE = 64;
+		private static final int MAX_TABLE = 1 << 24;
+
+		private long[] table;
+		private int tableMask;
+		private int sampleSize;
+		private int size;
+
+		FrequencySketch() {
+			ensureCapacity(MIN_TABLE);
+		}
+
+		/**
+		 * Grows the table, forgetting the counts, when it has fewer longs
+		 * than there are entries.
+		 */
+		void ensureCapacity(int entries) {
+			int length = ceilingPowerOfTwo(Math.max(MIN_TABLE,
+					Math.min(entries, MAX_TABLE)));
+			if (table != null && length <= table.length)
+				return;
+			table = new long[length];
+			tableMask = length - 1;
+			sampleSize = 10 * length;
+			size = 0;
+		}
+
+		int frequency(int e) {
+			int start = (e & 3) << 2;
+			int frequency = Integer.MAX_VALUE;
+			for (int i = 0; i < 4; i++) {
+				long count = (table[indexOf(e, i)] >>> ((start + i) << 2)) & 0xfL;
+				frequency = Math.min(frequency, (int) count);
+			}
+			return frequency;
+		}
+
+		void increment(int e) {
+			int start = (e & 3) << 2;
+			boolean added = false;
+			for (int i = 0; i < 4; i++)
+				added |= incrementAt(indexOf(e, i), start + i);
+			if (added && ++size == sampleSize)
+				reset();
+		}
+
+		private boolean incrementAt(int i, int j) {
+			int offset = j << 2;
+			long mask = 0xfL << offset;
+			if ((table[i] & mask) == mask)
+				return false;
+			table[i] += 1L << offset;
+			return true;
+		}
+
+		private int indexOf(int item, int i) {
+			long hash = (item + SEED[i]) * SEED[i];
+			hash += hash >>> 32;
+			return (int) hash & tableMask;
+		}
+
+		private void reset() {
+			int odd = 0;
+			for (int i = 0; i < table.length; i++) {
+				odd += Long.bitCount(table[i] & ONE_MASK);
+				table[i] = (table[i] >>> 1) & RESET_MASK;
+			}
+			size = (size >>> 1) - (odd >>> 2);
+		}
+	}
+}
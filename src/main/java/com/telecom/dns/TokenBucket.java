@@ -0,0 +1,47 @@
+package com.telecom.dns;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket rate limiter. Tokens accrue at a steady rate up to a burst
+ * size and each permitted action takes one. Safe to use from any thread.
+ */
+public class TokenBucket {
+
+	private final double tokensPerNano;
+	private final double burst;
+	private double tokens;
+	private long refilledAt;
+
+	/**
+	 * @param ratePerSecond
+	 *            the sustained number of actions allowed per second
+	 * @param burst
+	 *            how many actions may happen back to back after a quiet
+	 *            spell
+	 */
+	public TokenBucket(double ratePerSecond, double burst) {
+		if (ratePerSecond <= 0 || burst < 1)
+			throw new IllegalArgumentException(
+					"The rate must be positive and the burst at least one");
+		this.tokensPerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+		this.burst = burst;
+		this.tokens = burst;
+		this.refilledAt = System.nanoTime();
+	}
+
+	/**
+	 * Takes a token if one is available.
+	 *
+	 * @return false if the rate has been used up
+	 */
+	public synchronized boolean tryAcquire() {
+		long now = System.nanoTime();
+		tokens = Math.min(burst, tokens + (now - refilledAt) * tokensPerNano);
+		refilledAt = now;
+		if (tokens < 1)
+			return false;
+		tokens--;
+		return true;
+	}
+}
@@ -0,0 +1,127 @@
+package com.telecom.dns;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CacheFileTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void savesAndLoadsTheCache() throws Exception {
+		Path path = folder.getRoot().toPath().resolve("cache");
+		DnsCache saved = new DnsCache(100);
+		saved.put(key("www.example.com"), answer("www.example.com", "192.0.2.1"));
+		saved.save(path);
+
+		DnsCache loaded = new DnsCache(100);
+		loaded.load(path);
+		DnsAnswer answer = loaded.get(key("www.example.com"));
+		assertNotNull(answer);
+		assertEquals("192.0.2.1", answer.getRecords().get(0).getAddress()
+				.getHostAddress());
+		assertNull(loaded.get(key("mail.example.com")));
+	}
+
+	@Test
+	public void leavesOutExpiredAnswers() throws Exception {
+		Path path = folder.getRoot().toPath().resolve("cache");
+		CacheFile.write(path, Arrays.asList(record("www.example.com",
+				answer("www.example.com", "192.0.2.1"),
+				System.currentTimeMillis() - 1000)));
+
+		DnsCache loaded = new DnsCache(100);
+		loaded.load(path);
+		assertNull(loaded.get(key("www.example.com")));
+	}
+
+	@Test
+	public void missesOnARecordCutShort() throws Exception {
+		Path path = folder.getRoot().toPath().resolve("cache");
+		long expiresAt = System.currentTimeMillis() + 60000;
+		CacheFile.write(path, Arrays.asList(
+				record("www.example.com", answer("www.example.com",
+						"192.0.2.1"), expiresAt),
+				record("mail.example.com", answer("mail.example.com",
+						"192.0.2.2"), expiresAt)));
+		// Records are written in order, the last one loses its end
+		try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+			file.setLength(file.length() - 5);
+		}
+
+		CacheFile cacheFile = CacheFile.open(path);
+		assertNotNull(cacheFile.find(key("www.example.com")));
+		assertNull(cacheFile.find(key("mail.example.com")));
+		assertEquals(1, cacheFile.records().size());
+	}
+
+	@Test
+	public void missesOnADamagedMessage() throws Exception {
+		Path path = folder.getRoot().toPath().resolve("cache");
+		// A question whose name starts with a label longer than the message
+		ByteBuffer message = ByteBuffer.allocate(DnsWireParser.SIZE_OF_HEADER + 1);
+		message.putShort(2, (short) 0x8180).putShort(4, (short) 1)
+				.put(DnsWireParser.SIZE_OF_HEADER, (byte) 63);
+		CacheFile.write(path, Arrays.asList(new CacheFile.Record(
+				key("www.example.com"), message,
+				System.currentTimeMillis() + 60000, 300)));
+
+		DnsCache loaded = new DnsCache(100);
+		loaded.load(path);
+		assertNull(loaded.get(key("www.example.com")));
+	}
+
+	@Test
+	public void rejectsAFileThatIsNotACache() throws IOException {
+		Path path = folder.getRoot().toPath().resolve("cache");
+		Files.write(path, new byte[64]);
+		try {
+			CacheFile.open(path);
+			fail("A file of zeros was opened");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	private static CacheKey key(String name) {
+		return CacheKey.of(name, DnsRecord.A_TYPE, DnsQueryEncoder.IN_CLASS);
+	}
+
+	private static CacheFile.Record record(String name, DnsAnswer answer,
+			long expiresAtMillis) {
+		ByteBuffer message = answer.getMessageView().getMessage().duplicate();
+		message.position(0);
+		return new CacheFile.Record(key(name), message, expiresAtMillis, 300);
+	}
+
+	private static DnsAnswer answer(String name, String address)
+			throws Exception {
+		ByteBuffer message = ByteBuffer.allocate(512);
+		new DnsMessageWriter(message, 1, DnsMessageWriter.QR_FLAG)
+				.question(name, DnsRecord.A_TYPE, DnsQueryEncoder.IN_CLASS)
+				.record(DnsMessageView.ANSWER_SECTION, new DnsRecord(name,
+						DnsRecord.A_TYPE, DnsQueryEncoder.IN_CLASS, 300,
+						InetAddress.getByName(address), null, 0));
+		message.flip();
+		DnsPacketHeader header = new DnsPacketHeader();
+		header.parse(message);
+		DnsAnswer answer = new DnsAnswer(0);
+		answer.parse(message, header);
+		return answer;
+	}
+}
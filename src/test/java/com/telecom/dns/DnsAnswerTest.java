@@ -0,0 +1,47 @@
+package com.telecom.dns;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.junit.Test;
+
+public class DnsAnswerTest {
+
+	@Test
+	public void leavesOutAnAddressOfTheWrongLength() throws Exception {
+		ByteBuffer message = ByteBuffer.allocate(512);
+		new DnsMessageWriter(message, 1, DnsMessageWriter.QR_FLAG)
+				.question("www.example.com", DnsRecord.A_TYPE,
+						DnsQueryEncoder.IN_CLASS)
+				.record(DnsMessageView.ANSWER_SECTION, new DnsRecord(
+						"www.example.com", DnsRecord.A_TYPE,
+						DnsQueryEncoder.IN_CLASS, 300, InetAddress
+								.getByName("192.0.2.1"), null, 0));
+		// A second A record with 3 bytes of RDATA
+		message.position(DnsQueryEncoder.writeName(message,
+				message.position(), "www.example.com"));
+		message.putShort(DnsRecord.A_TYPE).putShort(DnsQueryEncoder.IN_CLASS)
+				.putInt(300).putShort((short) 3).put(new byte[3]);
+		message.putShort(6, (short) 2);
+		message.flip();
+
+		DnsPacketHeader header = new DnsPacketHeader();
+		header.parse(message);
+		DnsAnswer answer = new DnsAnswer(0);
+		answer.parse(message, header);
+
+		List<DnsRecord> records = answer.getRecords();
+		assertEquals(1, records.size());
+		assertEquals("192.0.2.1", records.get(0).getAddress().getHostAddress());
+		try {
+			answer.getRecord(1);
+			fail("A 3 byte address was decoded");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package com.telecom.dns;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class DnsCacheTest {
+
+	private static final int FLAGS = DnsMessageWriter.QR_FLAG
+			| DnsMessageWriter.RD_FLAG | DnsMessageWriter.RA_FLAG;
+
+	@Test
+	public void harvestsTheAddressesOfNameServers() throws Exception {
+		ByteBuffer message = ByteBuffer.allocate(512);
+		new DnsMessageWriter(message, 1, FLAGS)
+				.question("example.com", DnsRecord.NS_TYPE,
+						DnsQueryEncoder.IN_CLASS)
+				.record(DnsMessageView.ANSWER_SECTION, ns("ns1.example.com"))
+				.record(DnsMessageView.ADDITIONAL_SECTION,
+						address("ns1.example.com", "192.0.2.1"))
+				.record(DnsMessageView.ADDITIONAL_SECTION,
+						address("ns1.example.com", "2001:db8::1"));
+
+		DnsCache cache = new DnsCache(100);
+		cache.putAdditional(answer(message));
+		assertEquals(2, cache.size());
+		DnsAnswer harvested = cache.get(CacheKey.of("ns1.example.com",
+				DnsRecord.A_TYPE, DnsQueryEncoder.IN_CLASS));
+		assertNotNull(harvested);
+		assertEquals("192.0.2.1", harvested.getRecords().get(0).getAddress()
+				.getHostAddress());
+	}
+
+	@Test
+	public void skipsAddressesOfTheWrongLength() throws Exception {
+		ByteBuffer message = ByteBuffer.allocate(1024);
+		new DnsMessageWriter(message, 1, FLAGS)
+				.question("example.com", DnsRecord.NS_TYPE,
+						DnsQueryEncoder.IN_CLASS)
+				.record(DnsMessageView.ANSWER_SECTION, ns("ns1.example.com"))
+				.record(DnsMessageView.ANSWER_SECTION, ns("ns2.example.com"))
+				.record(DnsMessageView.ADDITIONAL_SECTION,
+						address("ns1.example.com", "192.0.2.1"));
+		// An A record for ns2 with 600 bytes of RDATA
+		message.position(DnsQueryEncoder.writeName(message,
+				message.position(), "ns2.example.com"));
+		message.putShort(DnsRecord.A_TYPE).putShort(DnsQueryEncoder.IN_CLASS)
+				.putInt(300).putShort((short) 600).put(new byte[600]);
+		message.putShort(10, (short) 2);
+
+		DnsCache cache = new DnsCache(100);
+		cache.putAdditional(answer(message));
+		assertNotNull(cache.get(CacheKey.of("ns1.example.com",
+				DnsRecord.A_TYPE, DnsQueryEncoder.IN_CLASS)));
+		assertNull(cache.get(CacheKey.of("ns2.example.com", DnsRecord.A_TYPE,
+				DnsQueryEncoder.IN_CLASS)));
+	}
+
+	@Test
+	public void ignoresAnAdditionalSectionWithOnlyOpt() throws Exception {
+		ByteBuffer message = ByteBuffer.allocate(512);
+		new DnsMessageWriter(message, 1, FLAGS)
+				.question("example.com", DnsRecord.NS_TYPE,
+						DnsQueryEncoder.IN_CLASS)
+				.record(DnsMessageView.ANSWER_SECTION, ns("ns1.example.com"))
+				.opt(1232);
+
+		DnsCache cache = new DnsCache(100);
+		cache.putAdditional(answer(message));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void ignoresGlueUnderARootOrTldNameServer() throws Exception {
+		ByteBuffer message = ByteBuffer.allocate(512);
+		new DnsMessageWriter(message, 1, FLAGS)
+				.question("www.example.com", DnsRecord.A_TYPE,
+						DnsQueryEncoder.IN_CLASS)
+				.record(DnsMessageView.ANSWER_SECTION,
+						address("www.example.com", "192.0.2.1"))
+				.record(DnsMessageView.AUTHORITY_SECTION, ns("", "ns.evil.net"))
+				.record(DnsMessageView.AUTHORITY_SECTION,
+						ns("com", "ns.evil.com"))
+				.record(DnsMessageView.ADDITIONAL_SECTION,
+						address("ns.evil.net", "192.0.2.66"))
+				.record(DnsMessageView.ADDITIONAL_SECTION,
+						address("ns.evil.com", "192.0.2.67"));
+		DnsAnswer answer = answer(message);
+
+		DnsCache cache = new DnsCache(100);
+		cache.putAdditional(answer);
+		assertEquals(0, cache.size());
+		cache.putAdditional(answer, "example.com");
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void takesGlueOnlyWithinTheZoneThatSentIt() throws Exception {
+		ByteBuffer message = ByteBuffer.allocate(512);
+		new DnsMessageWriter(message, 1, FLAGS)
+				.question("www.example.com", DnsRecord.A_TYPE,
+						DnsQueryEncoder.IN_CLASS)
+				.record(DnsMessageView.AUTHORITY_SECTION,
+						ns("example.com", "ns1.example.com"))
+				.record(DnsMessageView.AUTHORITY_SECTION,
+						ns("com", "ns.other.com"))
+				.record(DnsMessageView.ADDITIONAL_SECTION,
+						address("ns1.example.com", "192.0.2.1"))
+				.record(DnsMessageView.ADDITIONAL_SECTION,
+						address("ns.other.com", "192.0.2.66"));
+
+		DnsCache cache = new DnsCache(100);
+		cache.putAdditional(answer(message), "example.com");
+		assertEquals(1, cache.size());
+		assertNotNull(cache.get(CacheKey.of("ns1.example.com",
+				DnsRecord.A_TYPE, DnsQueryEncoder.IN_CLASS)));
+		assertNull(cache.get(CacheKey.of("ns.other.com", DnsRecord.A_TYPE,
+				DnsQueryEncoder.IN_CLASS)));
+	}
+
+	private static DnsRecord ns(String target) {
+		return ns("example.com", target);
+	}
+
+	private static DnsRecord ns(String owner, String target) {
+		return new DnsRecord(owner, DnsRecord.NS_TYPE,
+				DnsQueryEncoder.IN_CLASS, 3600, null, target, 0);
+	}
+
+	private static DnsRecord address(String name, String address)
+			throws Exception {
+		InetAddress parsed = InetAddress.getByName(address);
+		return new DnsRecord(name,
+				parsed.getAddress().length == 4 ? DnsRecord.A_TYPE
+						: DnsRecord.AAAA_TYPE, DnsQueryEncoder.IN_CLASS, 300,
+				parsed, null, 0);
+	}
+
+	private static DnsAnswer answer(ByteBuffer message) throws Exception {
+		message.flip();
+		DnsPacketHeader header = new DnsPacketHeader();
+		header.parse(message);
+		DnsAnswer answer = new DnsAnswer(0);
+		answer.parse(message, header);
+		return answer;
+	}
+}
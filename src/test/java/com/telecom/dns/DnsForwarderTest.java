@@ -0,0 +1,127 @@
+package com.telecom.dns;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DnsForwarderTest {
+
+	private StubDnsServer upstream;
+	private Resolver resolver;
+	private DnsForwarder forwarder;
+
+	@Before
+	public void setUp() throws IOException {
+		upstream = new StubDnsServer();
+		upstream.addZone("example.com", 300)
+				.addRecord("www.example.com", "A", 300, "192.0.2.1")
+				.addRecord("alias.example.com", "CNAME", 300, "www.example.com");
+		resolver = Resolver.builder().server(upstream.getAddress())
+				.timeout(1000).maxRetries(1).cache().build();
+		forwarder = new DnsForwarder(resolver, new InetSocketAddress(
+				"127.0.0.1", 0));
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		forwarder.close();
+		resolver.close();
+		upstream.close();
+	}
+
+	@Test
+	public void answersOverUdpWithTheClientsId() throws IOException {
+		try (DatagramSocket socket = new DatagramSocket()) {
+			socket.setSoTimeout(3000);
+			byte[] query = query(0x1234, "www.example.com", false);
+			socket.send(new DatagramPacket(query, query.length, forwarder
+					.getAddress()));
+			DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+			socket.receive(packet);
+
+			DnsMessageView view = new DnsMessageView().wrap(ByteBuffer.wrap(
+					packet.getData(), 0, packet.getLength()).slice());
+			assertEquals(0x1234, view.getID());
+			assertEquals(0, view.getRCODE());
+			assertEquals(1, view.getANCOUNT());
+			assertEquals(1, forwarder.getUdpQueries());
+		}
+	}
+
+	@Test
+	public void answersAnAliasUnderTheQuestionAsked() throws IOException {
+		try (Socket socket = connect()) {
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			write(out, query(7, "alias.example.com", false));
+			DnsMessageView view = read(in);
+			assertEquals(7, view.getID());
+			assertEquals(2, view.getANCOUNT());
+			assertEquals("alias.example.com", DnsWireParser.readName(
+					view.getMessage(), DnsWireParser.SIZE_OF_HEADER));
+		}
+	}
+
+	@Test
+	public void keepsReadingAConnectionAfterDroppedMessages()
+			throws IOException {
+		try (Socket socket = connect()) {
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			// Responses are never answered, more of them than a connection
+			// may have pending must not stall the queries after them
+			byte[] response = query(1, "www.example.com", true);
+			for (int i = 0; i < 100; i++)
+				write(out, response);
+			write(out, query(2, "www.example.com", false));
+
+			DnsMessageView view = read(in);
+			assertEquals(2, view.getID());
+			assertEquals(1, view.getANCOUNT());
+			assertTrue(forwarder.getTcpQueries() >= 101);
+		}
+	}
+
+	private Socket connect() throws IOException {
+		Socket socket = new Socket();
+		socket.connect(forwarder.getAddress(), 3000);
+		socket.setSoTimeout(3000);
+		return socket;
+	}
+
+	private static byte[] query(int id, String name, boolean response) {
+		ByteBuffer out = ByteBuffer.allocate(512);
+		new DnsMessageWriter(out, id, DnsMessageWriter.RD_FLAG
+				| (response ? DnsMessageWriter.QR_FLAG : 0)).question(name,
+				DnsRecord.A_TYPE, DnsQueryEncoder.IN_CLASS);
+		out.flip();
+		byte[] query = new byte[out.remaining()];
+		out.get(query);
+		return query;
+	}
+
+	private static void write(DataOutputStream out, byte[] message)
+			throws IOException {
+		out.writeShort(message.length);
+		out.write(message);
+		out.flush();
+	}
+
+	private static DnsMessageView read(DataInputStream in) throws IOException {
+		byte[] message = new byte[in.readUnsignedShort()];
+		in.readFully(message);
+		return new DnsMessageView().wrap(ByteBuffer.wrap(message));
+	}
+}
@@ -0,0 +1,151 @@
+package com.telecom.dns;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Resolves from a root down through stub servers on separate loopback
+ * addresses, all on the same port as the resolver asks every name server on
+ * one port.
+ */
+public class IterativeResolverTest {
+
+	private StubDnsServer root;
+	private StubDnsServer com;
+	private StubDnsServer example;
+	private StubDnsServer net;
+	private StubDnsServer lame;
+	private Resolver resolver;
+
+	@Before
+	public void setUp() throws IOException {
+		root = new StubDnsServer(new InetSocketAddress("127.0.0.1", 0));
+		int port = root.getAddress().getPort();
+		com = new StubDnsServer(new InetSocketAddress("127.0.0.2", port));
+		example = new StubDnsServer(new InetSocketAddress("127.0.0.3", port));
+		net = new StubDnsServer(new InetSocketAddress("127.0.0.4", port));
+		lame = new StubDnsServer(new InetSocketAddress("127.0.0.5", port));
+
+		root.addZone("", 3600)
+				.addRecord("com", "NS", 3600, "ns.com")
+				.addRecord("ns.com", "A", 3600, "127.0.0.2")
+				.addRecord("net", "NS", 3600, "ns.net")
+				.addRecord("ns.net", "A", 3600, "127.0.0.4");
+
+		com.addZone("com", 300)
+				.addRecord("com", "NS", 3600, "ns.com")
+				.addRecord("ns.com", "A", 3600, "127.0.0.2")
+				.addRecord("example.com", "NS", 3600, "ns.example.com")
+				.addRecord("ns.example.com", "A", 3600, "127.0.0.3")
+				.addRecord("glueless.com", "NS", 3600, "ns.other.net")
+				.addRecord("lame.com", "NS", 3600, "ns.lame.com")
+				.addRecord("ns.lame.com", "A", 3600, "127.0.0.5");
+
+		example.addZone("example.com", 300)
+				.addZone("glueless.com", 300)
+				.addRecord("example.com", "NS", 3600, "ns.example.com")
+				.addRecord("ns.example.com", "A", 3600, "127.0.0.3")
+				.addRecord("www.example.com", "A", 300, "192.0.2.1")
+				.addRecord("alias.example.com", "CNAME", 300, "www.other.net")
+				.addRecord("host.glueless.com", "A", 300, "192.0.2.3");
+
+		net.addZone("other.net", 300)
+				.addRecord("www.other.net", "A", 300, "192.0.2.2")
+				.addRecord("ns.other.net", "A", 3600, "127.0.0.3");
+
+		// Delegated lame.com, the server believes it serves the root and
+		// refers the resolver back up to com
+		lame.addZone("", 3600)
+				.addRecord("com", "NS", 3600, "ns.com")
+				.addRecord("ns.com", "A", 3600, "127.0.0.2");
+
+		resolver = Resolver.builder().server(root.getAddress()).timeout(1000)
+				.maxRetries(1).cache().iterative(port).build();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		resolver.close();
+		root.close();
+		com.close();
+		example.close();
+		net.close();
+		lame.close();
+	}
+
+	@Test
+	public void followsReferralsFromTheRoot() throws IOException {
+		List<DnsRecord> records = resolver.resolve("www.example.com",
+				DnsRecord.A_TYPE);
+		assertEquals(1, records.size());
+		assertEquals("192.0.2.1", records.get(0).getAddress().getHostAddress());
+		assertEquals("example.com", resolver.getDelegations()
+				.closest("www.example.com").getZone());
+
+		// The delegation is remembered, the root is not asked again
+		long rootQueries = root.getUdpQueries();
+		resolver.resolve("ns.example.com", DnsRecord.A_TYPE);
+		assertEquals(rootQueries, root.getUdpQueries());
+	}
+
+	@Test
+	public void looksUpNameServersWithoutGlue() throws IOException {
+		// The com servers cannot give the address of ns.other.net, it has to
+		// be looked up from the root before glueless.com can be asked
+		List<DnsRecord> records = resolver.resolve("host.glueless.com",
+				DnsRecord.A_TYPE);
+		assertEquals(1, records.size());
+		assertEquals("192.0.2.3", records.get(0).getAddress().getHostAddress());
+		assertEquals("glueless.com", resolver.getDelegations()
+				.closest("host.glueless.com").getZone());
+		assertEquals("net", resolver.getDelegations().closest("ns.other.net")
+				.getZone());
+		assertEquals(1, net.getUdpQueries());
+	}
+
+	@Test
+	public void splicesAnAliasLeadingToAnotherZone() throws Exception {
+		DnsAnswer answer = resolver.lookup("alias.example.com",
+				DnsRecord.A_TYPE).get();
+		List<DnsRecord> records = answer.getRecords();
+		assertEquals(2, records.size());
+		assertEquals(DnsRecord.CNAME_TYPE, records.get(0).getType());
+		assertEquals("www.other.net", records.get(0).getTarget());
+		assertEquals(DnsRecord.A_TYPE, records.get(1).getType());
+		assertEquals("192.0.2.2", records.get(1).getAddress().getHostAddress());
+		assertEquals("alias.example.com", DnsWireParser.readName(
+				answer.getMessageView().getMessage(),
+				DnsWireParser.SIZE_OF_HEADER));
+
+		// The whole chain is cached under the alias
+		assertEquals(2, resolver.lookup("alias.example.com", DnsRecord.A_TYPE)
+				.get().getRecords().size());
+	}
+
+	@Test
+	public void getsTheNameServersOfAZoneFromItsApex() throws IOException {
+		List<DnsRecord> records = resolver.resolve("example.com",
+				DnsRecord.NS_TYPE);
+		assertEquals(1, records.size());
+		assertEquals("ns.example.com", records.get(0).getTarget());
+	}
+
+	@Test
+	public void rejectsAReferralThatDoesNotLeadDown() {
+		try {
+			resolver.resolve("host.lame.com", DnsRecord.A_TYPE);
+			fail("A referral from lame.com up to com was followed");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("Bad referral"));
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package com.telecom.dns;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NioResolverTest {
+
+	private StubDnsServer stub;
+	private NioResolver resolver;
+
+	@Before
+	public void setUp() throws IOException {
+		stub = new StubDnsServer();
+		stub.addZone("example.com", 60).addRecord("www.example.com", "A",
+				300, "192.0.2.1");
+		resolver = new NioResolver(stub.getAddress(), 2000, 1);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		resolver.close();
+		stub.close();
+	}
+
+	@Test
+	public void reportsAnEmptyServerListThroughTheFuture()
+			throws InterruptedException {
+		CompletableFuture<DnsAnswer> future = resolver.query(
+				Collections.emptyList(), "www.example.com", DnsRecord.A_TYPE,
+				false);
+		try {
+			future.get();
+			fail("A query without servers completed");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalArgumentException);
+		}
+	}
+
+	@Test
+	public void keepsWaitingForTheFirstServerWhenTheHedgeFails()
+			throws Exception {
+		// Slower than the hedge delay, to a hedge target the socket refuses
+		// to send to without SO_BROADCAST
+		stub.setLatency(900, 0);
+		try (NioResolver hedging = new NioResolver(Arrays.asList(
+				stub.getAddress(), new InetSocketAddress("255.255.255.255",
+						53)), 4000, 0, null, 512)) {
+			DnsAnswer answer = hedging.lookup("www.example.com",
+					DnsRecord.A_TYPE).get();
+			assertEquals(1, answer.getRecords().size());
+			assertEquals(1, hedging.getMetrics().getHedgedQueries());
+		}
+	}
+
+	@Test
+	public void doublesTheTimeoutForEveryRetryButTheLast() throws IOException {
+		long ms = TimeUnit.MILLISECONDS.toNanos(1);
+		try (NioResolver retrying = new NioResolver(stub.getAddress(), 10000,
+				4)) {
+			ServerStats unmeasured = new ServerStats(stub.getAddress());
+			assertEquals(1000 * ms, retrying.retransmitTimeout(unmeasured, 0));
+			assertEquals(2000 * ms, retrying.retransmitTimeout(unmeasured, 1));
+			assertEquals(4000 * ms, retrying.retransmitTimeout(unmeasured, 2));
+			// The last attempt waits the whole timeout
+			assertEquals(10000 * ms, retrying.retransmitTimeout(unmeasured, 3));
+
+			ServerStats measured = new ServerStats(stub.getAddress());
+			measured.onRttSample(100 * ms);
+			assertEquals(300 * ms, retrying.retransmitTimeout(measured, 0));
+			assertEquals(600 * ms, retrying.retransmitTimeout(measured, 1));
+			assertEquals(1200 * ms, retrying.retransmitTimeout(measured, 2));
+			assertEquals(10000 * ms, retrying.retransmitTimeout(measured, 3));
+		}
+	}
+
+	@Test
+	public void capsTheRetransmitTimeoutAtTheTimeout() throws IOException {
+		long ms = TimeUnit.MILLISECONDS.toNanos(1);
+		try (NioResolver retrying = new NioResolver(stub.getAddress(), 1500,
+				4)) {
+			ServerStats unmeasured = new ServerStats(stub.getAddress());
+			assertEquals(1000 * ms, retrying.retransmitTimeout(unmeasured, 0));
+			assertEquals(1500 * ms, retrying.retransmitTimeout(unmeasured, 1));
+
+			// Never below the 20 ms floor, however fast the server
+			ServerStats fast = new ServerStats(stub.getAddress());
+			fast.onRttSample(ms);
+			assertEquals(20 * ms, retrying.retransmitTimeout(fast, 0));
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package com.telecom.dns;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class OffHeapRecordStoreTest {
+
+	@Test
+	public void agreesWithAMapThroughPutsAndRemoves() {
+		OffHeapRecordStore store = new OffHeapRecordStore(
+				OffHeapRecordStore.MIN_CAPACITY);
+		Map<CacheKey, Integer> expected = new HashMap<CacheKey, Integer>();
+		Random random = new Random(1);
+		for (int i = 0; i < 100000; i++) {
+			CacheKey key = key("h" + random.nextInt(20000) + ".example.com");
+			int operation = random.nextInt(10);
+			if (operation < 6) {
+				store.put(key, message(i), 1, i);
+				expected.put(key, i);
+			} else if (operation < 8) {
+				OffHeapRecordStore.Record record = store.get(key);
+				Integer value = expected.get(key);
+				if (value == null) {
+					assertNull(record);
+				} else {
+					assertNotNull(record);
+					assertEquals(value.intValue(), record.message.getInt(0));
+				}
+			} else if (expected.containsKey(key)) {
+				store.remove(key, expected.remove(key));
+			}
+		}
+		assertEquals(expected.size(), store.size());
+		assertEquals(expected.size(), store.records().size());
+	}
+
+	@Test
+	public void evictsTheOldestRecordsWhenTheRingComesRound() {
+		OffHeapRecordStore store = new OffHeapRecordStore(
+				OffHeapRecordStore.MIN_CAPACITY);
+		int puts = 300000;
+		for (int i = 0; i < puts; i++)
+			store.put(key("n" + i + ".example.org"), message(i), 1, 1);
+		assertFalse(store.contains(key("n0.example.org")));
+		assertTrue(store.contains(key("n" + (puts - 1) + ".example.org")));
+		assertTrue(store.size() < puts);
+	}
+
+	private static CacheKey key(String name) {
+		return CacheKey.of(name, DnsRecord.A_TYPE, DnsQueryEncoder.IN_CLASS);
+	}
+
+	private static ByteBuffer message(int value) {
+		ByteBuffer message = ByteBuffer.allocate(40);
+		message.putInt(0, value);
+		return message;
+	}
+}
@@ -0,0 +1,297 @@
+package com.telecom.dns;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BooleanSupplier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Looks names up through the NioResolver from stub servers that truncate,
+ * stall, drop or refuse EDNS queries.
+ */
+public class ResolverTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private StubDnsServer stub;
+
+	@Before
+	public void setUp() throws IOException {
+		stub = new StubDnsServer();
+		stub.addZone("example.com", 60).addRecord("www.example.com", "A",
+				300, "192.0.2.1");
+		for (int i = 0; i < 60; i++)
+			stub.addRecord("big.example.com", "A", 300, "192.0.2." + i);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		stub.close();
+	}
+
+	@Test
+	public void fetchesATruncatedAnswerOverTcp() throws IOException {
+		stub.setTruncateUdp(true);
+		try (Resolver resolver = Resolver.builder().server(stub.getAddress())
+				.timeout(2000).build()) {
+			assertEquals(60, resolver.resolve("big.example.com",
+					DnsRecord.A_TYPE).size());
+			assertEquals(1, stub.getTcpQueries());
+			assertEquals(1, resolver.getMetrics().getTruncatedResponses());
+		}
+	}
+
+	@Test
+	public void waitsOutASlowTcpServerWithoutResending() throws IOException {
+		// Slower than the UDP retransmit timeout, well within the timeout
+		stub.setTruncateUdp(true).setLatency(1500, 0);
+		try (Resolver resolver = Resolver.builder().server(stub.getAddress())
+				.timeout(4000).maxRetries(3).build()) {
+			assertEquals(1, resolver.resolve("www.example.com",
+					DnsRecord.A_TYPE).size());
+			assertEquals(1, stub.getTcpQueries());
+		}
+	}
+
+	@Test
+	public void retriesWithoutEdnsOnFormerr() throws IOException {
+		stub.setEdnsSupported(false);
+		try (Resolver resolver = Resolver.builder().server(stub.getAddress())
+				.timeout(2000).edns(1232).build()) {
+			assertEquals(1, resolver.resolve("www.example.com",
+					DnsRecord.A_TYPE).size());
+			assertEquals(2, stub.getUdpQueries());
+		}
+	}
+
+	@Test
+	public void hedgesToAnotherServerWhenTheFirstIsSilent()
+			throws IOException {
+		try (StubDnsServer silent = new StubDnsServer()) {
+			silent.addZone("example.com", 60).setLossRate(1);
+			// With no RTTs measured yet the first server listed is tried
+			// first
+			try (Resolver resolver = Resolver.builder()
+					.servers(Arrays.asList(silent.getAddress(),
+							stub.getAddress())).timeout(4000).maxRetries(0)
+					.build()) {
+				long start = System.nanoTime();
+				assertEquals(1, resolver.resolve("www.example.com",
+						DnsRecord.A_TYPE).size());
+				long millis = (System.nanoTime() - start) / 1000000;
+				assertEquals(1, resolver.getMetrics().getHedgedQueries());
+				assertEquals(1, silent.getDropped());
+				assertTrue(millis + " ms", millis < 4000);
+			}
+		}
+	}
+
+	@Test
+	public void coalescesConcurrentLookupsOfOneName() throws Exception {
+		stub.setLatency(300, 0);
+		try (Resolver resolver = Resolver.builder().server(stub.getAddress())
+				.timeout(2000).build()) {
+			List<CompletableFuture<DnsAnswer>> lookups = new ArrayList<CompletableFuture<DnsAnswer>>();
+			for (int i = 0; i < 10; i++)
+				lookups.add(resolver.lookup("www.example.com",
+						DnsRecord.A_TYPE));
+			for (CompletableFuture<DnsAnswer> lookup : lookups)
+				assertEquals(1, lookup.get().getRecords().size());
+			assertEquals(1, stub.getUdpQueries());
+			assertEquals(9, resolver.getMetrics().getCoalescedLookups());
+		}
+	}
+
+	@Test
+	public void countsDownTheTtlsOfACachedAnswer() throws Exception {
+		stub.setLatency(300, 0);
+		try (Resolver resolver = Resolver.builder().server(stub.getAddress())
+				.timeout(2000).cache().build()) {
+			DnsAnswer first = resolver.lookup("www.example.com",
+					DnsRecord.A_TYPE).get();
+			assertEquals(300, first.getRecords().get(0).getTTL());
+			Thread.sleep(1100);
+
+			DnsAnswer hit = resolver.lookup("www.example.com",
+					DnsRecord.A_TYPE).get();
+			assertEquals(1, stub.getUdpQueries());
+			assertTrue(hit.getRecords().get(0).getTTL() < 300);
+			// The hit's own time, not that of the query that filled the cache
+			assertTrue(hit.getResponseTimeNanos() < first.getResponseTimeNanos());
+			assertEquals(300, first.getRecords().get(0).getTTL());
+		}
+	}
+
+	@Test
+	public void servesStaleWhenTheServerFails() throws Exception {
+		stub.addRecord("short.example.com", "A", 1, "192.0.2.9");
+		try (Resolver resolver = Resolver.builder().server(stub.getAddress())
+				.timeout(1000).maxRetries(0).serveStale(60, 1000).build()) {
+			resolver.resolve("short.example.com", DnsRecord.A_TYPE);
+			Thread.sleep(1100);
+			stub.setRcode(2);
+			List<DnsRecord> records = resolver.resolve("short.example.com",
+					DnsRecord.A_TYPE);
+			assertEquals("192.0.2.9", records.get(0).getAddress()
+					.getHostAddress());
+			assertEquals(1, staleAnswers(resolver));
+		}
+	}
+
+	@Test
+	public void servesStaleWhenTheServerIsSlow() throws Exception {
+		stub.addRecord("short.example.com", "A", 1, "192.0.2.9");
+		try (Resolver resolver = Resolver.builder().server(stub.getAddress())
+				.timeout(3000).serveStale(60, 200).build()) {
+			resolver.resolve("short.example.com", DnsRecord.A_TYPE);
+			Thread.sleep(1100);
+			stub.setLatency(1000, 0);
+			long start = System.nanoTime();
+			resolver.resolve("short.example.com", DnsRecord.A_TYPE);
+			long millis = (System.nanoTime() - start) / 1000000;
+			assertTrue(millis + " ms", millis < 1000);
+			assertEquals(1, staleAnswers(resolver));
+		}
+	}
+
+	@Test
+	public void prefersAFreshAnswerThatArrivesInTime() throws Exception {
+		stub.addRecord("short.example.com", "A", 1, "192.0.2.9");
+		try (Resolver resolver = Resolver.builder().server(stub.getAddress())
+				.timeout(3000).serveStale(60, 1500).build()) {
+			resolver.resolve("short.example.com", DnsRecord.A_TYPE);
+			Thread.sleep(1100);
+			resolver.resolve("short.example.com", DnsRecord.A_TYPE);
+			Thread.sleep(1600);
+			assertEquals(0, resolver.getMetrics().getStaleAnswers());
+			assertEquals(2, stub.getUdpQueries());
+		}
+	}
+
+	@Test
+	public void prefetchesWithinTheLastPartOfTheTtl() throws Exception {
+		stub.addRecord("short.example.com", "A", 4, "192.0.2.9");
+		try (Resolver resolver = Resolver.builder().server(stub.getAddress())
+				.timeout(1000).prefetch(0.25, 100).build()) {
+			resolver.resolve("short.example.com", DnsRecord.A_TYPE);
+			resolver.resolve("short.example.com", DnsRecord.A_TYPE);
+			assertEquals(0, resolver.getMetrics().getPrefetches());
+			Thread.sleep(3400);
+
+			// Served from the cache while the refresh goes out
+			resolver.resolve("short.example.com", DnsRecord.A_TYPE);
+			await(() -> stub.getUdpQueries() == 2);
+			assertEquals(1, resolver.getMetrics().getPrefetches());
+			Thread.sleep(1000);
+			// Past the first entry's expiry, before the refreshed one is due
+			// for its own prefetch
+			resolver.resolve("short.example.com", DnsRecord.A_TYPE);
+			assertEquals(2, stub.getUdpQueries());
+		}
+	}
+
+	@Test
+	public void triesAThrottledPrefetchAgainOnTheNextHit() throws Exception {
+		stub.addRecord("short.example.com", "A", 3, "192.0.2.9");
+		stub.addRecord("other.example.com", "A", 3, "192.0.2.10");
+		// One token, and the next one a hundred seconds away
+		try (Resolver resolver = Resolver.builder().server(stub.getAddress())
+				.timeout(1000).prefetch(0.5, 0.01).build()) {
+			resolver.resolve("short.example.com", DnsRecord.A_TYPE);
+			resolver.resolve("other.example.com", DnsRecord.A_TYPE);
+			Thread.sleep(1600);
+
+			resolver.resolve("short.example.com", DnsRecord.A_TYPE);
+			resolver.resolve("other.example.com", DnsRecord.A_TYPE);
+			resolver.resolve("other.example.com", DnsRecord.A_TYPE);
+			assertEquals(1, resolver.getMetrics().getPrefetches());
+			// Each hit on the throttled entry asked again
+			assertEquals(2, resolver.getMetrics().getPrefetchesThrottled());
+		}
+	}
+
+	@Test
+	public void prefetchesAgainAfterAFailedRefresh() throws Exception {
+		stub.addRecord("short.example.com", "A", 3, "192.0.2.9");
+		try (Resolver resolver = Resolver.builder().server(stub.getAddress())
+				.timeout(1000).maxRetries(0).prefetch(0.5, 100).build()) {
+			resolver.resolve("short.example.com", DnsRecord.A_TYPE);
+			Thread.sleep(1600);
+			stub.setRcode(2);
+			resolver.resolve("short.example.com", DnsRecord.A_TYPE);
+			await(() -> stub.getUdpQueries() == 2);
+			// Let the SERVFAIL reach the cache
+			Thread.sleep(100);
+
+			stub.setRcode(0);
+			List<DnsRecord> records = resolver.resolve("short.example.com",
+					DnsRecord.A_TYPE);
+			assertEquals("192.0.2.9", records.get(0).getAddress()
+					.getHostAddress());
+			await(() -> stub.getUdpQueries() == 3);
+			assertEquals(2, resolver.getMetrics().getPrefetches());
+		}
+	}
+
+	@Test
+	public void refusesACacheFileThatIsNotOne() throws IOException {
+		Path path = folder.newFile("cache").toPath();
+		byte[] contents = "not a cache".getBytes("US-ASCII");
+		Files.write(path, contents);
+		try {
+			Resolver.builder().server(stub.getAddress()).cacheFile(path)
+					.build().close();
+			fail("The resolver started from a file that is not a cache");
+		} catch (IOException e) {
+			// expected
+		}
+		// Left as it was rather than replaced on close
+		assertTrue(Arrays.equals(contents, Files.readAllBytes(path)));
+	}
+
+	@Test
+	public void rejectsAnOffHeapCacheBelowTheMinimum() {
+		for (long size : new long[] { 0, -1, DnsCache.MIN_OFF_HEAP_CAPACITY - 1 }) {
+			try {
+				Resolver.builder().offHeapCache(size);
+				fail("An off-heap cache of " + size + " bytes was accepted");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+
+	private static void await(BooleanSupplier condition)
+			throws InterruptedException {
+		for (int i = 0; i < 100 && !condition.getAsBoolean(); i++)
+			Thread.sleep(10);
+		assertTrue(condition.getAsBoolean());
+	}
+
+	/**
+	 * The count goes up just after the stale answer is handed over, on the
+	 * I/O thread.
+	 */
+	private static long staleAnswers(Resolver resolver)
+			throws InterruptedException {
+		for (int i = 0; i < 50
+				&& resolver.getMetrics().getStaleAnswers() == 0; i++)
+			Thread.sleep(10);
+		return resolver.getMetrics().getStaleAnswers();
+	}
+}
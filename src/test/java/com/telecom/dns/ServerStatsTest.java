@@ -0,0 +1,44 @@
+package com.telecom.dns;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ServerStatsTest {
+
+	private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	@Test
+	public void takesTheFirstSampleAsTheSmoothedRtt() {
+		ServerStats stats = new ServerStats(new InetSocketAddress(
+				"127.0.0.1", 53));
+		stats.onRttSample(100 * MS);
+		assertEquals(100 * MS, stats.getSmoothedRttNanos());
+		assertEquals(50 * MS, stats.getRttVarianceNanos());
+		assertEquals(300 * MS, stats.getRetransmitTimeoutNanos());
+	}
+
+	@Test
+	public void movesTheVarianceBeforeTheSmoothedRtt() {
+		ServerStats stats = new ServerStats(new InetSocketAddress(
+				"127.0.0.1", 53));
+		stats.onRttSample(100 * MS);
+		stats.onRttSample(200 * MS);
+		// RTTVAR = 3/4 * 50 + 1/4 * |100 - 200|, SRTT = 7/8 * 100 + 1/8 * 200
+		assertEquals(62500000, stats.getRttVarianceNanos());
+		assertEquals(112500000, stats.getSmoothedRttNanos());
+		assertEquals(362500000, stats.getRetransmitTimeoutNanos());
+	}
+
+	@Test
+	public void keepsTheTimeoutAboveTheClockGranularity() {
+		ServerStats stats = new ServerStats(new InetSocketAddress(
+				"127.0.0.1", 53));
+		stats.onRttSample(TimeUnit.MICROSECONDS.toNanos(10));
+		assertEquals(TimeUnit.MICROSECONDS.toNanos(1010),
+				stats.getRetransmitTimeoutNanos());
+	}
+}
@@ -0,0 +1,72 @@
+package com.telecom.dns;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * How the stub answers around zone cuts, asked with recursion off as an
+ * iterative resolver asks.
+ */
+public class StubDnsServerTest {
+
+	private StubDnsServer stub;
+	private NioResolver resolver;
+
+	@Before
+	public void setUp() throws IOException {
+		stub = new StubDnsServer();
+		stub.addZone("example.com", 300)
+				.addRecord("example.com", "NS", 3600, "ns.example.com")
+				.addRecord("ns.example.com", "A", 3600, "192.0.2.53")
+				.addRecord("sub.example.com", "NS", 3600, "ns.sub.example.com")
+				.addRecord("ns.sub.example.com", "A", 3600, "192.0.2.54")
+				.addRecord("org", "NS", 3600, "ns.org");
+		resolver = new NioResolver(stub.getAddress(), 2000, 1);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		resolver.close();
+		stub.close();
+	}
+
+	@Test
+	public void answersNameServersAtTheApex() throws Exception {
+		DnsAnswer answer = ask("example.com", DnsRecord.NS_TYPE);
+		assertEquals(0, answer.getHeader().getRCODE());
+		assertTrue(answer.getMessageView().isAuthoritative());
+		assertEquals(1, answer.getRecords().size());
+		assertEquals("ns.example.com", answer.getRecords().get(0).getTarget());
+	}
+
+	@Test
+	public void refersBelowTheApex() throws Exception {
+		DnsAnswer answer = ask("www.sub.example.com", DnsRecord.A_TYPE);
+		DnsMessageView view = answer.getMessageView();
+		assertEquals(0, view.getSectionCount(DnsMessageView.ANSWER_SECTION));
+		assertEquals(1, view.getSectionCount(DnsMessageView.AUTHORITY_SECTION));
+		assertEquals("ns.sub.example.com", answer.getRecord(
+				view.getSectionStart(DnsMessageView.AUTHORITY_SECTION))
+				.getTarget());
+		assertEquals(1, answer.getRecords(DnsMessageView.ADDITIONAL_SECTION)
+				.size());
+	}
+
+	@Test
+	public void ignoresNameServersInNoDeclaredZone() throws Exception {
+		assertEquals(5, ask("www.example.org", DnsRecord.A_TYPE).getHeader()
+				.getRCODE());
+	}
+
+	private DnsAnswer ask(String name, short qtype) throws Exception {
+		return resolver.query(Collections.singletonList(stub.getAddress()),
+				name, qtype, false).get();
+	}
+}
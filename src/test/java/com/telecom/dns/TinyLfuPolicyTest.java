@@ -0,0 +1,66 @@
+package com.telecom.dns;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+
+public class TinyLfuPolicyTest {
+
+	@Test
+	public void keepsTheNewestEntryOfASmallCache() {
+		ConcurrentHashMap<CacheKey, String> map = new ConcurrentHashMap<CacheKey, String>();
+		TinyLfuPolicy<String> policy = new TinyLfuPolicy<String>(map, 10,
+				value -> 1, 1);
+		for (int i = 0; i < 50; i++) {
+			policy.put(key(i), "answer");
+			// A window of no entries would hold every new one to the
+			// admission test, which an unseen name always loses
+			assertTrue("entry " + i + " was not kept", map.containsKey(key(i)));
+		}
+		assertEquals(10, map.size());
+		assertEquals(10, policy.getWeightedSize());
+	}
+
+	@Test
+	public void keepsPopularEntriesThroughAScan() {
+		ConcurrentHashMap<CacheKey, String> map = new ConcurrentHashMap<CacheKey, String>();
+		TinyLfuPolicy<String> policy = new TinyLfuPolicy<String>(map, 100,
+				value -> 1, 1);
+		for (int i = 0; i < 50; i++)
+			policy.put(key(i), "answer");
+		for (int round = 0; round < 10; round++) {
+			for (int i = 0; i < 50; i++)
+				policy.recordRead(key(i));
+		}
+		for (int i = 1000; i < 2000; i++)
+			policy.put(key(i), "answer");
+
+		int kept = 0;
+		for (int i = 0; i < 50; i++) {
+			if (map.containsKey(key(i)))
+				kept++;
+		}
+		assertTrue(kept + " of the popular entries were kept", kept >= 45);
+	}
+
+	@Test
+	public void keepsTheNewestEntryWhenAWindowShareIsUnderOneEntry() {
+		// 1% of the bound is 10, a quarter of what an entry weighs
+		ConcurrentHashMap<CacheKey, String> map = new ConcurrentHashMap<CacheKey, String>();
+		TinyLfuPolicy<String> policy = new TinyLfuPolicy<String>(map, 1000,
+				value -> value.length(), 40);
+		for (int i = 0; i < 100; i++) {
+			policy.put(key(i), new String(new char[40]));
+			assertTrue("entry " + i + " was not kept", map.containsKey(key(i)));
+		}
+		assertTrue(policy.getWeightedSize() <= 1000);
+	}
+
+	private static CacheKey key(int i) {
+		return CacheKey.of("host" + i + ".example.com", DnsRecord.A_TYPE,
+				DnsQueryEncoder.IN_CLASS);
+	}
+}